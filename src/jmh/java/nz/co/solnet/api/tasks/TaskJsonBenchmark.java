@@ -0,0 +1,92 @@
+package nz.co.solnet.api.tasks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import nz.co.solnet.database.BenchmarkDatabase;
+import nz.co.solnet.model.Task;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the JSON decode / encode work TaskServlet does for each request.
+ * Like the servlet, a single Gson instance is shared by all operations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TaskJsonBenchmark {
+
+    private static final String TASK_JSON = "{ \"title\" : \"Test name\", \"description\" : \"Test description\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-04\" }";
+
+    private Task task;
+
+    @State(Scope.Benchmark)
+    public static class TaskCollection {
+
+        @Param({"100", "10000"})
+        public int collectionSize;
+
+        private List<Task> tasks;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            tasks = new ArrayList<>(collectionSize);
+            for (int i = 0; i < collectionSize; i++) {
+                tasks.add(buildTask(i + 1));
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        task = buildTask(1);
+    }
+
+    private static Task buildTask(int id) {
+        Task task = BenchmarkDatabase.seedTask(id);
+        task.setId(id);
+        task.setCreationDate(LocalDate.parse("2023-04-01"));
+        return task;
+    }
+
+    private static final Gson GSON = new GsonBuilder().registerTypeAdapter(LocalDate.class, new GsonLocalDateAdapter()).create();
+
+    @Benchmark
+    public Task decodeTask() {
+        return GSON.fromJson(TASK_JSON, Task.class);
+    }
+
+    @Benchmark
+    public String encodeTask() {
+        return GSON.toJson(task);
+    }
+
+    @Benchmark
+    public String encodeTaskCollection(TaskCollection collection) {
+        return GSON.toJson(collection.tasks);
+    }
+
+    /**
+     * Collections are streamed to the response one task at a time, see TaskServlet.writeStreamingResponse.
+     */
+    @Benchmark
+    public void streamTaskCollection(TaskCollection collection) throws IOException {
+        try (JsonWriter jsonWriter = GSON.newJsonWriter(Writer.nullWriter())) {
+            jsonWriter.beginArray();
+            for (Task task : collection.tasks) {
+                GSON.toJson(task, Task.class, jsonWriter);
+            }
+            jsonWriter.endArray();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+
+/**
+ * Creates and seeds an in-memory Derby database for benchmarking.
+ * Seeded data is deterministic so that results are comparable between runs.
+ */
+public class BenchmarkDatabase {
+
+    /**
+     * The first due date used for seeded tasks. Due dates are spread over {@link #DUE_DATE_SPAN_DAYS} days from here.
+     */
+    public static final LocalDate FIRST_DUE_DATE = LocalDate.parse("2020-01-01");
+
+    public static final int DUE_DATE_SPAN_DAYS = 3 * 365;
+
+    private static final int INSERT_BATCH_SIZE = 5_000;
+
+    private final String databaseName;
+
+    private final EmbeddedDataSource dataSource;
+
+    private BenchmarkDatabase(String databaseName) {
+        this.databaseName = databaseName;
+        this.dataSource = new EmbeddedDataSource();
+        this.dataSource.setDatabaseName(databaseName);
+        this.dataSource.setUser("benchmark");
+        this.dataSource.setPassword("benchmark");
+    }
+
+    /**
+     * Create a new in-memory database with an initialised tasks table containing the given number of rows.
+     * @param name A name unique to the benchmark
+     * @param rows The number of tasks to seed
+     * @return
+     */
+    public static BenchmarkDatabase create(String name, int rows) {
+        BenchmarkDatabase database = new BenchmarkDatabase("memory:" + name + rows);
+        try (Connection connection = DriverManager.getConnection("jdbc:derby:" + database.databaseName + ";create=true")) {
+            // Database created
+        } catch (SQLException e) {
+            throw new RuntimeException("Error creating benchmark database", e);
+        }
+        new SchemaMigrations(database.dataSource).migrate();
+        database.seed(rows);
+        database.updateStatistics();
+        return database;
+    }
+
+    public TaskRepository getTaskRepository() {
+        return new TaskRepositoryImpl(dataSource);
+    }
+
+    public EmbeddedDataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Drop the secondary indexes on the tasks table, leaving only the primary key, so that queries can be compared
+     * with and without them.
+     */
+    public void dropSecondaryIndexes() {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP INDEX tasks_status_due_date_idx");
+            statement.execute("DROP INDEX tasks_due_date_idx");
+        } catch (SQLException e) {
+            throw new RuntimeException("Error dropping indexes", e);
+        }
+    }
+
+    /**
+     * Indexes are created on the empty table by the migrations, so refresh their statistics after seeding
+     * to let the optimizer cost them as it would in a long-running database.
+     */
+    private void updateStatistics() {
+        try (Connection connection = dataSource.getConnection();
+             CallableStatement statement = connection.prepareCall("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS(?, 'TASKS', NULL)")) {
+            statement.setString(1, connection.getSchema());
+            statement.execute();
+        } catch (SQLException e) {
+            throw new RuntimeException("Error updating statistics", e);
+        }
+    }
+
+    /**
+     * Drop the in-memory database and release its memory.
+     */
+    public void drop() {
+        try {
+            DriverManager.getConnection("jdbc:derby:" + databaseName + ";drop=true");
+        } catch (SQLException e) {
+            // Expecting SQLException with SQL state 08006 to indicate the database was dropped
+            if (!"08006".equals(e.getSQLState())) {
+                throw new RuntimeException("Error dropping benchmark database", e);
+            }
+        }
+    }
+
+    /**
+     * Build the task that is seeded for a given row number.
+     * @param row
+     * @return
+     */
+    public static Task seedTask(int row) {
+        Task task = new Task();
+        task.setTitle("Task " + row);
+        task.setDescription("Seeded benchmark task number " + row + " with a short description");
+        // Offset the status by the due date cycle so that each due date has a mix of statuses
+        task.setStatus(Task.Status.values()[(row + row / DUE_DATE_SPAN_DAYS) % Task.Status.values().length]);
+        task.setDueDate(FIRST_DUE_DATE.plusDays(row % DUE_DATE_SPAN_DAYS));
+        return task;
+    }
+
+    private void seed(int rows) {
+        String query = "INSERT INTO tasks (title, description, due_date, status, creation_date) VALUES (?, ?, ?, ?, ?)";
+        Date creationDate = Date.valueOf(LocalDate.now());
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(query)) {
+            connection.setAutoCommit(false);
+            for (int row = 0; row < rows; row++) {
+                Task task = seedTask(row);
+                statement.setString(1, task.getTitle());
+                statement.setString(2, task.getDescription());
+                statement.setDate(3, Date.valueOf(task.getDueDate()));
+                statement.setString(4, task.getStatus().getDbName());
+                statement.setDate(5, creationDate);
+                statement.addBatch();
+                if ((row + 1) % INSERT_BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                    connection.commit();
+                }
+            }
+            statement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException("Error seeding benchmark database", e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares committing each single task write in its own transaction with group commit, with concurrent writers.
+ * The database is on disk, unlike the other benchmarks, as group commit saves log flushes, which an in-memory
+ * database doesn't do.
+ * Run with one thread as well as sixteen to see that a lone writer isn't slowed down:
+ * mvn -Pbenchmark compile exec:exec -Dbenchmark.args="GroupCommitBenchmark -t 1"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(16)
+public class GroupCommitBenchmark {
+
+    private static final int ROWS = 10_000;
+
+    @Param({"false", "true"})
+    public boolean groupCommit;
+
+    private Path directory;
+
+    private String databaseUrl;
+
+    private ConnectionPool connectionPool;
+
+    private TaskRepositoryImpl repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        directory = Files.createTempDirectory("group-commit-benchmark");
+        databaseUrl = "jdbc:derby:" + directory.resolve("tasks");
+        DriverManager.getConnection(databaseUrl + ";create=true").close();
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName(directory.resolve("tasks").toString());
+        connectionPool = new ConnectionPool.ConnectionPoolBuilder()
+                .withMaxSize(32)
+                .build(dataSource);
+        new SchemaMigrations(connectionPool).migrate();
+        repository = new TaskRepositoryImpl(connectionPool, groupCommit ? new GroupCommitter.GroupCommitterBuilder().build(connectionPool) : null);
+        for (int row = 0; row < ROWS; row++) {
+            repository.createTask(BenchmarkDatabase.seedTask(row));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        repository.close();
+        connectionPool.close();
+        try {
+            DriverManager.getConnection(databaseUrl + ";shutdown=true");
+        } catch (SQLException e) {
+            // Expected, a shutdown always throws
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public Task createTask() {
+        return repository.createTask(BenchmarkDatabase.seedTask(ThreadLocalRandom.current().nextInt(ROWS)));
+    }
+
+    @Benchmark
+    public Optional<Task> updateTask() {
+        int row = ThreadLocalRandom.current().nextInt(ROWS);
+        Task task = BenchmarkDatabase.seedTask(row);
+        task.setId(row + 1);
+        return repository.updateTask(task);
+    }
+}
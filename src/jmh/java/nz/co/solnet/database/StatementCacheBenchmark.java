@@ -0,0 +1,99 @@
+package nz.co.solnet.database;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of the task queries when their SQL is compiled every time, when the same SQL is prepared
+ * again (found in Derby's own statement cache), and when the statement prepared earlier on the pooled connection is
+ * reused from the pool's statement cache.
+ * Compiling every time is what happened when the statuses were written into the SQL, for each new combination.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StatementCacheBenchmark {
+
+    private static final String TASK_QUERY = "SELECT * FROM tasks WHERE id = ?";
+
+    private static final String RANGE_QUERY = "SELECT * FROM tasks WHERE status IN (?, ?, ?) AND due_date BETWEEN ? AND ?";
+
+    @Param({"100000"})
+    public int rows;
+
+    @Param({"compile", "prepare", "reuse"})
+    public String mode;
+
+    private BenchmarkDatabase database;
+
+    private ConnectionPool connectionPool;
+
+    private long compilations;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = BenchmarkDatabase.create("statements", rows);
+        connectionPool = new ConnectionPool.ConnectionPoolBuilder()
+                .withMaxSize(1)
+                .withStatementCacheSize(mode.equals("reuse") ? 50 : 0)
+                .build(database.getDataSource());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connectionPool.close();
+        database.drop();
+    }
+
+    /**
+     * In compile mode, make the SQL text unique with a condition that doesn't change the result, so Derby can't
+     * find it in its statement cache.
+     */
+    private String sql(String condition) {
+        return mode.equals("compile") ? condition + " AND id <> " + -(++compilations) : condition;
+    }
+
+    @Benchmark
+    public int getTask() throws SQLException {
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql(TASK_QUERY))) {
+            statement.setInt(1, ThreadLocalRandom.current().nextInt(rows) + 1);
+            return count(statement);
+        }
+    }
+
+    @Benchmark
+    public int getTasksDueOnDay() throws SQLException {
+        LocalDate date = BenchmarkDatabase.FIRST_DUE_DATE.plusDays(ThreadLocalRandom.current().nextInt(BenchmarkDatabase.DUE_DATE_SPAN_DAYS));
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql(RANGE_QUERY) + " ORDER BY due_date, id")) {
+            statement.setString(1, "TODO");
+            statement.setString(2, "INPROGRESS");
+            statement.setString(3, "INPROGRESS");
+            statement.setDate(4, Date.valueOf(date));
+            statement.setDate(5, Date.valueOf(date));
+            return count(statement);
+        }
+    }
+
+    private int count(PreparedStatement statement) throws SQLException {
+        int count = 0;
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
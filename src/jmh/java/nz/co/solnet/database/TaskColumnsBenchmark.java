@@ -0,0 +1,85 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reporting over a quarter of incomplete tasks from the database with the same from the task columns:
+ * the collection's version (its ETag), and the count of each status.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TaskColumnsBenchmark {
+
+    private static final int QUARTER_DAYS = 91;
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+
+    private TaskRepository repository;
+
+    private TaskColumns columns;
+
+    private final List<Task.Status> incompleteStatuses = Arrays.asList(Task.Status.TODO, Task.Status.IN_PROGRESS);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = BenchmarkDatabase.create("columns", rows);
+        repository = database.getTaskRepository();
+        columns = new TaskColumns();
+        repository.forEachTask(columns::add);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.drop();
+    }
+
+    private LocalDate randomStartDate() {
+        return BenchmarkDatabase.FIRST_DUE_DATE.plusDays(ThreadLocalRandom.current().nextInt(BenchmarkDatabase.DUE_DATE_SPAN_DAYS - QUARTER_DAYS));
+    }
+
+    @Benchmark
+    public String versionFromDatabase() {
+        LocalDate startDate = randomStartDate();
+        return repository.getTasksBetweenDatesVersion(startDate, startDate.plusDays(QUARTER_DAYS), incompleteStatuses);
+    }
+
+    @Benchmark
+    public String versionFromColumns() {
+        LocalDate startDate = randomStartDate();
+        return columns.getTasksBetweenDatesVersion(startDate, startDate.plusDays(QUARTER_DAYS), incompleteStatuses);
+    }
+
+    /**
+     * Counting by reading the tasks, which is what a report had to do before the columns.
+     */
+    @Benchmark
+    public Map<Task.Status, Integer> countFromDatabase() {
+        LocalDate startDate = randomStartDate();
+        Map<Task.Status, Integer> counts = new EnumMap<>(Task.Status.class);
+        repository.forEachTaskBetweenDates(startDate, startDate.plusDays(QUARTER_DAYS), incompleteStatuses,
+                task -> counts.merge(task.getStatus(), 1, Integer::sum));
+        return counts;
+    }
+
+    @Benchmark
+    public TaskCounts countFromColumns() {
+        LocalDate startDate = randomStartDate();
+        return columns.countBetweenDates(startDate, startDate.plusDays(QUARTER_DAYS), incompleteStatuses);
+    }
+}
@@ -0,0 +1,71 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares getTasksBetweenDates latency at 1M rows with and without the secondary indexes on due_date and
+ * (status, due_date) created by the schema migrations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TaskRangeQueryBenchmark {
+
+    @Param({"1000000"})
+    public int rows;
+
+    @Param({"true", "false"})
+    public boolean indexed;
+
+    private BenchmarkDatabase database;
+
+    private TaskRepository repository;
+
+    private final List<Task.Status> incompleteStatuses = Arrays.asList(Task.Status.TODO, Task.Status.IN_PROGRESS);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = BenchmarkDatabase.create("range", rows);
+        if (!indexed) {
+            database.dropSecondaryIndexes();
+        }
+        repository = database.getTaskRepository();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.drop();
+    }
+
+    private LocalDate randomStartDate(int days) {
+        return BenchmarkDatabase.FIRST_DUE_DATE.plusDays(ThreadLocalRandom.current().nextInt(BenchmarkDatabase.DUE_DATE_SPAN_DAYS - days));
+    }
+
+    /**
+     * Incomplete tasks due in a one week window (the status IN ... AND due_date BETWEEN query).
+     */
+    @Benchmark
+    public List<Task> incompleteTasksDueInWeek() {
+        LocalDate startDate = randomStartDate(7);
+        return repository.getTasksBetweenDates(startDate, startDate.plusDays(7), incompleteStatuses);
+    }
+
+    /**
+     * All tasks due on a single day.
+     */
+    @Benchmark
+    public List<Task> tasksDueOnDay() {
+        LocalDate date = randomStartDate(1);
+        return repository.getTasksBetweenDates(date, date, null);
+    }
+}
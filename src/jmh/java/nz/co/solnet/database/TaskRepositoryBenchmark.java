@@ -0,0 +1,90 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of each TaskRepositoryImpl operation over seeded embedded Derby tables of different sizes.
+ * Run with the gc profiler (the profile default) to also report allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TaskRepositoryBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+
+    private TaskRepository repository;
+
+    private TaskRepository cachedRepository;
+
+    private final List<Task.Status> rangeStatuses = Arrays.asList(Task.Status.TODO, Task.Status.IN_PROGRESS);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = BenchmarkDatabase.create("repository", rows);
+        repository = database.getTaskRepository();
+        cachedRepository = new CachingTaskRepository.CachingTaskRepositoryBuilder()
+                .withMaxEntries(rows)
+                .build(repository);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.drop();
+    }
+
+    @Benchmark
+    public Task createTask() {
+        return repository.createTask(BenchmarkDatabase.seedTask(ThreadLocalRandom.current().nextInt(rows)));
+    }
+
+    @Benchmark
+    public Optional<Task> updateTask() {
+        int row = ThreadLocalRandom.current().nextInt(rows);
+        Task task = BenchmarkDatabase.seedTask(row);
+        task.setId(row + 1);
+        return repository.updateTask(task);
+    }
+
+    @Benchmark
+    public Optional<Task> getTask() {
+        // Identity values start at 1
+        return repository.getTask(ThreadLocalRandom.current().nextInt(rows) + 1);
+    }
+
+    /**
+     * Single task lookups through a cache big enough to hold every task, so after warmup every lookup is a hit.
+     */
+    @Benchmark
+    public Optional<Task> getTaskCached() {
+        return cachedRepository.getTask(ThreadLocalRandom.current().nextInt(rows) + 1);
+    }
+
+    @Benchmark
+    public List<Task> getTasks() {
+        return repository.getTasks();
+    }
+
+    /**
+     * A one week window of incomplete tasks, which is the typical overdue / sprint view.
+     */
+    @Benchmark
+    public List<Task> getTasksBetweenDates() {
+        LocalDate startDate = BenchmarkDatabase.FIRST_DUE_DATE.plusDays(ThreadLocalRandom.current().nextInt(BenchmarkDatabase.DUE_DATE_SPAN_DAYS - 7));
+        return repository.getTasksBetweenDates(startDate, startDate.plusDays(7), rangeStatuses);
+    }
+}
@@ -0,0 +1,155 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares the in-memory and log-structured storage engines with embedded Derby, with the same seeded tasks in each.
+ * Tasks aren't created in the measurement, as the in-memory engine would create millions and run out of memory;
+ * updates write the same number of tasks instead.
+ * The log-structured engine forces every write to disk, as it does by default, and is in a temporary directory.
+ * Run with four threads as well as one to see how each engine's reads scale alongside its writes:
+ * mvn -Pbenchmark compile exec:exec -Dbenchmark.args="TaskStorageEngineBenchmark -t 4"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TaskStorageEngineBenchmark {
+
+    private static final int SEED_BATCH_SIZE = 5_000;
+
+    @Param({"derby", "memory", "log"})
+    public String engine;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private BenchmarkDatabase database;
+
+    private TaskRepository repository;
+
+    private Path logDirectory;
+
+    private LogStructuredTaskRepository logRepository;
+
+    private final List<Task.Status> rangeStatuses = Arrays.asList(Task.Status.TODO, Task.Status.IN_PROGRESS);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (engine.equals("memory")) {
+            repository = seed(new InMemoryTaskRepository(), rows);
+        } else if (engine.equals("log")) {
+            try {
+                logDirectory = Files.createTempDirectory("task-log-benchmark");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            logRepository = seed(new LogStructuredTaskRepository.LogStructuredTaskRepositoryBuilder()
+                    .withDirectory(logDirectory)
+                    .build(), rows);
+            repository = logRepository;
+        } else {
+            database = BenchmarkDatabase.create("engine", rows);
+            repository = database.getTaskRepository();
+        }
+    }
+
+    /**
+     * Seed an engine with the same tasks (and so the same ids) as a seeded database.
+     */
+    private static <T extends TaskRepository> T seed(T repository, int rows) {
+        List<Task> batch = new ArrayList<>(SEED_BATCH_SIZE);
+        for (int row = 0; row < rows; row++) {
+            batch.add(BenchmarkDatabase.seedTask(row));
+            if (batch.size() == SEED_BATCH_SIZE) {
+                repository.createTasks(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            repository.createTasks(batch);
+        }
+        return repository;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (database != null) {
+            database.drop();
+        }
+        if (logRepository != null) {
+            logRepository.close();
+            try (Stream<Path> files = Files.list(logDirectory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+                Files.delete(logDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Benchmark
+    public Optional<Task> getTask() {
+        // Ids start at 1
+        return repository.getTask(ThreadLocalRandom.current().nextInt(rows) + 1);
+    }
+
+    @Benchmark
+    public Optional<Task> updateTask() {
+        int row = ThreadLocalRandom.current().nextInt(rows);
+        Task task = BenchmarkDatabase.seedTask(row);
+        task.setId(row + 1);
+        return repository.updateTask(task);
+    }
+
+    /**
+     * A one week window of incomplete tasks, which is the typical overdue / sprint view.
+     */
+    @Benchmark
+    public List<Task> getTasksBetweenDates() {
+        LocalDate startDate = randomStartDate();
+        return repository.getTasksBetweenDates(startDate, startDate.plusDays(7), rangeStatuses);
+    }
+
+    /**
+     * The first page of a year of incomplete tasks, as the API returns it by default.
+     */
+    @Benchmark
+    public void getTasksBetweenDatesPage(Blackhole blackhole) {
+        LocalDate startDate = randomStartDate();
+        repository.forEachTaskBetweenDates(startDate, startDate.plusDays(365), rangeStatuses, null, 50, blackhole::consume);
+    }
+
+    /**
+     * The ETag of a one week window, which is worked out for every conditional date range request.
+     */
+    @Benchmark
+    public String getTasksBetweenDatesVersion() {
+        LocalDate startDate = randomStartDate();
+        return repository.getTasksBetweenDatesVersion(startDate, startDate.plusDays(7), rangeStatuses);
+    }
+
+    private static LocalDate randomStartDate() {
+        return BenchmarkDatabase.FIRST_DUE_DATE.plusDays(ThreadLocalRandom.current().nextInt(BenchmarkDatabase.DUE_DATE_SPAN_DAYS - 365));
+    }
+}
@@ -0,0 +1,556 @@
+package nz.co.solnet.load;
+
+import nz.co.solnet.Main;
+import nz.co.solnet.api.metrics.LatencyHistogram;
+import nz.co.solnet.database.BenchmarkDatabase;
+import nz.co.solnet.model.Task;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives a mix of create, get, list, update and delete requests at a fixed rate, and reports throughput, latency
+ * percentiles and errors for each interval and for the whole run.
+ * <p>
+ * The load is open model: requests are started on a schedule, at the target rate, whether or not earlier ones have
+ * finished, and each request's latency is measured from when it was scheduled to start rather than when it was
+ * sent. A server that stalls is therefore charged for every request that should have been sent during the stall
+ * (it isn't hidden by coordinated omission). At most maxInFlight requests are outstanding; a request due when that
+ * many are is dropped, so an overloaded server shows up as dropped requests rather than as a lower rate. Dropped and
+ * failed requests both count towards the error rate.
+ * <p>
+ * By default the server is started in this process against a new in-memory Derby database, seeded through the API.
+ * Give url to load an already running server instead. Options are given as name=value arguments:
+ * <pre>
+ * mvn -Pbenchmark compile exec:exec -Dbenchmark.mainClass=nz.co.solnet.load.LoadTest \
+ *     -Dbenchmark.args="rate=500 duration=1800 mix=get:60,list:20,create:10,update:5,delete:5"
+ * </pre>
+ * The exit status is 1 if the error rate (or the p99 latency, if maxP99Millis is given) is above its limit, so a
+ * soak run can gate a release.
+ */
+public class LoadTest {
+
+    private static final String SHUTDOWN_TOKEN = "loadtest";
+
+    private static final Pattern ID_PATTERN = Pattern.compile("\"id\":(\\d+)");
+
+    private final Options options;
+
+    private final HttpClient client;
+
+    private final String baseUrl;
+
+    private final Operation[] schedule;
+
+    private final TaskIds taskIds = new TaskIds();
+
+    private final Semaphore inFlight;
+
+    // Per operation, for the interval being reported and for the run after the warm up
+    private final OperationStats[] intervalStats = new OperationStats[Operation.values().length];
+
+    private final OperationStats[] totalStats = new OperationStats[Operation.values().length];
+
+    private LoadTest(Options options) {
+        this.options = options;
+        this.client = HttpClient.newBuilder()
+                .version(options.http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        this.baseUrl = options.url != null ? options.url : "http://localhost:" + options.port;
+        this.schedule = options.buildSchedule();
+        this.inFlight = new Semaphore(options.maxInFlight);
+        for (Operation operation : Operation.values()) {
+            intervalStats[operation.ordinal()] = new OperationStats();
+            totalStats[operation.ordinal()] = new OperationStats();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (options.url == null) {
+            startServer(options);
+        }
+        LoadTest loadTest = new LoadTest(options);
+        boolean passed;
+        try {
+            loadTest.seed();
+            passed = loadTest.run();
+        } finally {
+            if (options.url == null) {
+                loadTest.stopServer();
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void startServer(Options options) throws Exception {
+        System.setProperty("task.api.port", String.valueOf(options.port));
+        System.setProperty("task.api.database.url", "jdbc:derby:memory:loadtest");
+        System.setProperty("task.api.shutdown.secret", SHUTDOWN_TOKEN);
+        System.setProperty("task.api.server.http2.enabled", String.valueOf(options.http2));
+        Main.main(new String[]{});
+    }
+
+    private void stopServer() throws IOException, InterruptedException {
+        client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/shutdown?token=" + SHUTDOWN_TOKEN))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    /**
+     * Create the seed tasks through the batch endpoint, and remember their ids for the requests that need one.
+     */
+    private void seed() throws IOException, InterruptedException {
+        int batchSize = 1000;
+        for (int first = 0; first < options.seedTasks; first += batchSize) {
+            StringBuilder body = new StringBuilder("[");
+            for (int row = first; row < Math.min(first + batchSize, options.seedTasks); row++) {
+                if (row > first) {
+                    body.append(',');
+                }
+                body.append(toJson(BenchmarkDatabase.seedTask(row)));
+            }
+            body.append(']');
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/api/tasks/batch"))
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString())).build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 201) {
+                throw new IllegalStateException("Seeding failed with status " + response.statusCode());
+            }
+            Matcher matcher = ID_PATTERN.matcher(response.body());
+            while (matcher.find()) {
+                taskIds.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        System.out.println("Seeded " + options.seedTasks + " tasks at " + baseUrl);
+    }
+
+    /**
+     * Send requests on schedule for the warm up and the duration, reporting every interval.
+     * @return True if the run stayed within the error rate and latency limits
+     */
+    private boolean run() throws IOException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rate;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        long reportNanos = TimeUnit.SECONDS.toNanos(options.reportIntervalSeconds);
+        long nextReport = start + reportNanos;
+
+        System.out.printf(Locale.ROOT, "Sending %d requests/s for %ds (after %ds warm up), mix %s%n",
+                options.rate, options.durationSeconds, options.warmupSeconds, options.mix);
+        try (PrintWriter csv = options.csv == null ? null : new PrintWriter(Files.newBufferedWriter(Paths.get(options.csv), StandardCharsets.UTF_8))) {
+            if (csv != null) {
+                csv.println("elapsed_s,operation,count,rate,errors,dropped,p50_ms,p90_ms,p99_ms,p999_ms,max_ms");
+            }
+            for (long n = 0; ; n++) {
+                long scheduled = start + n * intervalNanos;
+                if (scheduled >= end) {
+                    break;
+                }
+                // Report between requests, so a report never runs while one is due
+                while (nextReport <= scheduled) {
+                    waitUntil(nextReport);
+                    report(TimeUnit.NANOSECONDS.toSeconds(nextReport - start), csv);
+                    nextReport += reportNanos;
+                }
+                waitUntil(scheduled);
+                send(schedule[(int) (n % schedule.length)], scheduled, scheduled >= measureFrom);
+            }
+            waitForInFlight();
+            report(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), csv);
+        }
+        return summarise();
+    }
+
+    private static void waitUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Send a request asynchronously, so that a slow response doesn't delay the requests scheduled after it.
+     * @param scheduled When the request should have started, which its latency is measured from
+     * @param measured Whether the request counts towards the run's totals (it is after the warm up)
+     */
+    private void send(Operation operation, long scheduled, boolean measured) {
+        if (!inFlight.tryAcquire()) {
+            intervalStats[operation.ordinal()].recordDropped();
+            if (measured) {
+                totalStats[operation.ordinal()].recordDropped();
+            }
+            return;
+        }
+        HttpRequest request = operation.buildRequest(baseUrl, taskIds, options.requestTimeoutSeconds);
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            try {
+                long latency = System.nanoTime() - scheduled;
+                if (error != null || response.statusCode() >= 500) {
+                    recordError(operation, measured);
+                } else {
+                    intervalStats[operation.ordinal()].record(latency);
+                    if (measured) {
+                        totalStats[operation.ordinal()].record(latency);
+                    }
+                    if (operation == Operation.CREATE && response.statusCode() == 201) {
+                        Matcher matcher = ID_PATTERN.matcher(response.body());
+                        if (matcher.find()) {
+                            taskIds.add(Integer.parseInt(matcher.group(1)));
+                        }
+                    }
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void recordError(Operation operation, boolean measured) {
+        intervalStats[operation.ordinal()].recordError();
+        if (measured) {
+            totalStats[operation.ordinal()].recordError();
+        }
+    }
+
+    private void waitForInFlight() {
+        try {
+            if (!inFlight.tryAcquire(options.maxInFlight, options.requestTimeoutSeconds + 5, TimeUnit.SECONDS)) {
+                System.out.println("Gave up waiting for " + (options.maxInFlight - inFlight.availablePermits()) + " requests");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report(long elapsedSeconds, PrintWriter csv) {
+        System.out.printf(Locale.ROOT, "%n[%ds]%n", elapsedSeconds);
+        printHeader();
+        for (Operation operation : Operation.values()) {
+            // Swap in a new interval, so requests completing while this one is printed count towards the next
+            OperationStats stats = intervalStats[operation.ordinal()];
+            intervalStats[operation.ordinal()] = new OperationStats();
+            if (stats.getRequests() == 0) {
+                continue;
+            }
+            printRow(operation.name().toLowerCase(Locale.ROOT), stats, options.reportIntervalSeconds);
+            if (csv != null) {
+                LatencyHistogram latencies = stats.latencies;
+                csv.printf(Locale.ROOT, "%d,%s,%d,%.1f,%d,%d,%.2f,%.2f,%.2f,%.2f,%.2f%n", elapsedSeconds, operation.name().toLowerCase(Locale.ROOT),
+                        stats.getCount(), (double) stats.getCount() / options.reportIntervalSeconds, stats.getErrors(), stats.getDropped(),
+                        toMillis(latencies.getValueAtPercentile(50)), toMillis(latencies.getValueAtPercentile(90)),
+                        toMillis(latencies.getValueAtPercentile(99)), toMillis(latencies.getValueAtPercentile(99.9)),
+                        toMillis(latencies.getMaxMicros()));
+                csv.flush();
+            }
+        }
+    }
+
+    /**
+     * Print the totals after the warm up, and check them against the limits.
+     */
+    private boolean summarise() {
+        System.out.printf(Locale.ROOT, "%nSummary (%ds after warm up)%n", options.durationSeconds);
+        printHeader();
+        OperationStats all = new OperationStats();
+        for (Operation operation : Operation.values()) {
+            OperationStats stats = totalStats[operation.ordinal()];
+            if (stats.getRequests() > 0) {
+                printRow(operation.name().toLowerCase(Locale.ROOT), stats, options.durationSeconds);
+                all.add(stats);
+            }
+        }
+        printRow("all", all, options.durationSeconds);
+
+        long requests = all.getRequests();
+        double errorRate = requests == 0 ? 0 : (double) (all.getErrors() + all.getDropped()) / requests;
+        double p99Millis = toMillis(all.latencies.getValueAtPercentile(99));
+        boolean passed = true;
+        if (errorRate > options.maxErrorRate) {
+            System.out.printf(Locale.ROOT, "FAILED: error rate %.4f is above %.4f%n", errorRate, options.maxErrorRate);
+            passed = false;
+        }
+        if (options.maxP99Millis > 0 && p99Millis > options.maxP99Millis) {
+            System.out.printf(Locale.ROOT, "FAILED: p99 latency %.2fms is above %dms%n", p99Millis, options.maxP99Millis);
+            passed = false;
+        }
+        return passed;
+    }
+
+    private static void printHeader() {
+        System.out.printf(Locale.ROOT, "%-8s %10s %9s %8s %8s %9s %9s %9s %9s %9s%n",
+                "", "count", "rate/s", "errors", "dropped", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    }
+
+    private static void printRow(String name, OperationStats stats, long seconds) {
+        LatencyHistogram latencies = stats.latencies;
+        System.out.printf(Locale.ROOT, "%-8s %10d %9.1f %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+                stats.getCount(), (double) stats.getCount() / seconds, stats.getErrors(), stats.getDropped(),
+                toMillis(latencies.getValueAtPercentile(50)), toMillis(latencies.getValueAtPercentile(90)),
+                toMillis(latencies.getValueAtPercentile(99)), toMillis(latencies.getValueAtPercentile(99.9)),
+                toMillis(latencies.getMaxMicros()));
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static String toJson(Task task) {
+        return "{\"title\":\"" + task.getTitle() + "\",\"description\":\"" + task.getDescription()
+                + "\",\"status\":\"" + task.getStatus() + "\",\"due_date\":\"" + task.getDueDate() + "\"}";
+    }
+
+    /**
+     * The requests the load is made of.
+     */
+    enum Operation {
+
+        CREATE {
+            @Override
+            HttpRequest.Builder build(String baseUrl, TaskIds taskIds) {
+                Task task = BenchmarkDatabase.seedTask(ThreadLocalRandom.current().nextInt(1_000_000));
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/api/tasks")).POST(HttpRequest.BodyPublishers.ofString(toJson(task)));
+            }
+        },
+        GET {
+            @Override
+            HttpRequest.Builder build(String baseUrl, TaskIds taskIds) {
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/api/tasks/" + taskIds.random())).GET();
+            }
+        },
+        LIST {
+            @Override
+            HttpRequest.Builder build(String baseUrl, TaskIds taskIds) {
+                // A week of the seeded due dates, as a calendar view would ask for
+                LocalDate start = BenchmarkDatabase.FIRST_DUE_DATE.plusDays(ThreadLocalRandom.current().nextInt(BenchmarkDatabase.DUE_DATE_SPAN_DAYS));
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/api/tasks?startDate=" + start + "&endDate=" + start.plusDays(6) + "&limit=50")).GET();
+            }
+        },
+        UPDATE {
+            @Override
+            HttpRequest.Builder build(String baseUrl, TaskIds taskIds) {
+                Task task = BenchmarkDatabase.seedTask(ThreadLocalRandom.current().nextInt(1_000_000));
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/api/tasks/" + taskIds.random())).PUT(HttpRequest.BodyPublishers.ofString(toJson(task)));
+            }
+        },
+        DELETE {
+            @Override
+            HttpRequest.Builder build(String baseUrl, TaskIds taskIds) {
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/api/tasks/" + taskIds.removeRandom())).DELETE();
+            }
+        };
+
+        abstract HttpRequest.Builder build(String baseUrl, TaskIds taskIds);
+
+        HttpRequest buildRequest(String baseUrl, TaskIds taskIds, int timeoutSeconds) {
+            return build(baseUrl, taskIds).timeout(Duration.ofSeconds(timeoutSeconds)).build();
+        }
+    }
+
+    /**
+     * The ids of the tasks that exist, as far as this load test knows, for the requests that need one.
+     */
+    static class TaskIds {
+
+        // Guarded by this
+        private int[] ids = new int[1024];
+
+        // Guarded by this
+        private int size;
+
+        synchronized void add(int id) {
+            if (size == ids.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(ids, 0, grown, 0, size);
+                ids = grown;
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * @return A random id, or 0 (which no task has) if there are none
+         */
+        synchronized int random() {
+            return size == 0 ? 0 : ids[ThreadLocalRandom.current().nextInt(size)];
+        }
+
+        /**
+         * Remove a random id, so it isn't used again once its task has been deleted.
+         * @return The id, or 0 (which no task has) if there are none
+         */
+        synchronized int removeRandom() {
+            if (size == 0) {
+                return 0;
+            }
+            int index = ThreadLocalRandom.current().nextInt(size);
+            int id = ids[index];
+            ids[index] = ids[--size];
+            return id;
+        }
+    }
+
+    /**
+     * The latencies of the requests of one operation that got a response, the number that failed (with a 5xx
+     * status, a connection error or a timeout) and the number dropped (not sent, as too many were in flight).
+     */
+    static class OperationStats {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private final LongAdder errors = new LongAdder();
+
+        private final LongAdder dropped = new LongAdder();
+
+        void record(long nanos) {
+            latencies.record(nanos);
+        }
+
+        void recordError() {
+            errors.increment();
+        }
+
+        void recordDropped() {
+            dropped.increment();
+        }
+
+        long getCount() {
+            return latencies.getCount();
+        }
+
+        long getErrors() {
+            return errors.sum();
+        }
+
+        long getDropped() {
+            return dropped.sum();
+        }
+
+        long getRequests() {
+            return getCount() + getErrors() + getDropped();
+        }
+
+        void add(OperationStats other) {
+            latencies.add(other.latencies);
+            errors.add(other.getErrors());
+            dropped.add(other.getDropped());
+        }
+    }
+
+    /**
+     * The options, from name=value arguments.
+     */
+    static class Options {
+
+        private String url;
+
+        private int port = 8097;
+
+        private int rate = 200;
+
+        private long durationSeconds = 60;
+
+        private long warmupSeconds = 10;
+
+        private long reportIntervalSeconds = 10;
+
+        private int seedTasks = 10_000;
+
+        private String mix = "get:50,list:20,create:10,update:15,delete:5";
+
+        private int maxInFlight = 1000;
+
+        private int requestTimeoutSeconds = 30;
+
+        private boolean http2;
+
+        private String csv;
+
+        private double maxErrorRate = 0.01;
+
+        private long maxP99Millis;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Invalid option '" + arg + "', options must be name=value");
+                }
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(0, separator)) {
+                    case "url": options.url = value; break;
+                    case "port": options.port = Integer.parseInt(value); break;
+                    case "rate": options.rate = Integer.parseInt(value); break;
+                    case "duration": options.durationSeconds = Long.parseLong(value); break;
+                    case "warmup": options.warmupSeconds = Long.parseLong(value); break;
+                    case "reportInterval": options.reportIntervalSeconds = Long.parseLong(value); break;
+                    case "seed": options.seedTasks = Integer.parseInt(value); break;
+                    case "mix": options.mix = value; break;
+                    case "maxInFlight": options.maxInFlight = Integer.parseInt(value); break;
+                    case "timeout": options.requestTimeoutSeconds = Integer.parseInt(value); break;
+                    case "http2": options.http2 = Boolean.parseBoolean(value); break;
+                    case "csv": options.csv = value; break;
+                    case "maxErrorRate": options.maxErrorRate = Double.parseDouble(value); break;
+                    case "maxP99Millis": options.maxP99Millis = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option '" + arg + "'");
+                }
+            }
+            if (options.rate < 1 || options.rate > 1_000_000) {
+                throw new IllegalArgumentException("rate must be between 1 and 1000000 requests/s");
+            }
+            return options;
+        }
+
+        /**
+         * Spread the operations of the mix evenly over a schedule of 100 requests, which is sent round robin, so
+         * that the mix holds over any short interval as well as over the run.
+         */
+        Operation[] buildSchedule() {
+            Map<Operation, Integer> weights = new LinkedHashMap<>();
+            int total = 0;
+            for (String entry : mix.split(",")) {
+                String[] parts = entry.split(":");
+                int weight = Integer.parseInt(parts[1].trim());
+                weights.put(Operation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)), weight);
+                total += weight;
+            }
+            if (total <= 0) {
+                throw new IllegalArgumentException("mix must have a weight above 0");
+            }
+            Operation[] schedule = new Operation[100];
+            double[] credit = new double[Operation.values().length];
+            for (int slot = 0; slot < schedule.length; slot++) {
+                // Smooth weighted round robin: the operation furthest behind its share goes next
+                Operation next = null;
+                for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+                    credit[weight.getKey().ordinal()] += (double) weight.getValue() / total;
+                    if (next == null || credit[weight.getKey().ordinal()] > credit[next.ordinal()]) {
+                        next = weight.getKey();
+                    }
+                }
+                credit[next.ordinal()] -= 1;
+                schedule[slot] = next;
+            }
+            return schedule;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package nz.co.solnet.server;
+
+import nz.co.solnet.Main;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares handling requests on platform threads with virtual threads, with 1000 concurrent clients.
+ * Each fork starts the server in process with the thread mode under test, seeds it through the API,
+ * and then every client thread requests single tasks (with the task cache disabled, so every request uses the
+ * database) and date range queries as fast as it can.
+ * Virtual threads need the benchmark to be run on Java 21 or later, otherwise both modes use platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Threads(1000)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djdk.httpclient.connectionPoolSize=1000"})
+public class ServerThreadModeBenchmark {
+
+    private static final int PORT = 8095;
+
+    private static final int TASKS = 10_000;
+
+    private static final int BATCH_SIZE = 1_000;
+
+    @Param({"platform", "virtual"})
+    public String threadMode;
+
+    private HttpClient client;
+
+    private String baseUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("task.api.server.threadMode", threadMode);
+        System.setProperty("task.api.port", String.valueOf(PORT));
+        System.setProperty("task.api.database.url", "jdbc:derby:memory:threadmode");
+        System.setProperty("task.api.cache.enabled", "false");
+        System.setProperty("task.api.shutdown.secret", "benchmark");
+        Main.main(new String[]{});
+
+        baseUrl = "http://localhost:" + PORT;
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        seed();
+    }
+
+    private void seed() throws IOException, InterruptedException {
+        for (int batch = 0; batch < TASKS / BATCH_SIZE; batch++) {
+            StringBuilder body = new StringBuilder("[");
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                int row = batch * BATCH_SIZE + i;
+                if (i > 0) {
+                    body.append(',');
+                }
+                body.append("{\"title\":\"Task ").append(row)
+                        .append("\",\"status\":\"").append(row % 3 == 0 ? "DONE" : "TODO")
+                        .append("\",\"due_date\":\"2023-0").append(1 + row % 9).append("-1").append(row % 10).append("\"}");
+            }
+            body.append(']');
+            HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/api/tasks/batch"))
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString())).build(), HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 201) {
+                throw new IllegalStateException("Seeding failed with status " + response.statusCode());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/shutdown?token=benchmark"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    @Benchmark
+    public int getTask() throws IOException, InterruptedException {
+        // Identity values start at 1
+        int id = ThreadLocalRandom.current().nextInt(TASKS) + 1;
+        return send("/api/tasks/" + id);
+    }
+
+    @Benchmark
+    public int getTasksBetweenDates() throws IOException, InterruptedException {
+        int month = ThreadLocalRandom.current().nextInt(9) + 1;
+        return send("/api/tasks?status=TODO&startDate=2023-0" + month + "-10&endDate=2023-0" + month + "-12");
+    }
+
+    private int send(String path) throws IOException, InterruptedException {
+        HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(baseUrl + path)).GET().build(),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Request to " + path + " failed with status " + response.statusCode());
+        }
+        return response.statusCode();
+    }
+}
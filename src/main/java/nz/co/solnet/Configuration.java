@@ -0,0 +1,68 @@
+package nz.co.solnet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads application configuration.
+ * Java system properties (e.g. task.api.port) take precedence over operating system environment variables (e.g. TASK_API_PORT).
+ * This makes the application configurable when running in a container.
+ */
+public class Configuration {
+
+    private static final Logger logger = LogManager.getLogger(Configuration.class);
+
+    private Configuration() {
+    }
+
+    public static String getProperty(String propertyName, String defaultValue) {
+        return getProperty(propertyName, defaultValue, false);
+    }
+
+    public static String getProperty(String propertyName, String defaultValue, boolean isSecret) {
+        String propertyValue = System.getProperty(propertyName);
+        if (propertyValue == null || propertyValue.isBlank()) {
+            propertyName = propertyName.replace(".", "_").toUpperCase();
+            propertyValue = System.getenv().get(propertyName);
+            if (propertyValue == null || propertyValue.isBlank()) {
+                propertyValue = defaultValue;
+                logger.warn(propertyName + " environment variable not set, using default value '" + propertyValue + "'");
+            } else {
+                logValue(propertyName, propertyValue, isSecret);
+            }
+        } else {
+            logValue(propertyName, propertyValue, isSecret);
+        }
+        return propertyValue;
+    }
+
+    public static int getIntProperty(String propertyName, int defaultValue) {
+        String propertyValue = getProperty(propertyName, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(propertyValue.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + propertyName + ": '" + propertyValue + "' is not a number", e);
+        }
+    }
+
+    public static long getLongProperty(String propertyName, long defaultValue) {
+        String propertyValue = getProperty(propertyName, String.valueOf(defaultValue));
+        try {
+            return Long.parseLong(propertyValue.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + propertyName + ": '" + propertyValue + "' is not a number", e);
+        }
+    }
+
+    public static boolean getBooleanProperty(String propertyName, boolean defaultValue) {
+        return Boolean.parseBoolean(getProperty(propertyName, String.valueOf(defaultValue)).trim());
+    }
+
+    private static void logValue(String propertyName, String propertyValue, boolean isSecret) {
+        if (isSecret) {
+            logger.info(propertyName + ": *****");
+        } else {
+            logger.info(propertyName + ": " + propertyValue);
+        }
+    }
+}
@@ -34,48 +34,23 @@ public class Main {
         jettyServer.start(Integer.parseInt(port), shutdownSecret);
     }
 
-    private static String getPropertyOrDefault(String propertyName, String defaultValue, String logMessage, boolean isSecret) {
-        String propertyValue = System.getProperty(propertyName);
-        if (propertyValue == null || propertyValue.isBlank()) {
-            propertyName = propertyName.replace(".", "_").toUpperCase();
-            propertyValue = System.getenv().get(propertyName);;
-            if (propertyValue == null || propertyValue.isBlank()) {
-                propertyValue = defaultValue;
-                logger.warn(propertyName + " environment variable not set, using default value '" + propertyValue + "'");
-            } else {
-                if (isSecret) {
-                    logger.info(propertyName + ": *****");
-                } else {
-                    logger.info(propertyName + ": " + propertyValue);
-                }
-            }
-        } else {
-            if (isSecret) {
-                logger.info(propertyName + ": *****");
-            } else {
-                logger.info(propertyName + ": " + propertyValue);
-            }
-        }
-        return propertyValue;
-    }
-
     private static String getShutdownSecret() {
-        return getPropertyOrDefault("task.api.shutdown.secret", "secret", "Using shutdown secret", true);
+        return Configuration.getProperty("task.api.shutdown.secret", "secret", true);
     }
 
     private static String getDatabasePassword() {
-        return getPropertyOrDefault("task.api.database.password", "admin", "Using database password", true);
+        return Configuration.getProperty("task.api.database.password", "admin", true);
     }
 
     private static String getDatabaseUsername() {
-        return getPropertyOrDefault("task.api.database.username", "admin", "Using database username", true);
+        return Configuration.getProperty("task.api.database.username", "admin", true);
     }
 
     private static String getPort() {
-        return getPropertyOrDefault("task.api.port", "8080", "Listening on port", false);
+        return Configuration.getProperty("task.api.port", "8080");
     }
 
     private static String getDatabaseUrl() {
-        return getPropertyOrDefault("task.api.database.url", "jdbc:derby:applicationdb", "Using database url", false);
+        return Configuration.getProperty("task.api.database.url", "jdbc:derby:applicationdb");
     }
 }
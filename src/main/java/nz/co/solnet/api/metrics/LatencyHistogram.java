@@ -0,0 +1,131 @@
+package nz.co.solnet.api.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in microseconds, with buckets laid out as in HdrHistogram: linear up to 64µs,
+ * then 32 buckets per power of two, so every recorded value is within about 3% of its bucket's value.
+ * Latencies from 0 to about 2^40µs (12 days) are held in a fixed number of buckets, and larger values are clamped.
+ * <p>
+ * Recording is lock free and allocates nothing, so it is cheap enough to leave on for every request.
+ * Reading the percentiles takes a pass over the buckets, so is only done when the metrics are requested.
+ * As the buckets are read while others are recording, percentiles can be very slightly inconsistent with the count.
+ */
+public class LatencyHistogram {
+
+    // Values below SUB_BUCKET_COUNT each have their own bucket
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    private static final int MAX_SHIFT = 35;
+
+    private static final long MAX_VALUE = (1L << (MAX_SHIFT + SUB_BUCKET_BITS)) - 1;
+
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT * SUB_BUCKET_HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a latency.
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), MAX_VALUE);
+        counts.incrementAndGet(bucketIndex(micros));
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * Record every latency recorded in another histogram, as if they had been recorded in this one.
+     * @param other
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long bucketCount = other.counts.get(i);
+            if (bucketCount > 0) {
+                counts.addAndGet(i, bucketCount);
+            }
+        }
+        count.add(other.getCount());
+        sum.add(other.getSumMicros());
+        max.accumulate(other.getMaxMicros());
+    }
+
+    /**
+     * @return The number of latencies recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The sum of the latencies recorded, in microseconds
+     */
+    public long getSumMicros() {
+        return sum.sum();
+    }
+
+    /**
+     * @return The largest latency recorded, in microseconds
+     */
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Get the latency at a percentile, to within the histogram's precision.
+     * @param percentile Between 0 and 100
+     * @return The highest latency in the bucket holding the percentile, in microseconds, or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueInBucket(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Keep the value's top SUB_BUCKET_BITS bits, of which the first is always set
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + subBucket;
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,72 @@
+package nz.co.solnet.api.metrics;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+
+/**
+ * Records the latency and status of every request it filters, and the number in flight.
+ * A request handled asynchronously is recorded when it completes, rather than when the filter chain returns.
+ * A request that fails with an exception is recorded as a 500.
+ */
+public class MetricsFilter implements Filter, AsyncListener {
+
+    private static final String START_ATTRIBUTE = MetricsFilter.class.getName() + ".start";
+
+    private final RequestMetrics metrics;
+
+    public MetricsFilter(RequestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        long start = System.nanoTime();
+        int method = metrics.methodIndex(((HttpServletRequest) request).getMethod());
+        metrics.started(method);
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            if (!failed && request.isAsyncStarted()) {
+                request.setAttribute(START_ATTRIBUTE, start);
+                // This filter is the listener for every request, so nothing is created per request
+                request.getAsyncContext().addListener(this);
+            } else {
+                int status = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : ((HttpServletResponse) response).getStatus();
+                metrics.completed(method, status, System.nanoTime() - start);
+            }
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        long start = (Long) event.getSuppliedRequest().getAttribute(START_ATTRIBUTE);
+        int method = metrics.methodIndex(((HttpServletRequest) event.getSuppliedRequest()).getMethod());
+        metrics.completed(method, ((HttpServletResponse) event.getSuppliedResponse()).getStatus(), System.nanoTime() - start);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        // Recorded by onComplete
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        // Recorded by onComplete
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Only one async cycle is started per request
+    }
+}
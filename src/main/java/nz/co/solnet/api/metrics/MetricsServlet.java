@@ -0,0 +1,114 @@
+package nz.co.solnet.api.metrics;
+
+import com.google.gson.Gson;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the request metrics as JSON, or in the Prometheus text format when requested with ?format=prometheus
+ * or an Accept header of text/plain (as Prometheus sends).
+ * Latencies are given as the 50th, 90th, 99th and 99.9th percentiles, mean and maximum, for each method and
+ * status class that has had a request.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final Gson GSON = new Gson();
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final RequestMetrics metrics;
+
+    public MetricsServlet(RequestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader("Cache-Control", "no-store");
+        String accept = request.getHeader("Accept");
+        if ("prometheus".equals(request.getParameter("format")) || (accept != null && accept.startsWith("text/plain"))) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            writePrometheus(response.getWriter());
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/json");
+            response.getWriter().println(GSON.toJson(getJson()));
+        }
+    }
+
+    private Map<String, Object> getJson() {
+        List<Map<String, Object>> requests = new ArrayList<>();
+        Map<String, Long> inFlight = new LinkedHashMap<>();
+        for (int method = 0; method < RequestMetrics.METHODS.length; method++) {
+            inFlight.put(RequestMetrics.METHODS[method], metrics.getInFlight(method));
+            for (int statusClass = 0; statusClass < RequestMetrics.STATUS_CLASSES.length; statusClass++) {
+                LatencyHistogram latencies = metrics.getLatencies(method, statusClass);
+                long count = latencies.getCount();
+                if (count == 0) {
+                    continue;
+                }
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("method", RequestMetrics.METHODS[method]);
+                entry.put("status", RequestMetrics.STATUS_CLASSES[statusClass]);
+                entry.put("count", count);
+                entry.put("mean_ms", toMillis((double) latencies.getSumMicros() / count));
+                entry.put("max_ms", toMillis(latencies.getMaxMicros()));
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    entry.put(PERCENTILE_NAMES[i] + "_ms", toMillis(latencies.getValueAtPercentile(PERCENTILES[i])));
+                }
+                requests.add(entry);
+            }
+        }
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("requests", requests);
+        json.put("in_flight", inFlight);
+        return json;
+    }
+
+    private void writePrometheus(PrintWriter writer) {
+        writer.println("# HELP task_api_request_duration_seconds Latency of task API requests.");
+        writer.println("# TYPE task_api_request_duration_seconds summary");
+        for (int method = 0; method < RequestMetrics.METHODS.length; method++) {
+            for (int statusClass = 0; statusClass < RequestMetrics.STATUS_CLASSES.length; statusClass++) {
+                LatencyHistogram latencies = metrics.getLatencies(method, statusClass);
+                long count = latencies.getCount();
+                if (count == 0) {
+                    continue;
+                }
+                String labels = "method=\"" + RequestMetrics.METHODS[method] + "\",status=\"" + RequestMetrics.STATUS_CLASSES[statusClass] + "\"";
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    writer.println("task_api_request_duration_seconds{" + labels + ",quantile=\"" + QUANTILES[i] + "\"} "
+                            + toSeconds(latencies.getValueAtPercentile(PERCENTILES[i])));
+                }
+                writer.println("task_api_request_duration_seconds_sum{" + labels + "} " + toSeconds(latencies.getSumMicros()));
+                writer.println("task_api_request_duration_seconds_count{" + labels + "} " + count);
+            }
+        }
+        writer.println("# HELP task_api_requests_in_flight Task API requests currently being handled.");
+        writer.println("# TYPE task_api_requests_in_flight gauge");
+        for (int method = 0; method < RequestMetrics.METHODS.length; method++) {
+            writer.println("task_api_requests_in_flight{method=\"" + RequestMetrics.METHODS[method] + "\"} " + metrics.getInFlight(method));
+        }
+    }
+
+    private static double toMillis(double micros) {
+        return micros / 1_000;
+    }
+
+    private static double toSeconds(double micros) {
+        return micros / 1_000_000;
+    }
+}
@@ -0,0 +1,77 @@
+package nz.co.solnet.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request latencies by HTTP method and status class (2xx, 4xx etc), and the number of requests in flight by method.
+ * A histogram is created up front for every method and status class, so recording a request only updates counters.
+ */
+public class RequestMetrics {
+
+    static final String[] METHODS = {"GET", "POST", "PUT", "PATCH", "DELETE", "OTHER"};
+
+    static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    private static final int OTHER = METHODS.length - 1;
+
+    private final LatencyHistogram[][] latencies = new LatencyHistogram[METHODS.length][STATUS_CLASSES.length];
+
+    private final AtomicLongArray inFlight = new AtomicLongArray(METHODS.length);
+
+    public RequestMetrics() {
+        for (LatencyHistogram[] byStatus : latencies) {
+            for (int i = 0; i < byStatus.length; i++) {
+                byStatus[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * @param method The request's HTTP method
+     * @return The index used to record the request's metrics
+     */
+    public int methodIndex(String method) {
+        switch (method) {
+            case "GET":
+                return 0;
+            case "POST":
+                return 1;
+            case "PUT":
+                return 2;
+            case "PATCH":
+                return 3;
+            case "DELETE":
+                return 4;
+            default:
+                return OTHER;
+        }
+    }
+
+    /**
+     * Record that a request has started.
+     * @param methodIndex From methodIndex
+     */
+    public void started(int methodIndex) {
+        inFlight.incrementAndGet(methodIndex);
+    }
+
+    /**
+     * Record that a request has completed.
+     * @param methodIndex From methodIndex
+     * @param status The response status
+     * @param nanos How long the request took, in nanoseconds
+     */
+    public void completed(int methodIndex, int status, long nanos) {
+        inFlight.decrementAndGet(methodIndex);
+        int statusClass = Math.min(Math.max(status / 100 - 1, 0), STATUS_CLASSES.length - 1);
+        latencies[methodIndex][statusClass].record(nanos);
+    }
+
+    LatencyHistogram getLatencies(int methodIndex, int statusClassIndex) {
+        return latencies[methodIndex][statusClassIndex];
+    }
+
+    long getInFlight(int methodIndex) {
+        return inFlight.get(methodIndex);
+    }
+}
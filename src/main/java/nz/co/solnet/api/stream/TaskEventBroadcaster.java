@@ -0,0 +1,246 @@
+package nz.co.solnet.api.stream;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import nz.co.solnet.api.tasks.GsonLocalDateAdapter;
+import nz.co.solnet.database.TaskChange;
+import nz.co.solnet.database.TaskChangeListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Turns task changes into server-sent events and sends them to every subscriber.
+ * Each event is encoded once and the same bytes are queued for every subscriber. Events are sent from the
+ * broadcaster's own thread, so the repository is never held up by writing to subscribers.
+ * The most recent events are kept in a ring buffer, so that a subscriber that reconnects with the id of the last
+ * event it received is sent the events it missed. If they are no longer kept, it is sent a reset event instead,
+ * and should get the tasks again.
+ */
+class TaskEventBroadcaster implements TaskChangeListener {
+
+    private static final Logger logger = LogManager.getLogger(TaskEventBroadcaster.class);
+
+    private static final Gson GSON = new GsonBuilder().registerTypeAdapter(LocalDate.class, new GsonLocalDateAdapter()).create();
+
+    // How long a client waits before reconnecting
+    private static final byte[] RETRY = "retry: 3000\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] RESET = "event: reset\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int subscriberBufferEvents;
+
+    private final Set<TaskStreamSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService executor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock. The most recent events, oldest first from index oldest.
+    private final StreamEvent[] recentEvents;
+
+    // Guarded by lock
+    private int oldest;
+
+    // Guarded by lock
+    private int count;
+
+    // Guarded by lock. Numbers the events in the order they are sent, so that none is sent to a subscriber twice.
+    private long sequence;
+
+    // Guarded by lock. A bulk write gives all of its changes the same version, so they are numbered within it.
+    private long lastVersion;
+
+    // Guarded by lock
+    private int changesInVersion;
+
+    TaskEventBroadcaster(int replayEvents, int subscriberBufferEvents, long heartbeatMillis) {
+        this.recentEvents = new StreamEvent[replayEvents];
+        this.subscriberBufferEvents = subscriberBufferEvents;
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "task-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start sending events to a subscriber.
+     * @param subscriber
+     * @param lastEventId The id of the last event the subscriber received before it reconnected, or null
+     */
+    void subscribe(TaskStreamSubscriber subscriber, String lastEventId) {
+        List<byte[]> frames = new ArrayList<>();
+        frames.add(RETRY);
+        lock.lock();
+        try {
+            if (lastEventId != null) {
+                List<StreamEvent> missed = getEventsAfter(lastEventId);
+                if (missed == null || missed.size() > subscriberBufferEvents) {
+                    frames.add(RESET);
+                } else {
+                    for (StreamEvent event : missed) {
+                        frames.add(event.frame);
+                    }
+                }
+            }
+            // Events sent after this point are queued for the subscriber, unless it was already given them here
+            subscribers.add(subscriber);
+            subscriber.start(frames, sequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unsubscribe(TaskStreamSubscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void onTaskChange(TaskChange change) {
+        StreamEvent event;
+        lock.lock();
+        try {
+            if (change.getVersion() != lastVersion) {
+                lastVersion = change.getVersion();
+                changesInVersion = 0;
+            }
+            int index = changesInVersion++;
+            event = new StreamEvent(++sequence, change.getVersion(), index, encode(change, index));
+            remember(event);
+        } finally {
+            lock.unlock();
+        }
+        executor.execute(() -> send(event));
+    }
+
+    /**
+     * Stop sending events, and close every subscriber's stream.
+     */
+    void close() {
+        executor.shutdownNow();
+        for (TaskStreamSubscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    private void send(StreamEvent event) {
+        for (TaskStreamSubscriber subscriber : subscribers) {
+            if (!subscriber.offer(event.sequence, event.frame)) {
+                logger.warn("Closed the task stream of a subscriber that fell more than " + subscriberBufferEvents + " events behind");
+            }
+        }
+    }
+
+    private void heartbeat() {
+        for (TaskStreamSubscriber subscriber : subscribers) {
+            subscriber.heartbeat();
+        }
+    }
+
+    /**
+     * Encode a change as an event. Its id is the version of the change and its position among the changes made
+     * with that version, which stay the same across restarts. The data is the task, or just its id if it was
+     * deleted.
+     */
+    private static byte[] encode(TaskChange change, int index) {
+        String data;
+        if (change.getType() == TaskChange.Type.DELETED) {
+            JsonObject deleted = new JsonObject();
+            deleted.addProperty("id", change.getId());
+            data = GSON.toJson(deleted);
+        } else {
+            data = GSON.toJson(change.getTask());
+        }
+        return ("id: " + change.getVersion() + "-" + index + "\n"
+                + "event: " + change.getType().name().toLowerCase(Locale.ROOT) + "\n"
+                + "data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void remember(StreamEvent event) {
+        if (recentEvents.length == 0) {
+            return;
+        }
+        if (count == recentEvents.length) {
+            recentEvents[oldest] = event;
+            oldest = (oldest + 1) % recentEvents.length;
+        } else {
+            recentEvents[(oldest + count) % recentEvents.length] = event;
+            count++;
+        }
+    }
+
+    private StreamEvent getRecentEvent(int index) {
+        return recentEvents[(oldest + index) % recentEvents.length];
+    }
+
+    /**
+     * Find the events sent after the one with an id, by binary search of the recent events, which are in id order.
+     * @return The events, or null if the id is invalid or the event is no longer kept
+     */
+    private List<StreamEvent> getEventsAfter(String lastEventId) {
+        long version;
+        int index;
+        try {
+            int separator = lastEventId.indexOf('-');
+            version = Long.parseLong(lastEventId.substring(0, separator));
+            index = Integer.parseInt(lastEventId.substring(separator + 1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            StreamEvent event = getRecentEvent(middle);
+            int comparison = event.version != version ? Long.compare(event.version, version) : Integer.compare(event.index, index);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                List<StreamEvent> events = new ArrayList<>(count - middle - 1);
+                for (int i = middle + 1; i < count; i++) {
+                    events.add(getRecentEvent(i));
+                }
+                return events;
+            }
+        }
+        return null;
+    }
+
+    private static class StreamEvent {
+
+        private final long sequence;
+
+        private final long version;
+
+        private final int index;
+
+        private final byte[] frame;
+
+        StreamEvent(long sequence, long version, int index, byte[] frame) {
+            this.sequence = sequence;
+            this.version = version;
+            this.index = index;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package nz.co.solnet.api.stream;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import nz.co.solnet.Configuration;
+import nz.co.solnet.database.DatabaseContext;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams task changes to clients as server-sent events, so they don't have to poll for them.
+ * Each change is sent as a created, updated or deleted event. A client that reconnects with a Last-Event-ID
+ * header is sent the events it missed, or a reset event if they are no longer kept.
+ * Streams are asynchronous and are only written to when there is an event or a heartbeat to send, so an idle
+ * subscriber doesn't hold a request thread.
+ */
+public class TaskStreamServlet extends HttpServlet {
+
+    private TaskEventBroadcaster broadcaster;
+
+    private int subscriberBufferEvents;
+
+    private int maxSubscribers;
+
+    @Override
+    public void init() {
+        subscriberBufferEvents = Configuration.getIntProperty("task.api.stream.subscriberBufferEvents", 1000);
+        maxSubscribers = Configuration.getIntProperty("task.api.stream.maxSubscribers", 10_000);
+        broadcaster = new TaskEventBroadcaster(
+                Configuration.getIntProperty("task.api.stream.replayEvents", 1000),
+                subscriberBufferEvents,
+                Configuration.getLongProperty("task.api.stream.heartbeatMillis", 15_000));
+        DatabaseContext.getInstance().addTaskChangeListener(broadcaster);
+    }
+
+    @Override
+    public void destroy() {
+        DatabaseContext.getInstance().removeTaskChangeListener(broadcaster);
+        broadcaster.close();
+    }
+
+    /**
+     * Subscribe to task changes.
+     * @param request HTTP request object
+     * @param response HTTP response object
+     * @throws IOException
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (broadcaster.getSubscriberCount() >= maxSubscribers) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setContentType("application/json");
+            response.getWriter().println("{\"error\": \"There are too many subscribers, try again later\"}");
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Cache-Control", "no-cache");
+        // Stop proxies that buffer responses from holding back events
+        response.setHeader("X-Accel-Buffering", "no");
+
+        AsyncContext asyncContext = request.startAsync();
+        // The stream is open until the client goes away. A client that has gone is noticed by the heartbeats.
+        asyncContext.setTimeout(0);
+        ServletOutputStream output = response.getOutputStream();
+        TaskStreamSubscriber subscriber = new TaskStreamSubscriber(asyncContext, output, subscriberBufferEvents, broadcaster::unsubscribe);
+        asyncContext.addListener(subscriber);
+        output.setWriteListener(subscriber);
+        broadcaster.subscribe(subscriber, request.getHeader("Last-Event-ID"));
+    }
+}
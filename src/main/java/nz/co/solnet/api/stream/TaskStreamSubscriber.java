@@ -0,0 +1,174 @@
+package nz.co.solnet.api.stream;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * One client of the task event stream.
+ * Events are queued, up to a limit, and written without blocking as the container reports the client can accept
+ * more. A client that falls so far behind that the queue is full is evicted: its stream is closed, and it can
+ * reconnect with the id of the last event it received to catch up.
+ * Events are written by whichever thread queues them or the container's write callback, never by both at once.
+ */
+class TaskStreamSubscriber implements WriteListener, AsyncListener {
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final AsyncContext asyncContext;
+
+    private final ServletOutputStream output;
+
+    private final int maxQueuedEvents;
+
+    private final Consumer<TaskStreamSubscriber> onClose;
+
+    // Guarded by this
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+
+    // Guarded by this. The sequence number of the last event queued, so that no event is queued twice.
+    private long lastSequence;
+
+    // Guarded by this
+    private boolean flushNeeded;
+
+    // Guarded by this
+    private boolean closed;
+
+    TaskStreamSubscriber(AsyncContext asyncContext, ServletOutputStream output, int maxQueuedEvents, Consumer<TaskStreamSubscriber> onClose) {
+        this.asyncContext = asyncContext;
+        this.output = output;
+        this.maxQueuedEvents = maxQueuedEvents;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Start the stream with the events that are sent before any new one.
+     * @param frames The events, already encoded
+     * @param sequence The sequence number of the last event the subscriber has been given
+     */
+    synchronized void start(List<byte[]> frames, long sequence) {
+        queue.addAll(frames);
+        lastSequence = sequence;
+        drain();
+    }
+
+    /**
+     * Queue an event, unless it was already queued.
+     * @return False if the queue was full and the subscriber has been evicted
+     */
+    boolean offer(long sequence, byte[] frame) {
+        synchronized (this) {
+            if (closed || sequence <= lastSequence) {
+                return true;
+            }
+            lastSequence = sequence;
+            if (queue.size() < maxQueuedEvents) {
+                queue.add(frame);
+                drain();
+                return true;
+            }
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * Send a comment if nothing else is waiting to be sent, so that idle connections aren't timed out by the server
+     * or a proxy, and a client that has gone away is noticed.
+     */
+    synchronized void heartbeat() {
+        if (!closed && queue.isEmpty()) {
+            queue.add(HEARTBEAT);
+            drain();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+        }
+        complete();
+    }
+
+    private void complete() {
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            // Already completed
+        }
+    }
+
+    /**
+     * Write queued events for as long as the client can accept them. Writes don't block, and once the client can't
+     * accept more the container calls onWritePossible when it can.
+     * Small events are aggregated by the container, so they are flushed once the queue is empty.
+     */
+    private void drain() {
+        try {
+            while (!closed && output.isReady()) {
+                byte[] frame = queue.poll();
+                if (frame != null) {
+                    output.write(frame);
+                    flushNeeded = true;
+                } else if (flushNeeded) {
+                    flushNeeded = false;
+                    output.flush();
+                } else {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client has gone away
+            closed = true;
+            queue.clear();
+            complete();
+        }
+    }
+
+    @Override
+    public synchronized void onWritePossible() {
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        synchronized (this) {
+            closed = true;
+            queue.clear();
+        }
+        onClose.accept(this);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // Only one async cycle is started per request
+    }
+}
@@ -0,0 +1,74 @@
+package nz.co.solnet.api.tasks;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Reads a request body without blocking, as the container reports data is available, into a buffer of limited size.
+ * No thread is held while waiting for a slow client to send the body.
+ */
+class RequestBodyReader implements ReadListener {
+
+    private final ServletInputStream input;
+
+    private final int maxBodyBytes;
+
+    private final Consumer<byte[]> onBody;
+
+    private final Runnable onTooLarge;
+
+    private final Consumer<Throwable> onError;
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private final byte[] chunk = new byte[8192];
+
+    private boolean tooLarge;
+
+    /**
+     * @param input The request's input stream
+     * @param maxBodyBytes The largest body that will be read
+     * @param onBody Given the body once it has all been read
+     * @param onTooLarge Run as soon as the body is found to be larger than maxBodyBytes, instead of reading the rest
+     * @param onError Given the error if the body can't be read
+     */
+    RequestBodyReader(ServletInputStream input, int maxBodyBytes, Consumer<byte[]> onBody, Runnable onTooLarge, Consumer<Throwable> onError) {
+        this.input = input;
+        this.maxBodyBytes = maxBodyBytes;
+        this.onBody = onBody;
+        this.onTooLarge = onTooLarge;
+        this.onError = onError;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        while (!tooLarge && input.isReady()) {
+            int read = input.read(chunk);
+            if (read == -1) {
+                return;
+            }
+            if (body.size() + read > maxBodyBytes) {
+                tooLarge = true;
+                onTooLarge.run();
+                return;
+            }
+            body.write(chunk, 0, read);
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        if (!tooLarge) {
+            onBody.accept(body.toByteArray());
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        onError.accept(throwable);
+    }
+}
@@ -0,0 +1,54 @@
+package nz.co.solnet.api.tasks;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Writes a response body without blocking, as the container reports the client can accept more,
+ * then completes the asynchronous request.
+ * No thread is held while waiting for a slow client to receive the body.
+ */
+class ResponseBodyWriter implements WriteListener {
+
+    private static final Logger logger = LogManager.getLogger(ResponseBodyWriter.class);
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final AsyncContext asyncContext;
+
+    private final ServletOutputStream output;
+
+    private final byte[] body;
+
+    private int offset;
+
+    ResponseBodyWriter(AsyncContext asyncContext, ServletOutputStream output, byte[] body) {
+        this.asyncContext = asyncContext;
+        this.output = output;
+        this.body = body;
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (output.isReady()) {
+            if (offset == body.length) {
+                asyncContext.complete();
+                return;
+            }
+            int length = Math.min(CHUNK_SIZE, body.length - offset);
+            output.write(body, offset, length);
+            offset += length;
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.warn("Error writing response", throwable);
+        asyncContext.complete();
+    }
+}
@@ -4,20 +4,53 @@ import com.google.gson.Gson;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import nz.co.solnet.Configuration;
+import nz.co.solnet.database.ConnectionPoolMXBean;
 import nz.co.solnet.database.DatabaseContext;
+import nz.co.solnet.database.TaskColumns;
+import nz.co.solnet.database.TaskCursor;
 import nz.co.solnet.database.TaskRepository;
 import nz.co.solnet.model.ConstraintViolation;
 import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.util.VirtualThreads;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -31,14 +64,265 @@ public class TaskServlet extends HttpServlet {
 
     private static final Logger logger = getLogger(TaskServlet.class);
 
+    // Gson is thread safe, so a single instance is shared by all requests
+    private static final Gson GSON = new GsonBuilder().registerTypeAdapter(LocalDate.class, new GsonLocalDateAdapter()).create();
+
+    private static final int DEFAULT_PAGE_SIZE = 50;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private int maxBodyBytes;
+
+    private long asyncTimeoutMillis;
+
+    // Requests are handled here, once their body has been read, so the repository's blocking calls don't hold request threads
+    private ExecutorService repositoryExecutor;
+
+    /**
+     * Requests, other than for a collection of tasks, are handled asynchronously so that no request thread is held
+     * while a slow client sends its body or receives the response, or while the repository is in use:
+     * <ol>
+     *     <li>The body is read without blocking, into a buffer limited to task.api.request.maxBodyBytes.
+     *     A larger body is rejected with a 413 as soon as it is found to be too large.</li>
+     *     <li>The request is then handled on the repository executor, with its response written to memory.</li>
+     *     <li>The response body is then written without blocking.</li>
+     * </ol>
+     * A request that takes longer than task.api.request.timeoutMillis is answered with a 503 by the timeout. If it was
+     * still queued it is then never handled. If it was being handled it can't be stopped, so it may still be applied,
+     * and its own response is dropped.
+     * A collection of tasks is streamed to the client as it is read from the repository (see writeStreamingResponse),
+     * so GET requests for /api/tasks are still handled on the request thread.
+     * HttpServlet has no doPatch, so PATCH requests are dispatched here too.
+     * @param request HTTP request object
+     * @param response HTTP response object
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if ("GET".equals(request.getMethod()) && request.getRequestURI().equals("/api/tasks")) {
+            super.service(request, response);
+            return;
+        }
+        if (request.getContentLengthLong() > maxBodyBytes) {
+            writeResponse(response, getPayloadTooLargeViolations(), HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(asyncTimeoutMillis);
+        AtomicReference<Progress> progress = new AtomicReference<>(Progress.QUEUED);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                Progress timedOut = progress.getAndSet(Progress.ANSWERED);
+                if (timedOut == Progress.ANSWERED) {
+                    // Its response is already being written
+                    return;
+                }
+                logger.warn("Request to " + request.getRequestURI() + " timed out");
+                String error = timedOut == Progress.QUEUED
+                        ? "The request timed out before it was handled, try again later"
+                        : "The request timed out while it was being handled, and may still have been applied";
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setContentType("application/json");
+                try {
+                    // Small enough to be buffered, as the response can't be written asynchronously once it has expired
+                    response.getOutputStream().write((GSON.toJson(Collections.singletonMap("error", error))
+                            + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    logger.warn("Error writing response", e);
+                }
+                asyncContext.complete();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        ServletInputStream input = request.getInputStream();
+        input.setReadListener(new RequestBodyReader(input, maxBodyBytes,
+                body -> dispatch(asyncContext, progress, new BufferedRequest(request, body), response),
+                () -> {
+                    if (progress.compareAndSet(Progress.QUEUED, Progress.ANSWERED)) {
+                        complete(asyncContext, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, getPayloadTooLargeViolations());
+                    }
+                },
+                error -> {
+                    logger.warn("Error reading request body", error);
+                    if (progress.compareAndSet(Progress.QUEUED, Progress.ANSWERED)) {
+                        asyncContext.complete();
+                    }
+                }));
+    }
+
+    /**
+     * Handle a request, once its body has been read, on the repository executor.
+     * If the executor's queue is full the request is rejected with a 503 rather than waiting.
+     */
+    private void dispatch(AsyncContext asyncContext, AtomicReference<Progress> progress, BufferedRequest request,
+                          HttpServletResponse response) {
+        try {
+            repositoryExecutor.execute(() -> handle(asyncContext, progress, request, response));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Repository executor is saturated, rejecting request to " + request.getRequestURI());
+            if (progress.compareAndSet(Progress.QUEUED, Progress.ANSWERED)) {
+                complete(asyncContext, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        Collections.singletonMap("error", "The server is too busy, try again later"));
+            }
+        }
+    }
+
+    /**
+     * Handle a request, unless it timed out while it was queued, with its status, headers and body held in memory.
+     * They are only written to the response if the request hasn't timed out by the time it has been handled, as the
+     * timeout answers it otherwise.
+     */
+    private void handle(AsyncContext asyncContext, AtomicReference<Progress> progress, BufferedRequest request,
+                        HttpServletResponse response) {
+        if (!progress.compareAndSet(Progress.QUEUED, Progress.HANDLING)) {
+            return;
+        }
+        BufferedResponse bufferedResponse = new BufferedResponse(response);
+        try {
+            if ("PATCH".equals(request.getMethod())) {
+                doPatch(request, bufferedResponse);
+            } else {
+                super.service(request, bufferedResponse);
+            }
+        } catch (Exception e) {
+            // As JettyErrorHandler would respond if the request had been handled synchronously
+            logger.error("An error occurred: " + e.getMessage(), e);
+            bufferedResponse.reset();
+            try {
+                writeErrorResponse(bufferedResponse);
+            } catch (IOException ignored) {
+                // Written to memory
+            }
+        }
+        if (!progress.compareAndSet(Progress.HANDLING, Progress.ANSWERED)) {
+            logger.warn("Request to " + request.getRequestURI() + " was handled after it timed out, its response is dropped");
+            return;
+        }
+        bufferedResponse.writeHeaders();
+        write(asyncContext, response, bufferedResponse.getBody());
+    }
+
+    private void complete(AsyncContext asyncContext, HttpServletResponse response, int statusCode, Object data) {
+        response.setStatus(statusCode);
+        response.setContentType("application/json");
+        write(asyncContext, response, (GSON.toJson(data) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(AsyncContext asyncContext, HttpServletResponse response, byte[] body) {
+        if (body.length == 0) {
+            asyncContext.complete();
+            return;
+        }
+        try {
+            response.setContentLength(body.length);
+            ServletOutputStream output = response.getOutputStream();
+            output.setWriteListener(new ResponseBodyWriter(asyncContext, output, body));
+        } catch (IOException | IllegalStateException e) {
+            // The request may have expired just as it was handled
+            logger.warn("Error writing response", e);
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException ignored) {
+                // Already completed by the container
+            }
+        }
+    }
+
+    private List<ConstraintViolation> getPayloadTooLargeViolations() {
+        return Collections.singletonList(new ConstraintViolation("Request body must be no larger than " + maxBodyBytes + " bytes", "", null));
+    }
+
+    @Override
+    public void init() {
+        maxBodyBytes = Configuration.getIntProperty("task.api.request.maxBodyBytes", 2 * 1024 * 1024);
+        asyncTimeoutMillis = Configuration.getLongProperty("task.api.request.timeoutMillis", 30_000);
+        if ("virtual".equalsIgnoreCase(Configuration.getProperty("task.api.server.threadMode", "platform"))) {
+            repositoryExecutor = createVirtualThreadExecutor();
+        }
+        if (repositoryExecutor == null) {
+            repositoryExecutor = createPlatformThreadExecutor();
+        }
+    }
+
+    /**
+     * Handle each request on its own virtual thread, as the server's own threads are in virtual mode, so that a
+     * request waiting on the database doesn't hold a platform thread. The connection pool bounds how many use the
+     * database at once. The executor is created by reflection, as this is built for Java 11.
+     * @return The executor, or null if virtual threads aren't supported
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        if (!VirtualThreads.areSupported()) {
+            return null;
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Unable to create a virtual thread executor, handling repository calls on platform threads", e);
+            return null;
+        }
+    }
+
+    /**
+     * Handle requests on a pool of platform threads, by default one for each pooled database connection, as any more
+     * would only wait for a connection. Engines without a connection pool don't block, so they get one for each core.
+     */
+    private static ExecutorService createPlatformThreadExecutor() {
+        int defaultThreads = DatabaseContext.getInstance().getConnectionPool()
+                .map(ConnectionPoolMXBean::getMaxSize)
+                .orElse(Runtime.getRuntime().availableProcessors());
+        int threads = Configuration.getIntProperty("task.api.repository.threads", defaultThreads);
+        int queueSize = Configuration.getIntProperty("task.api.repository.queueSize", 1000);
+        AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "task-repository-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void destroy() {
+        repositoryExecutor.shutdown();
+        try {
+            if (!repositoryExecutor.awaitTermination(asyncTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                repositoryExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            repositoryExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
-     * Create a task.
+     * Create a task, or a batch of tasks when posted to /api/tasks/batch.
      * @param request HTTP request object
      * @param response HTTP response object
      * @throws IOException
      */
     public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
 
+        if (request.getRequestURI().equals("/api/tasks/batch")) {
+            doPostBatch(request, response);
+            return;
+        }
+
         TaskRepository repository = DatabaseContext.getInstance().getTaskRepository();
 
         StringBuilder buffer = new StringBuilder();
@@ -48,12 +332,10 @@ public class TaskServlet extends HttpServlet {
             buffer.append(line);
         }
 
-        Gson gson = new GsonBuilder().registerTypeAdapter(LocalDate.class, new GsonLocalDateAdapter()).create();
-
         Task task = null;
         List<ConstraintViolation> constraintViolations = new ArrayList<>();
         try {
-            task = gson.fromJson(buffer.toString(), Task.class);
+            task = GSON.fromJson(buffer.toString(), Task.class);
         } catch (DateTimeParseException e) {
             constraintViolations.add(new ConstraintViolation(e.getMessage(), buffer, e.getParsedString()));
         }
@@ -64,6 +346,7 @@ public class TaskServlet extends HttpServlet {
             constraintViolations.addAll(task.validate());
             if (constraintViolations.isEmpty()) {
                 task = repository.createTask(task);
+                setValidators(response, task);
                 writeResponse(response, task, HttpServletResponse.SC_CREATED);
             } else {
                 writeResponse(response, constraintViolations, HttpServletResponse.SC_BAD_REQUEST);
@@ -71,9 +354,88 @@ public class TaskServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Create a batch of tasks from a JSON array, in one transaction.
+     * Every task is validated first. If any task is invalid none are created, and the violations are returned
+     * for each invalid task along with its index in the array.
+     * @param request HTTP request object
+     * @param response HTTP response object
+     * @throws IOException
+     */
+    private void doPostBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        JsonArray array;
+        try {
+            JsonElement body = JsonParser.parseReader(request.getReader());
+            if (!body.isJsonArray()) {
+                writeResponse(response, Collections.singletonList(new ConstraintViolation("Request body must be a JSON array of tasks", "", null)), HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            array = body.getAsJsonArray();
+        } catch (JsonParseException e) {
+            writeResponse(response, Collections.singletonList(new ConstraintViolation("Request body must be a JSON array of tasks", "", null)), HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (array.size() < 1 || array.size() > MAX_BATCH_SIZE) {
+            writeResponse(response, Collections.singletonList(new ConstraintViolation("Batch must contain between 1 and " + MAX_BATCH_SIZE + " tasks", "", String.valueOf(array.size()))), HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        List<Task> tasks = new ArrayList<>(array.size());
+        List<BatchItemViolations> batchViolations = new ArrayList<>();
+        for (int index = 0; index < array.size(); index++) {
+            JsonElement element = array.get(index);
+            List<ConstraintViolation> constraintViolations = new ArrayList<>();
+            Task task = null;
+            try {
+                task = GSON.fromJson(element, Task.class);
+            } catch (DateTimeParseException e) {
+                constraintViolations.add(new ConstraintViolation(e.getMessage(), new StringBuilder(element.toString()), e.getParsedString()));
+            } catch (JsonParseException e) {
+                constraintViolations.add(new ConstraintViolation("Task must be a JSON object", "", element.toString()));
+            }
+            if (task != null) {
+                constraintViolations.addAll(task.validate());
+            } else if (constraintViolations.isEmpty()) {
+                constraintViolations.add(new ConstraintViolation("Task is required", "", null));
+            }
+            if (constraintViolations.isEmpty()) {
+                tasks.add(task);
+            } else {
+                batchViolations.add(new BatchItemViolations(index, constraintViolations));
+            }
+        }
+
+        if (!batchViolations.isEmpty()) {
+            writeResponse(response, batchViolations, HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        TaskRepository repository = DatabaseContext.getInstance().getTaskRepository();
+        writeResponse(response, repository.createTasks(tasks), HttpServletResponse.SC_CREATED);
+    }
+
+    /**
+     * The constraint violations of one task in a batch.
+     */
+    private static class BatchItemViolations {
+
+        private final int index;
+
+        private final List<ConstraintViolation> violations;
+
+        BatchItemViolations(int index, List<ConstraintViolation> violations) {
+            this.index = index;
+            this.violations = violations;
+        }
+    }
+
     /**
      * Get a single task, a collection of tasks, or a collection of tasks within a date range.
      * Retrieving tasks within a date range can be useful for overdue task and calendar views.
+     * Collections are paged when a limit or cursor parameter is given, in which case the tasks are wrapped in an
+     * object along with the cursor for the next page.
+     * Tasks can also be searched for by the words in their title and description, at /api/tasks/search, and the
+     * changes since a version can be got at /api/tasks/changes. The number of tasks with each status can be got at
+     * /api/tasks/counts.
      * @param request HTTP request object
      * @param response HTTP response object
      * @throws IOException
@@ -81,7 +443,13 @@ public class TaskServlet extends HttpServlet {
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         TaskRepository repository = DatabaseContext.getInstance().getTaskRepository();
 
-        if (requestHasResourceId(request)) {
+        if (request.getRequestURI().equals("/api/tasks/search")) {
+            doGetSearch(request, response, repository);
+        } else if (request.getRequestURI().equals("/api/tasks/changes")) {
+            doGetChanges(request, response, repository);
+        } else if (request.getRequestURI().equals("/api/tasks/counts")) {
+            doGetCounts(request, response);
+        } else if (requestHasResourceId(request)) {
             List<ConstraintViolation> violations = new ArrayList<>();
             Integer resourceId = getResourceIdFromRequest(request, violations);
             if (!violations.isEmpty()) {
@@ -91,7 +459,12 @@ public class TaskServlet extends HttpServlet {
             if (resourceId != null) {
                 Optional<Task> task = repository.getTask(resourceId);
                 if (task.isPresent()) {
-                    writeResponse(response, task.get(), HttpServletResponse.SC_OK);
+                    setValidators(response, task.get());
+                    if (isNotModified(request, getETag(task.get()), task.get().getLastModified())) {
+                        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    } else {
+                        writeResponse(response, task.get(), HttpServletResponse.SC_OK);
+                    }
                 } else {
                     writeResponse(response, HttpServletResponse.SC_NOT_FOUND);
                 }
@@ -103,35 +476,167 @@ public class TaskServlet extends HttpServlet {
                 String startDate = request.getParameter("startDate");
                 String endDate = request.getParameter("endDate");
                 String status = request.getParameter("status");
+                String limitParameter = request.getParameter("limit");
+                String cursorParameter = request.getParameter("cursor");
+                boolean filtered = startDate != null || endDate != null || status != null;
 
                 List<ConstraintViolation> violations = new ArrayList<>();
                 validateDateAndAddViolation("startDate", startDate, violations);
                 validateDateAndAddViolation("endDate", endDate, violations);
-                convertStringToEnumArray(status, violations);
+                List<Task.Status> statuses = convertStringToEnumArray(status, violations);
+                Integer limit = getPageSize(limitParameter, cursorParameter, violations);
+                TaskCursor cursor = getCursor(cursorParameter, filtered, violations);
 
 
                 if (!violations.isEmpty()) {
                     writeResponse(response, violations, HttpServletResponse.SC_BAD_REQUEST);
                     return;
                 }
+                LocalDate start = startDate == null ? null : LocalDate.parse(startDate);
+                LocalDate end = endDate == null ? null : LocalDate.parse(endDate);
 
-                List<Task> tasks;
-                if (startDate == null && endDate == null && status == null) {
-                    tasks = repository.getTasks();
-                } else {
-                    tasks = repository.getTasksBetweenDates(
-                            startDate == null ? null : LocalDate.parse(startDate),
-                            endDate == null ? null : LocalDate.parse(endDate),
-                            convertStringToEnumArray(status, violations));
+                // The collection's version is much cheaper to get than the collection, so check it first
+                String etag = getETag(filtered ? repository.getTasksBetweenDatesVersion(start, end, statuses) : repository.getTasksVersion());
+                response.setHeader("ETag", etag);
+                response.setHeader("Cache-Control", "no-cache");
+                if (isNotModified(request, etag, null)) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
                 }
 
-                writeResponse(response, tasks, HttpServletResponse.SC_OK);
+                // One extra task is read so that we know whether there is a next page
+                if (limit != null && !filtered) {
+                    writePagedStreamingResponse(response, limit, TaskCursor::byId,
+                            action -> repository.forEachTask(cursor, limit + 1, action));
+                } else if (limit != null) {
+                    writePagedStreamingResponse(response, limit, TaskCursor::byDueDate,
+                            action -> repository.forEachTaskBetweenDates(start, end, statuses, cursor, limit + 1, action));
+                } else if (!filtered) {
+                    writeStreamingResponse(response, repository::forEachTask);
+                } else {
+                    writeStreamingResponse(response, action -> repository.forEachTaskBetweenDates(start, end, statuses, action));
+                }
             } else {
                 writeResponse(response, HttpServletResponse.SC_BAD_REQUEST);
             }
         }
     }
 
+    /**
+     * Search for tasks containing every word of the q parameter, in their title or description.
+     * A word ending with * matches any word that starts with it. The startDate, endDate and status parameters
+     * filter the results as they do a collection of tasks.
+     * Responds with up to limit tasks (by default 50), in id order.
+     * @param request HTTP request object
+     * @param response HTTP response object
+     * @param repository Where the matching tasks are read from
+     * @throws IOException
+     */
+    private void doGetSearch(HttpServletRequest request, HttpServletResponse response, TaskRepository repository) throws IOException {
+        String query = request.getParameter("q");
+        String startDate = request.getParameter("startDate");
+        String endDate = request.getParameter("endDate");
+        String limitParameter = request.getParameter("limit");
+
+        List<ConstraintViolation> violations = new ArrayList<>();
+        if (query == null || query.trim().isEmpty()) {
+            violations.add(new ConstraintViolation("Search query is required", "q", query));
+        }
+        validateDateAndAddViolation("startDate", startDate, violations);
+        validateDateAndAddViolation("endDate", endDate, violations);
+        List<Task.Status> statuses = convertStringToEnumArray(request.getParameter("status"), violations);
+        Integer limit = getPageSize(limitParameter, null, violations);
+        if (!violations.isEmpty()) {
+            writeResponse(response, violations, HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        List<Integer> ids = DatabaseContext.getInstance().getTaskSearchIndex().search(query,
+                getDateParameter(request, "startDate"), getDateParameter(request, "endDate"), statuses,
+                limit != null ? limit : DEFAULT_PAGE_SIZE);
+        // The index only holds ids, the tasks are read through the repository (and its cache)
+        List<Task> tasks = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            repository.getTask(id).ifPresent(tasks::add);
+        }
+        response.setHeader("Cache-Control", "no-cache");
+        writeResponse(response, tasks, HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Get the tasks created, updated and deleted after the version in the since parameter (by default 0, for every
+     * task), so that a client can bring its copy of the tasks up to date without getting all of them.
+     * Responds with {"tasks": [...], "deleted": [ids], "version": n, "has_more": false}. The client keeps version
+     * and passes it as since next time, straight away if has_more is true.
+     * At most limit (by default 50) changes are returned, unless more than that were made by one bulk write.
+     * @param request HTTP request object
+     * @param response HTTP response object
+     * @param repository Where the changes are read from
+     * @throws IOException
+     */
+    private void doGetChanges(HttpServletRequest request, HttpServletResponse response, TaskRepository repository) throws IOException {
+        String sinceParameter = request.getParameter("since");
+        String limitParameter = request.getParameter("limit");
+
+        List<ConstraintViolation> violations = new ArrayList<>();
+        long since = 0;
+        if (sinceParameter != null) {
+            try {
+                since = Long.parseLong(sinceParameter);
+            } catch (NumberFormatException e) {
+                since = -1;
+            }
+            if (since < 0) {
+                violations.add(new ConstraintViolation("Since must be a version of 0 or more", "since", sinceParameter));
+            }
+        }
+        Integer limit = getPageSize(limitParameter, null, violations);
+        if (!violations.isEmpty()) {
+            writeResponse(response, violations, HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        response.setHeader("Cache-Control", "no-cache");
+        writeResponse(response, repository.getChangesSince(since, limit != null ? limit : DEFAULT_PAGE_SIZE), HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Count the tasks with each status, filtered by the startDate, endDate and status parameters as a collection of
+     * tasks is. Responds with {"counts": {"TODO": n, ...}, "total": n}, with a count for each status asked for (by
+     * default every status).
+     * The counts come from the task columns, so no task is read. Their ETag is the version of the tasks counted, the
+     * same as the collection's.
+     * @param request HTTP request object
+     * @param response HTTP response object
+     * @throws IOException
+     */
+    private void doGetCounts(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String startDate = request.getParameter("startDate");
+        String endDate = request.getParameter("endDate");
+
+        List<ConstraintViolation> violations = new ArrayList<>();
+        validateDateAndAddViolation("startDate", startDate, violations);
+        validateDateAndAddViolation("endDate", endDate, violations);
+        List<Task.Status> statuses = convertStringToEnumArray(request.getParameter("status"), violations);
+        if (!violations.isEmpty()) {
+            writeResponse(response, violations, HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        LocalDate start = getDateParameter(request, "startDate");
+        LocalDate end = getDateParameter(request, "endDate");
+        TaskColumns columns = DatabaseContext.getInstance().getTaskColumns();
+        boolean filtered = startDate != null || endDate != null || statuses != null;
+        String etag = getETag(filtered ? columns.getTasksBetweenDatesVersion(start, end, statuses) : columns.getTasksVersion());
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "no-cache");
+        if (isNotModified(request, etag, null)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        writeResponse(response, columns.countBetweenDates(start, end, statuses), HttpServletResponse.SC_OK);
+    }
+
     private List<ConstraintViolation> validateDateAndAddViolation(String dateParameterName, String date, List<ConstraintViolation> violations) {
         if (date != null) {
             try {
@@ -143,6 +648,146 @@ public class TaskServlet extends HttpServlet {
         return violations;
     }
 
+    /**
+     * Get the requested page size.
+     * @return The page size, or null if the request is not for a paged collection
+     */
+    private Integer getPageSize(String limit, String cursor, List<ConstraintViolation> violations) {
+        if (limit == null) {
+            return cursor == null ? null : DEFAULT_PAGE_SIZE;
+        }
+        try {
+            int pageSize = Integer.parseInt(limit);
+            if (pageSize >= 1 && pageSize <= MAX_PAGE_SIZE) {
+                return pageSize;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        violations.add(new ConstraintViolation("Limit must be a number between 1 and " + MAX_PAGE_SIZE, "limit", limit));
+        return null;
+    }
+
+    /**
+     * Decode the cursor parameter, checking it was issued for the same kind of collection (filtered by date or not).
+     * @return The cursor, or null if there isn't one
+     */
+    private TaskCursor getCursor(String cursor, boolean filtered, List<ConstraintViolation> violations) {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            TaskCursor taskCursor = TaskCursor.decode(cursor);
+            if (taskCursor.isByDueDate() == filtered) {
+                return taskCursor;
+            }
+        } catch (IllegalArgumentException e) {
+            // Handled below
+        }
+        violations.add(new ConstraintViolation("Invalid cursor", "cursor", cursor));
+        return null;
+    }
+
+    /**
+     * Update every task matched by the startDate, endDate and status parameters, in one transaction.
+     * Tasks are matched as they are when getting a filtered collection, and at least one filter is required.
+     * The request body is an object with the fields to set (any of title, description, due_date and status).
+     * Responds with the number of tasks updated, as {"affected": n}.
+     * @param request HTTP request object
+     * @param response HTTP response object
+     * @throws IOException
+     */
+    public void doPatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!request.getRequestURI().equals("/api/tasks")) {
+            writeResponse(response, HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        List<ConstraintViolation> violations = new ArrayList<>();
+        List<Task.Status> statuses = validateFilter(request, violations);
+        TaskPatch patch = null;
+        try {
+            JsonElement body = JsonParser.parseReader(request.getReader());
+            if (body.isJsonObject()) {
+                patch = getTaskPatch(body.getAsJsonObject(), violations);
+            } else {
+                violations.add(new ConstraintViolation("Request body must be a JSON object of the fields to set", "", null));
+            }
+        } catch (JsonParseException e) {
+            violations.add(new ConstraintViolation("Request body must be a JSON object of the fields to set", "", null));
+        }
+        if (patch != null) {
+            violations.addAll(patch.validate());
+        }
+        if (!violations.isEmpty()) {
+            writeResponse(response, violations, HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        TaskRepository repository = DatabaseContext.getInstance().getTaskRepository();
+        int affected = repository.updateTasksBetweenDates(getDateParameter(request, "startDate"), getDateParameter(request, "endDate"), statuses, patch);
+        writeResponse(response, Collections.singletonMap("affected", affected), HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Read the fields to set from a PATCH request body.
+     * @return The fields to set, or null if any of them are invalid
+     */
+    private TaskPatch getTaskPatch(JsonObject body, List<ConstraintViolation> violations) {
+        TaskPatch.TaskPatchBuilder builder = new TaskPatch.TaskPatchBuilder();
+        int violationCount = violations.size();
+        for (Map.Entry<String, JsonElement> field : body.entrySet()) {
+            JsonElement value = field.getValue();
+            String text = value.isJsonNull() ? null : value.isJsonPrimitive() ? value.getAsString() : value.toString();
+            switch (field.getKey()) {
+                case "title":
+                    builder.withTitle(text);
+                    break;
+                case "description":
+                    builder.withDescription(text);
+                    break;
+                case "due_date":
+                    try {
+                        builder.withDueDate(text == null ? null : LocalDate.parse(text));
+                    } catch (DateTimeParseException e) {
+                        violations.add(new ConstraintViolation("Date format must be YYYY-MM-DD", "due_date", text));
+                    }
+                    break;
+                case "status":
+                    try {
+                        builder.withStatus(text == null ? null : Task.Status.valueOf(text));
+                    } catch (IllegalArgumentException e) {
+                        violations.add(new ConstraintViolation("Invalid status: " + text + ". Status must be one of TODO, IN_PROGRESS or DONE", "status", text));
+                    }
+                    break;
+                default:
+                    violations.add(new ConstraintViolation("Property can't be updated", field.getKey(), text));
+            }
+        }
+        return violations.size() == violationCount ? builder.build() : null;
+    }
+
+    /**
+     * Validate the startDate, endDate and status parameters used by the bulk update and delete operations.
+     * @return The statuses to match, or null to match any status
+     */
+    private List<Task.Status> validateFilter(HttpServletRequest request, List<ConstraintViolation> violations) {
+        String startDate = request.getParameter("startDate");
+        String endDate = request.getParameter("endDate");
+        String status = request.getParameter("status");
+        if (startDate == null && endDate == null && status == null) {
+            violations.add(new ConstraintViolation("At least one of startDate, endDate or status is required", "", null));
+        }
+        validateDateAndAddViolation("startDate", startDate, violations);
+        validateDateAndAddViolation("endDate", endDate, violations);
+        return convertStringToEnumArray(status, violations);
+    }
+
+    private LocalDate getDateParameter(HttpServletRequest request, String name) {
+        String date = request.getParameter(name);
+        return date == null ? null : LocalDate.parse(date);
+    }
+
     /**
      * Update a task.
      * The task to be updated is identified by the id in the request URI.
@@ -175,9 +820,8 @@ public class TaskServlet extends HttpServlet {
             }
 
             Task task = null;
-            Gson gson = new GsonBuilder().registerTypeAdapter(LocalDate.class, new GsonLocalDateAdapter()).create();
             try {
-                task = gson.fromJson(buffer.toString(), Task.class);
+                task = GSON.fromJson(buffer.toString(), Task.class);
             } catch (DateTimeParseException e) {
                 writeResponse(response, new ConstraintViolation(e.getMessage(), buffer, e.getParsedString()), HttpServletResponse.SC_BAD_REQUEST);
                 return;
@@ -188,10 +832,10 @@ public class TaskServlet extends HttpServlet {
                 if (constraintViolations.isEmpty()) {
                     task.setId(taskId);
                     TaskRepository repository = DatabaseContext.getInstance().getTaskRepository();
-                    Optional<Task> existingTask = repository.getTask(taskId);
-                    if (existingTask.isPresent()) {
-                        Task updatedTask = repository.updateTask(task).get();
-                        writeResponse(response, updatedTask, HttpServletResponse.SC_OK);
+                    Optional<Task> updatedTask = repository.updateTask(task);
+                    if (updatedTask.isPresent()) {
+                        setValidators(response, updatedTask.get());
+                        writeResponse(response, updatedTask.get(), HttpServletResponse.SC_OK);
                     } else {
                         writeResponse(response, HttpServletResponse.SC_NOT_FOUND);
                     }
@@ -213,7 +857,9 @@ public class TaskServlet extends HttpServlet {
     }
 
     /**
-     * Delete a task.
+     * Delete a task, or every task matched by the startDate, endDate and status parameters when sent to /api/tasks.
+     * Tasks are matched as they are when getting a filtered collection, and at least one filter is required.
+     * Deleting by filter is one transaction, and responds with the number of tasks deleted, as {"affected": n}.
      * @param request HTTP request object
      * @param response HTTP response object
      * @throws IOException
@@ -226,15 +872,23 @@ public class TaskServlet extends HttpServlet {
         try {
             TaskRepository repository = DatabaseContext.getInstance().getTaskRepository();
 
-            if (requestHasResourceId(request)) {
+            if (request.getRequestURI().equals("/api/tasks")) {
+                List<ConstraintViolation> violations = new ArrayList<>();
+                List<Task.Status> statuses = validateFilter(request, violations);
+                if (!violations.isEmpty()) {
+                    writeResponse(response, violations, HttpServletResponse.SC_BAD_REQUEST);
+                    return;
+                }
+                int affected = repository.deleteTasksBetweenDates(getDateParameter(request, "startDate"), getDateParameter(request, "endDate"), statuses);
+                writeResponse(response, Collections.singletonMap("affected", affected), HttpServletResponse.SC_OK);
+            } else if (requestHasResourceId(request)) {
                 List<ConstraintViolation> violations = new ArrayList<>();
                 Integer resourceId = getResourceIdFromRequest(request, violations);
                 if (!violations.isEmpty()) {
                     writeResponse(response, violations, HttpServletResponse.SC_BAD_REQUEST);
                     return;
                 }
-                if (resourceId != null && repository.getTask(resourceId).isPresent()) {
-                    repository.deleteTask(resourceId);
+                if (resourceId != null && repository.deleteTask(resourceId)) {
                     writeResponse(response, HttpServletResponse.SC_NO_CONTENT);
                 } else {
                     writeResponse(response, HttpServletResponse.SC_NOT_FOUND);
@@ -248,10 +902,154 @@ public class TaskServlet extends HttpServlet {
     }
 
     private void writeResponse(HttpServletResponse response, Object data, int statusCode) throws IOException {
-        Gson gson = new GsonBuilder().registerTypeAdapter(LocalDate.class, new GsonLocalDateAdapter()).create();
-        String json = gson.toJson(data);
-        response.getWriter().println(json);
+        // The status must be set before writing, as a body larger than the buffer commits the response
         writeResponse(response, statusCode);
+        String json = GSON.toJson(data);
+        response.getWriter().println(json);
+    }
+
+    /**
+     * Write a JSON array of tasks to the response as they are produced by the source, rather than building
+     * the whole collection (and its JSON string) in memory first. Memory use is therefore constant regardless
+     * of collection size and the first bytes reach the client as soon as the first row is read.
+     * As the response is committed once the buffer fills, a failure part way through cannot change the status code.
+     * @param response HTTP response object
+     * @param source Supplies each task in the collection to the given action
+     * @throws IOException
+     */
+    private void writeStreamingResponse(HttpServletResponse response, Consumer<Consumer<Task>> source) throws IOException {
+        writeResponse(response, HttpServletResponse.SC_OK);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+        try (JsonWriter jsonWriter = GSON.newJsonWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8))) {
+            jsonWriter.beginArray();
+            source.accept(task -> GSON.toJson(task, Task.class, jsonWriter));
+            jsonWriter.endArray();
+        }
+    }
+
+    /**
+     * Write a page of tasks as {"tasks": [...], "next_cursor": "..."}, streaming the tasks as they are produced.
+     * The source is expected to produce up to limit + 1 tasks, the extra task only signals that there is a next page
+     * and is not written. next_cursor is omitted on the last page.
+     * @param response HTTP response object
+     * @param limit The page size
+     * @param cursorFactory Creates the cursor for the position after a task
+     * @param source Supplies each task in the page to the given action
+     * @throws IOException
+     */
+    private void writePagedStreamingResponse(HttpServletResponse response, int limit, Function<Task, TaskCursor> cursorFactory,
+                                             Consumer<Consumer<Task>> source) throws IOException {
+        writeResponse(response, HttpServletResponse.SC_OK);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+        try (JsonWriter jsonWriter = GSON.newJsonWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8))) {
+            jsonWriter.beginObject();
+            jsonWriter.name("tasks");
+            jsonWriter.beginArray();
+            PageWriter pageWriter = new PageWriter(jsonWriter, limit);
+            source.accept(pageWriter);
+            jsonWriter.endArray();
+            if (pageWriter.hasNextPage()) {
+                jsonWriter.name("next_cursor").value(cursorFactory.apply(pageWriter.lastWritten).encode());
+            }
+            jsonWriter.endObject();
+        }
+    }
+
+    /**
+     * How far an asynchronously handled request has got. Whichever of its handling and its timeout moves it to
+     * ANSWERED writes its response, so the response is only ever changed by one thread.
+     */
+    private enum Progress {
+        QUEUED,
+        HANDLING,
+        ANSWERED
+    }
+
+    /**
+     * Writes up to limit tasks and remembers the last one written so the next page's cursor can be created.
+     */
+    private static class PageWriter implements Consumer<Task> {
+
+        private final JsonWriter jsonWriter;
+
+        private final int limit;
+
+        private int count;
+
+        private Task lastWritten;
+
+        PageWriter(JsonWriter jsonWriter, int limit) {
+            this.jsonWriter = jsonWriter;
+            this.limit = limit;
+        }
+
+        @Override
+        public void accept(Task task) {
+            if (count < limit) {
+                GSON.toJson(task, Task.class, jsonWriter);
+                lastWritten = task;
+            }
+            count++;
+        }
+
+        boolean hasNextPage() {
+            return count > limit;
+        }
+    }
+
+    /**
+     * Set the ETag and Last-Modified headers of a single task.
+     * Cache-Control: no-cache lets clients keep the task but makes them check it is unchanged before using it.
+     */
+    private void setValidators(HttpServletResponse response, Task task) {
+        response.setHeader("ETag", getETag(task));
+        response.setDateHeader("Last-Modified", task.getLastModified().toEpochMilli());
+        response.setHeader("Cache-Control", "no-cache");
+    }
+
+    private static String getETag(Task task) {
+        return getETag(Long.toString(task.getVersion(), 36));
+    }
+
+    private static String getETag(String version) {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * Whether the client already has the current representation, according to the If-None-Match header or,
+     * if there isn't one, the If-Modified-Since header.
+     * @param request HTTP request object
+     * @param etag The current ETag
+     * @param lastModified When the resource was last modified, or null if it isn't known
+     * @return
+     */
+    private boolean isNotModified(HttpServletRequest request, String etag, Instant lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                // Weak comparison, as If-None-Match requires
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified != null) {
+            try {
+                long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+                // HTTP dates only have a resolution of seconds
+                return ifModifiedSince != -1 && lastModified.getEpochSecond() <= ifModifiedSince / 1000;
+            } catch (IllegalArgumentException e) {
+                // An invalid date is ignored
+            }
+        }
+        return false;
     }
 
     private void writeResponse(HttpServletResponse response, int statusCode) throws IOException {
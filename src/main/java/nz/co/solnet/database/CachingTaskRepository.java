@@ -0,0 +1,387 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
+
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Read-through cache of single tasks in front of another TaskRepository.
+ * Tasks are held up to a maximum number of entries, and expire after a time to live. The cache is split into segments
+ * by task id, each with its own lock, so that reads of different tasks rarely wait for each other. Each segment holds
+ * its share of the entries in least recently used order, which approximates least recently used across the cache.
+ * Only reads put tasks in the cache. Cached tasks are replaced and removed by the changes the repository publishes,
+ * which arrive in version order, so a slow write can never put an older task over a newer one or bring back a task
+ * that was deleted. A write also removes the cached task if it is older than what the write returned, so that its
+ * caller reads its own write even before the change has been published.
+ * Collection queries are not cached and always go to the underlying repository.
+ * Tasks are copied in and out of the cache, so callers can't change a cached task by modifying the one they were given.
+ */
+class CachingTaskRepository implements TaskRepository, TaskCacheMXBean, TaskChangeListener {
+
+    private final TaskRepository repository;
+
+    private final int maxEntries;
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final long timeToLiveNanos;
+
+    // A power of two in length, so a task's segment is the low bits of its id
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private CachingTaskRepository(TaskRepository repository, int maxEntries, long timeToLiveMillis) {
+        this.repository = repository;
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        // No more segments than entries, so that every segment can hold at least one
+        this.segments = new Segment[Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxEntries))];
+        for (int i = 0; i < segments.length; i++) {
+            // The remainder is spread over the first segments, so the shares add up to maxEntries
+            segments[i] = new Segment(maxEntries / segments.length + (i < maxEntries % segments.length ? 1 : 0));
+        }
+    }
+
+    /**
+     * Created tasks are not cached until they are read, so that an import doesn't evict the tasks that are being read.
+     * @param task
+     * @return
+     */
+    @Override
+    public Task createTask(Task task) {
+        return repository.createTask(task);
+    }
+
+    @Override
+    public List<Task> createTasks(List<Task> tasks) {
+        return repository.createTasks(tasks);
+    }
+
+    /**
+     * Get a task from the cache, or from the underlying repository if it isn't cached or has expired.
+     * Tasks that don't exist are not cached.
+     * @param id The id of the task to get.
+     * @return
+     */
+    @Override
+    public Optional<Task> getTask(int id) {
+        Segment segment = getSegment(id);
+        long writeCountBeforeRead;
+        segment.lock.lock();
+        try {
+            CacheEntry entry = segment.entries.get(id);
+            if (entry != null) {
+                if (entry.expiresAt - System.nanoTime() > 0) {
+                    hits.increment();
+                    return Optional.of(copy(entry.task));
+                }
+                segment.entries.remove(id);
+                evictions.increment();
+            }
+            writeCountBeforeRead = segment.writeCount;
+        } finally {
+            segment.lock.unlock();
+        }
+        misses.increment();
+
+        Optional<Task> task = repository.getTask(id);
+        if (task.isPresent()) {
+            segment.lock.lock();
+            try {
+                if (segment.writeCount == writeCountBeforeRead) {
+                    segment.entries.put(id, new CacheEntry(copy(task.get()), System.nanoTime() + timeToLiveNanos));
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return task;
+    }
+
+    @Override
+    public List<Task> getTasks() {
+        return repository.getTasks();
+    }
+
+    @Override
+    public List<Task> getTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        return repository.getTasksBetweenDates(startDate, endDate, statuses);
+    }
+
+    @Override
+    public void forEachTask(Consumer<Task> action) {
+        repository.forEachTask(action);
+    }
+
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, Consumer<Task> action) {
+        repository.forEachTaskBetweenDates(startDate, endDate, statuses, action);
+    }
+
+    @Override
+    public void forEachTask(TaskCursor after, int limit, Consumer<Task> action) {
+        repository.forEachTask(after, limit, action);
+    }
+
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskCursor after, int limit, Consumer<Task> action) {
+        repository.forEachTaskBetweenDates(startDate, endDate, statuses, after, limit, action);
+    }
+
+    @Override
+    public String getTasksVersion() {
+        return repository.getTasksVersion();
+    }
+
+    @Override
+    public String getTasksBetweenDatesVersion(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        return repository.getTasksBetweenDatesVersion(startDate, endDate, statuses);
+    }
+
+    @Override
+    public TaskChanges getChangesSince(long since, int limit) {
+        return repository.getChangesSince(since, limit);
+    }
+
+    @Override
+    public Optional<Task> updateTask(Task task) {
+        try {
+            Optional<Task> updatedTask = repository.updateTask(task);
+            if (updatedTask.isPresent()) {
+                invalidateOlderThan(updatedTask.get());
+            } else {
+                invalidate(task.getId());
+            }
+            return updatedTask;
+        } catch (RuntimeException e) {
+            // The update may or may not have been applied
+            invalidate(task.getId());
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean deleteTask(int taskId) {
+        try {
+            return repository.deleteTask(taskId);
+        } finally {
+            invalidate(taskId);
+        }
+    }
+
+    /**
+     * The tasks changed by a bulk update are replaced in the cache by the changes the repository publishes.
+     */
+    @Override
+    public int updateTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskPatch patch) {
+        return repository.updateTasksBetweenDates(startDate, endDate, statuses, patch);
+    }
+
+    /**
+     * The tasks removed by a bulk delete are removed from the cache by the changes the repository publishes.
+     */
+    @Override
+    public int deleteTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        return repository.deleteTasksBetweenDates(startDate, endDate, statuses);
+    }
+
+    /**
+     * Replace a cached task with a newer version of it, or remove it when it is deleted. Tasks that aren't cached
+     * aren't added, as they may never be read.
+     * @param change
+     */
+    @Override
+    public void onTaskChange(TaskChange change) {
+        Segment segment = getSegment(change.getId());
+        segment.lock.lock();
+        try {
+            segment.writeCount++;
+            CacheEntry entry = segment.entries.get(change.getId());
+            if (entry == null || entry.task.getVersion() >= change.getVersion()) {
+                return;
+            }
+            if (change.getType() == TaskChange.Type.DELETED) {
+                segment.entries.remove(change.getId());
+            } else {
+                segment.entries.put(change.getId(), new CacheEntry(copy(change.getTask()), System.nanoTime() + timeToLiveNanos));
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove every cached task, for when tasks have been changed without going through this repository.
+     */
+    void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.writeCount++;
+                segment.entries.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Remove a task that was written, unless its change has already replaced it with the version written or a later one.
+     */
+    private void invalidateOlderThan(Task task) {
+        Segment segment = getSegment(task.getId());
+        segment.lock.lock();
+        try {
+            segment.writeCount++;
+            CacheEntry entry = segment.entries.get(task.getId());
+            if (entry != null && entry.task.getVersion() < task.getVersion()) {
+                segment.entries.remove(task.getId());
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private void invalidate(int taskId) {
+        Segment segment = getSegment(taskId);
+        segment.lock.lock();
+        try {
+            segment.writeCount++;
+            segment.entries.remove(taskId);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private Segment getSegment(int taskId) {
+        return segments[taskId & (segments.length - 1)];
+    }
+
+    private static Task copy(Task task) {
+        return new Task.TaskBuilder()
+                .withId(task.getId())
+                .withTitle(task.getTitle())
+                .withDescription(task.getDescription())
+                .withDueDate(task.getDueDate())
+                .withCreationDate(task.getCreationDate())
+                .withStatus(task.getStatus() == null ? null : task.getStatus().getDbName())
+                .withVersion(task.getVersion())
+                .withLastModified(task.getLastModified())
+                .build();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.entries.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * The cached tasks whose ids fall in one segment, in least recently used order, and the lock that guards them.
+     */
+    private final class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // Guarded by lock
+        private final LinkedHashMap<Integer, CacheEntry> entries;
+
+        // Guarded by lock. Incremented on every write and change to a task in the segment, so that a lookup which
+        // raced one doesn't cache what it read.
+        private long writeCount;
+
+        Segment(int maxEntries) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, CacheEntry> eldest) {
+                    if (size() > maxEntries) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final Task task;
+
+        private final long expiresAt;
+
+        CacheEntry(Task task, long expiresAt) {
+            this.task = task;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    static class CachingTaskRepositoryBuilder {
+
+        private int maxEntries = 10_000;
+
+        private long timeToLiveMillis = 60_000;
+
+        CachingTaskRepositoryBuilder withMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        CachingTaskRepositoryBuilder withTimeToLiveMillis(long timeToLiveMillis) {
+            this.timeToLiveMillis = timeToLiveMillis;
+            return this;
+        }
+
+        CachingTaskRepository build(TaskRepository repository) {
+            if (maxEntries < 1) {
+                throw new IllegalArgumentException("Maximum cache entries must be at least 1");
+            }
+            if (timeToLiveMillis < 1) {
+                throw new IllegalArgumentException("Cache time to live must be at least 1 millisecond");
+            }
+            return new CachingTaskRepository(repository, maxEntries, timeToLiveMillis);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package nz.co.solnet.database;
+
+/**
+ * The count, highest version and sum of the versions of a collection of tasks, in the same form as the database's
+ * collection versions, for the storage engines that keep their indexes in memory.
+ * A write always gives a version higher than any before it, so any change to the collection raises the highest
+ * version, and the collection version changes.
+ * Instances are immutable, so an engine can replace one as a whole and readers always see the three values together.
+ */
+final class CollectionVersion {
+
+    static final CollectionVersion EMPTY = new CollectionVersion(0, 0, 0);
+
+    private final long count;
+
+    private final long max;
+
+    private final long sum;
+
+    private CollectionVersion(long count, long max, long sum) {
+        this.count = count;
+        this.max = max;
+        this.sum = sum;
+    }
+
+    static CollectionVersion of(long count, long max, long sum) {
+        return new CollectionVersion(count, max, sum);
+    }
+
+    /**
+     * @return The version after a task with the given version was added to the collection
+     */
+    CollectionVersion add(long version) {
+        return new CollectionVersion(count + 1, Math.max(max, version), sum + version);
+    }
+
+    /**
+     * @return The version after a task in the collection was replaced by a write with the given version
+     */
+    CollectionVersion replace(long previousVersion, long version) {
+        return new CollectionVersion(count, Math.max(max, version), sum - previousVersion + version);
+    }
+
+    /**
+     * @return The version after a task was removed from the collection by a write with the given version
+     */
+    CollectionVersion remove(long previousVersion, long version) {
+        return new CollectionVersion(count - 1, Math.max(max, version), sum - previousVersion);
+    }
+
+    /**
+     * @return The version after every task was removed by a write with the given version
+     */
+    CollectionVersion clear(long version) {
+        return new CollectionVersion(0, Math.max(max, version), 0);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(count, 36) + "-" + Long.toString(max, 36) + "-" + Long.toString(sum, 36);
+    }
+}
@@ -0,0 +1,124 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Answers collection versions from the task columns, in front of another TaskRepository.
+ * The database works out a collection's version by scanning every row of it, on every request for the collection,
+ * even one that is answered with Not Modified. The columns give the same version from a scan of a few primitive
+ * arrays, without a connection or a statement.
+ * The columns are kept up to date with the changes the engine publishes, which lag the writes it has committed while
+ * writes are in progress. A version from them is only used when the engine has published every committed write,
+ * otherwise the version is worked out by the underlying repository, so a client is never told a collection it hasn't
+ * seen is Not Modified.
+ * Everything else goes to the underlying repository. Tasks are still read from it, as a page of tasks is read by
+ * an index and materializes only the tasks returned.
+ */
+class ColumnarTaskRepository implements TaskRepository {
+
+    private final TaskRepository repository;
+
+    private final TaskColumns columns;
+
+    private final TaskRepositoryImpl engine;
+
+    /**
+     * @param repository The repository to read and write tasks with
+     * @param columns The task columns, which listen to the engine's changes
+     * @param engine The engine that stores the tasks, behind the repository
+     */
+    ColumnarTaskRepository(TaskRepository repository, TaskColumns columns, TaskRepositoryImpl engine) {
+        this.repository = repository;
+        this.columns = columns;
+        this.engine = engine;
+    }
+
+    @Override
+    public Task createTask(Task task) {
+        return repository.createTask(task);
+    }
+
+    @Override
+    public List<Task> createTasks(List<Task> tasks) {
+        return repository.createTasks(tasks);
+    }
+
+    @Override
+    public Optional<Task> getTask(int id) {
+        return repository.getTask(id);
+    }
+
+    @Override
+    public List<Task> getTasks() {
+        return repository.getTasks();
+    }
+
+    @Override
+    public List<Task> getTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        return repository.getTasksBetweenDates(startDate, endDate, statuses);
+    }
+
+    @Override
+    public void forEachTask(Consumer<Task> action) {
+        repository.forEachTask(action);
+    }
+
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, Consumer<Task> action) {
+        repository.forEachTaskBetweenDates(startDate, endDate, statuses, action);
+    }
+
+    @Override
+    public void forEachTask(TaskCursor after, int limit, Consumer<Task> action) {
+        repository.forEachTask(after, limit, action);
+    }
+
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskCursor after, int limit, Consumer<Task> action) {
+        repository.forEachTaskBetweenDates(startDate, endDate, statuses, after, limit, action);
+    }
+
+    @Override
+    public String getTasksVersion() {
+        // Checked first, so the columns then hold every write committed before the request
+        return engine.isPublished() ? columns.getTasksVersion() : repository.getTasksVersion();
+    }
+
+    @Override
+    public String getTasksBetweenDatesVersion(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        return engine.isPublished()
+                ? columns.getTasksBetweenDatesVersion(startDate, endDate, statuses)
+                : repository.getTasksBetweenDatesVersion(startDate, endDate, statuses);
+    }
+
+    @Override
+    public TaskChanges getChangesSince(long since, int limit) {
+        return repository.getChangesSince(since, limit);
+    }
+
+    @Override
+    public Optional<Task> updateTask(Task task) {
+        return repository.updateTask(task);
+    }
+
+    @Override
+    public boolean deleteTask(int taskId) {
+        return repository.deleteTask(taskId);
+    }
+
+    @Override
+    public int updateTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskPatch patch) {
+        return repository.updateTasksBetweenDates(startDate, endDate, statuses, patch);
+    }
+
+    @Override
+    public int deleteTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        return repository.deleteTasksBetweenDates(startDate, endDate, statuses);
+    }
+}
@@ -0,0 +1,647 @@
+package nz.co.solnet.database;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of database connections.
+ * At most maxSize connections are ever open. When they are all in use, callers wait up to the acquire timeout for one
+ * to be returned, which gives back-pressure under bursts rather than opening ever more connections.
+ * Idle connections are reused most recently used first, validated if they have been idle for a while, and closed
+ * once they have been idle for longer than the idle timeout (keeping at least minIdle open).
+ * Only java.util.concurrent primitives are used for waiting, so waiting threads (including virtual threads) park
+ * rather than block in a monitor.
+ * <p>
+ * Each connection keeps the statements prepared on it, up to statementCacheSize, and hands the same statement out
+ * again when the same SQL is prepared, so a statement is only compiled once per connection.
+ * Closing a statement returns it to the connection's cache.
+ */
+class ConnectionPool implements DataSource, ConnectionPoolMXBean {
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private static final long MAX_EVICTION_INTERVAL_MILLIS = 30_000;
+
+    private final Logger logger = LogManager.getLogger(ConnectionPool.class);
+
+    private final DataSource dataSource;
+
+    private final int maxSize;
+
+    private final int minIdle;
+
+    private final long acquireTimeoutMillis;
+
+    private final long idleTimeoutNanos;
+
+    private final long validationIntervalNanos;
+
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+
+    // Most recently returned connections are at the head of the deque
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    private final LongAdder acquireTimeouts = new LongAdder();
+
+    private final LongAdder statementCacheHits = new LongAdder();
+
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    private final ScheduledExecutorService evictor;
+
+    private volatile boolean closed;
+
+    private ConnectionPool(DataSource dataSource, ConnectionPoolBuilder builder) {
+        this.dataSource = dataSource;
+        this.maxSize = builder.maxSize;
+        this.minIdle = Math.min(builder.minIdle, builder.maxSize);
+        this.acquireTimeoutMillis = builder.acquireTimeoutMillis;
+        this.statementCacheSize = builder.statementCacheSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(builder.idleTimeoutMillis);
+        this.validationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.validationIntervalMillis);
+        this.permits = new Semaphore(maxSize, true);
+
+        for (int i = 0; i < minIdle; i++) {
+            try {
+                idleConnections.offerFirst(new PooledConnection(dataSource.getConnection()));
+            } catch (SQLException e) {
+                logger.error("Error in opening initial pooled connection", e);
+                break;
+            }
+        }
+
+        long evictionIntervalMillis = Math.max(1, Math.min(builder.idleTimeoutMillis, MAX_EVICTION_INTERVAL_MILLIS));
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, evictionIntervalMillis, evictionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connection from the pool, waiting up to the acquire timeout if all connections are in use.
+     * Closing the returned connection returns it to the pool.
+     * @return
+     * @throws SQLTransientConnectionException if no connection became available within the acquire timeout
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+        if (!acquired) {
+            acquireTimeouts.increment();
+            throw new SQLTransientConnectionException("Timed out after " + acquireTimeoutMillis + "ms waiting for a database connection");
+        }
+
+        try {
+            PooledConnection pooledConnection = borrowIdleOrCreate();
+            activeConnections.incrementAndGet();
+            return pooledConnection.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection borrowIdleOrCreate() throws SQLException {
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null) {
+            if (isUsable(pooledConnection)) {
+                return pooledConnection;
+            }
+            pooledConnection.closePhysicalConnection();
+        }
+        return new PooledConnection(dataSource.getConnection());
+    }
+
+    /**
+     * Connections that have been idle for longer than the validation interval are checked before being handed out.
+     */
+    private boolean isUsable(PooledConnection pooledConnection) {
+        if (System.nanoTime() - pooledConnection.lastReturnedNanos < validationIntervalNanos) {
+            return true;
+        }
+        try {
+            return pooledConnection.physicalConnection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooledConnection) {
+        activeConnections.decrementAndGet();
+        try {
+            if (!closed && pooledConnection.reset()) {
+                pooledConnection.lastReturnedNanos = System.nanoTime();
+                idleConnections.offerFirst(pooledConnection);
+            } else {
+                pooledConnection.closePhysicalConnection();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Close connections that have been idle for longer than the idle timeout, oldest first, keeping at least minIdle.
+     */
+    private void evictIdleConnections() {
+        try {
+            long now = System.nanoTime();
+            while (idleConnections.size() > minIdle) {
+                PooledConnection oldest = idleConnections.pollLast();
+                if (oldest == null) {
+                    return;
+                }
+                if (now - oldest.lastReturnedNanos < idleTimeoutNanos) {
+                    idleConnections.offerLast(oldest);
+                    return;
+                }
+                oldest.closePhysicalConnection();
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error in evicting idle connections", e);
+        }
+    }
+
+    /**
+     * Close all idle connections and stop handing out new ones.
+     * Connections that are currently borrowed are closed when they are returned.
+     */
+    void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null) {
+            pooledConnection.closePhysicalConnection();
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    @Override
+    public int getThreadsAwaitingConnection() {
+        return permits.getQueueLength();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getAcquireTimeouts() {
+        return acquireTimeouts.sum();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pooled connections all use the configured credentials");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+
+    /**
+     * A physical connection owned by the pool.
+     */
+    private class PooledConnection {
+
+        private final Connection physicalConnection;
+
+        private final int defaultTransactionIsolation;
+
+        private volatile long lastReturnedNanos = System.nanoTime();
+
+        // Prepared statements by the arguments they were prepared with, least recently used first.
+        // Only used by the connection's borrower, or by the pool while the connection is idle.
+        private final LinkedHashMap<List<Object>, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+        PooledConnection(Connection physicalConnection) throws SQLException {
+            this.physicalConnection = physicalConnection;
+            this.defaultTransactionIsolation = physicalConnection.getTransactionIsolation();
+        }
+
+        /**
+         * Each borrower gets its own handle so that a handle can't be used after it has been closed (returned),
+         * even though the physical connection has been handed to someone else.
+         */
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new ConnectionHandle(this));
+        }
+
+        /**
+         * Prepare a statement, reusing the one prepared earlier with the same arguments if it isn't in use.
+         * @param connectionHandle The connection the statement is prepared on, which the statement returns from getConnection
+         * @param args The arguments to prepareStatement, all of them SQL text or int options
+         */
+        PreparedStatement prepareStatement(Connection connectionHandle, Object[] args) throws SQLException {
+            List<Object> key = Arrays.asList(args);
+            CachedStatement cachedStatement = statements.get(key);
+            if (cachedStatement != null && !cachedStatement.inUse) {
+                statementCacheHits.increment();
+                return cachedStatement.newHandle(connectionHandle);
+            }
+            statementCacheMisses.increment();
+            PreparedStatement statement = prepare(args);
+            if (cachedStatement != null) {
+                // The cached statement is already in use by this borrower, so this one isn't kept
+                return statement;
+            }
+            cachedStatement = new CachedStatement(this, key, statement);
+            statements.put(key, cachedStatement);
+            evictStatements();
+            return cachedStatement.newHandle(connectionHandle);
+        }
+
+        private PreparedStatement prepare(Object[] args) throws SQLException {
+            String sql = (String) args[0];
+            switch (args.length) {
+                case 1:
+                    return physicalConnection.prepareStatement(sql);
+                case 2:
+                    return physicalConnection.prepareStatement(sql, (Integer) args[1]);
+                case 3:
+                    return physicalConnection.prepareStatement(sql, (Integer) args[1], (Integer) args[2]);
+                default:
+                    return physicalConnection.prepareStatement(sql, (Integer) args[1], (Integer) args[2], (Integer) args[3]);
+            }
+        }
+
+        /**
+         * Close the least recently used statements that aren't in use while there are more than statementCacheSize.
+         */
+        private void evictStatements() {
+            Iterator<CachedStatement> iterator = statements.values().iterator();
+            while (statements.size() > statementCacheSize && iterator.hasNext()) {
+                CachedStatement cachedStatement = iterator.next();
+                if (!cachedStatement.inUse) {
+                    iterator.remove();
+                    cachedStatement.closePhysicalStatement();
+                }
+            }
+        }
+
+        /**
+         * Return the connection to the state a new borrower expects.
+         * @return false if the connection is no longer usable
+         */
+        boolean reset() {
+            // Statements the borrower didn't close are returned to the cache
+            for (CachedStatement cachedStatement : new ArrayList<>(statements.values())) {
+                cachedStatement.release();
+            }
+            try {
+                if (physicalConnection.isClosed()) {
+                    return false;
+                }
+                if (!physicalConnection.getAutoCommit()) {
+                    physicalConnection.rollback();
+                    physicalConnection.setAutoCommit(true);
+                }
+                if (physicalConnection.getTransactionIsolation() != defaultTransactionIsolation) {
+                    physicalConnection.setTransactionIsolation(defaultTransactionIsolation);
+                }
+                physicalConnection.clearWarnings();
+                return true;
+            } catch (SQLException e) {
+                logger.warn("Discarding pooled connection that could not be reset", e);
+                return false;
+            }
+        }
+
+        void closePhysicalConnection() {
+            // Closing the connection closes its statements
+            statements.clear();
+            try {
+                physicalConnection.close();
+            } catch (SQLException e) {
+                logger.warn("Error in closing pooled connection", e);
+            }
+        }
+    }
+
+    /**
+     * The connection handed to a borrower. Closing it returns the physical connection to the pool.
+     */
+    private class ConnectionHandle implements InvocationHandler {
+
+        private final PooledConnection pooledConnection;
+
+        private volatile boolean closed;
+
+        ConnectionHandle(PooledConnection pooledConnection) {
+            this.pooledConnection = pooledConnection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(pooledConnection);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooledConnection.physicalConnection;
+                case "prepareStatement":
+                    if (closed) {
+                        throw new SQLException("Connection is closed");
+                    }
+                    if (statementCacheSize > 0 && isCacheable(args)) {
+                        return pooledConnection.prepareStatement((Connection) proxy, args);
+                    }
+                    // Otherwise prepared on the physical connection, as below
+                default:
+                    if (closed) {
+                        throw new SQLException("Connection is closed");
+                    }
+                    try {
+                        return method.invoke(pooledConnection.physicalConnection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+
+    /**
+     * Statements are cached by the arguments they are prepared with, which must all be SQL text or int options
+     * (not the arrays of generated key columns).
+     */
+    private static boolean isCacheable(Object[] args) {
+        for (Object arg : args) {
+            if (!(arg instanceof String) && !(arg instanceof Integer)) {
+                return false;
+            }
+        }
+        return args[0] instanceof String;
+    }
+
+    /**
+     * A statement prepared on a pooled connection, which is handed out again when the same SQL is prepared.
+     */
+    private class CachedStatement {
+
+        private final PooledConnection pooledConnection;
+
+        private final List<Object> key;
+
+        private final PreparedStatement physicalStatement;
+
+        private boolean inUse;
+
+        private StatementHandle handle;
+
+        CachedStatement(PooledConnection pooledConnection, List<Object> key, PreparedStatement physicalStatement) {
+            this.pooledConnection = pooledConnection;
+            this.key = key;
+            this.physicalStatement = physicalStatement;
+        }
+
+        PreparedStatement newHandle(Connection connectionHandle) {
+            inUse = true;
+            handle = new StatementHandle(this, connectionHandle);
+            return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, handle);
+        }
+
+        /**
+         * Make the statement available to be prepared again, closing its results and clearing its parameters.
+         * A statement that can't be cleared is closed and removed from the cache.
+         */
+        void release() {
+            if (!inUse) {
+                return;
+            }
+            inUse = false;
+            handle.closed = true;
+            try {
+                if (handle.resultSet != null) {
+                    handle.resultSet.close();
+                }
+                physicalStatement.clearParameters();
+                physicalStatement.clearWarnings();
+            } catch (SQLException e) {
+                logger.warn("Discarding cached statement that could not be cleared", e);
+                pooledConnection.statements.remove(key);
+                closePhysicalStatement();
+            }
+            handle = null;
+        }
+
+        void closePhysicalStatement() {
+            try {
+                physicalStatement.close();
+            } catch (SQLException e) {
+                logger.warn("Error in closing cached statement", e);
+            }
+        }
+    }
+
+    /**
+     * The statement handed to a borrower. Closing it returns the statement to its connection's cache.
+     */
+    private class StatementHandle implements InvocationHandler {
+
+        private final CachedStatement cachedStatement;
+
+        private final Connection connectionHandle;
+
+        private volatile boolean closed;
+
+        // The statement's current results, closed when the statement is returned to the cache
+        private ResultSet resultSet;
+
+        StatementHandle(CachedStatement cachedStatement, Connection connectionHandle) {
+            this.cachedStatement = cachedStatement;
+            this.connectionHandle = connectionHandle;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        cachedStatement.release();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    return connectionHandle;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached " + cachedStatement.physicalStatement;
+                default:
+                    if (closed) {
+                        throw new SQLException("Statement is closed");
+                    }
+                    Object result;
+                    try {
+                        result = method.invoke(cachedStatement.physicalStatement, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (result instanceof ResultSet && (method.getName().equals("executeQuery") || method.getName().equals("getResultSet"))) {
+                        resultSet = (ResultSet) result;
+                    }
+                    return result;
+            }
+        }
+    }
+
+    static class ConnectionPoolBuilder {
+
+        private int maxSize = 10;
+
+        private int minIdle = 1;
+
+        private long acquireTimeoutMillis = 5_000;
+
+        private long idleTimeoutMillis = 600_000;
+
+        private long validationIntervalMillis = 30_000;
+
+        private int statementCacheSize = 50;
+
+        ConnectionPoolBuilder withMaxSize(int maxSize) {
+            if (maxSize < 1) {
+                throw new IllegalArgumentException("Connection pool max size must be at least 1");
+            }
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        ConnectionPoolBuilder withMinIdle(int minIdle) {
+            this.minIdle = Math.max(0, minIdle);
+            return this;
+        }
+
+        ConnectionPoolBuilder withAcquireTimeoutMillis(long acquireTimeoutMillis) {
+            this.acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        ConnectionPoolBuilder withIdleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        ConnectionPoolBuilder withValidationIntervalMillis(long validationIntervalMillis) {
+            this.validationIntervalMillis = validationIntervalMillis;
+            return this;
+        }
+
+        ConnectionPoolBuilder withStatementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = Math.max(0, statementCacheSize);
+            return this;
+        }
+
+        ConnectionPool build(DataSource dataSource) {
+            return new ConnectionPool(dataSource, this);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package nz.co.solnet.database;
+
+/**
+ * Gauges for the database connection pool, exposed over JMX.
+ */
+public interface ConnectionPoolMXBean {
+
+    /**
+     * @return The number of connections currently borrowed from the pool
+     */
+    int getActiveConnections();
+
+    /**
+     * @return The number of open connections waiting in the pool to be borrowed
+     */
+    int getIdleConnections();
+
+    /**
+     * @return The number of threads waiting for a connection because all connections are active
+     */
+    int getThreadsAwaitingConnection();
+
+    /**
+     * @return The maximum number of connections the pool will open
+     */
+    int getMaxSize();
+
+    /**
+     * @return The number of times a thread gave up waiting for a connection
+     */
+    long getAcquireTimeouts();
+
+    /**
+     * @return The number of times a statement was prepared with SQL already prepared on the connection
+     */
+    long getStatementCacheHits();
+
+    /**
+     * @return The number of times a statement had to be compiled because it wasn't in the connection's cache
+     */
+    long getStatementCacheMisses();
+}
@@ -1,18 +1,30 @@
 package nz.co.solnet.database;
 
+import nz.co.solnet.Configuration;
 import org.apache.derby.jdbc.EmbeddedDataSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is the DatabaseContext.
  * It is responsible for creating the database and returning the repositories.
  * It also stores the context of the database, which is at this time the database url.
  * It also provides a bunch of database utility methods.
+ * Tasks are stored in the Derby database by default, only in memory if task.api.database.engine is memory, or in
+ * a log of segment files if it is log. No database is created and there is no connection pool for either of those.
  */
 public class DatabaseContext {
 
@@ -26,7 +38,39 @@ public class DatabaseContext {
 
     private final String DATABASE_PASSWORD;
 
-    private final DataSource dataSource;
+    private static final String CONNECTION_POOL_MBEAN_NAME = "nz.co.solnet:type=ConnectionPool,name=tasks";
+
+    private static final String TASK_CACHE_MBEAN_NAME = "nz.co.solnet:type=TaskCache,name=tasks";
+
+    private static final String SQL_STATISTICS_MBEAN_NAME = "nz.co.solnet:type=SqlStatistics,name=tasks";
+
+    private static final String GROUP_COMMIT_MBEAN_NAME = "nz.co.solnet:type=GroupCommit,name=tasks";
+
+    private static final String ENGINE_DERBY = "derby";
+
+    private static final String ENGINE_MEMORY = "memory";
+
+    private static final String ENGINE_LOG = "log";
+
+    // Null if tasks aren't stored in the database
+    private final ConnectionPool connectionPool;
+
+    // Null if tasks aren't stored in the database
+    private final InstrumentedDataSource instrumentedDataSource;
+
+    // The repository that stores the tasks. There must only be one, as it assigns task versions.
+    private final TaskStorageEngine taskStorageEngine;
+
+    private final TaskRepository taskRepository;
+
+    private final CachingTaskRepository taskCache;
+
+    private final TaskSearchIndex taskSearchIndex;
+
+    private final TaskColumns taskColumns;
+
+    // Null if tombstones are kept forever
+    private final ScheduledExecutorService tombstonePurger;
 
     /**
      * Private constructor to prevent instantiation.
@@ -35,23 +79,193 @@ public class DatabaseContext {
      * @param databasePassword
      */
     private DatabaseContext(String databaseUrl, String databaseUsername, String databasePassword) {
-
-        System.setProperty("derby.connection.pooling", "true");
-        System.setProperty("derby.pool.initialSize", "1");
-        System.setProperty("derby.pool.maxConnections", "10");
-
         DATABASE_URL = databaseUrl;
         DATABASE_USERNAME = databaseUsername;
         DATABASE_PASSWORD = databasePassword;
-        createDatabase();
-        EmbeddedDataSource dataSource = getEmbeddedDataSource();
-        this.dataSource = dataSource;
-        TaskRepositoryImpl taskRepository = new TaskRepositoryImpl(dataSource);
-        taskRepository.initialiseTasksTable();
+        String engine = Configuration.getProperty("task.api.database.engine", ENGINE_DERBY);
+        if (ENGINE_MEMORY.equalsIgnoreCase(engine)) {
+            connectionPool = null;
+            instrumentedDataSource = null;
+            taskStorageEngine = new InMemoryTaskRepository();
+            logger.info("Storing tasks in memory only, they will be lost when the server stops");
+        } else if (ENGINE_LOG.equalsIgnoreCase(engine)) {
+            connectionPool = null;
+            instrumentedDataSource = null;
+            taskStorageEngine = createLogStructuredTaskRepository();
+        } else if (ENGINE_DERBY.equalsIgnoreCase(engine)) {
+            createDatabase();
+            connectionPool = createConnectionPool(getEmbeddedDataSource());
+            registerMBean(connectionPool, CONNECTION_POOL_MBEAN_NAME);
+            instrumentedDataSource = new InstrumentedDataSource(connectionPool,
+                    Configuration.getLongProperty("task.api.database.slowQueryThresholdMillis", 100));
+            registerMBean(instrumentedDataSource, SQL_STATISTICS_MBEAN_NAME);
+            new SchemaMigrations(instrumentedDataSource).migrate();
+            taskStorageEngine = new TaskRepositoryImpl(instrumentedDataSource, createGroupCommitter(instrumentedDataSource));
+        } else {
+            throw new IllegalArgumentException("Invalid value for task.api.database.engine: '" + engine + "' must be derby, memory or log");
+        }
+        taskSearchIndex = createTaskSearchIndex(taskStorageEngine);
+        taskColumns = createTaskColumns(taskStorageEngine);
+        // The other engines already hold every task in memory, so a cache would only add a copy and a lock
+        taskCache = taskStorageEngine instanceof TaskRepositoryImpl ? createTaskCache(taskStorageEngine) : null;
+        TaskRepository repository = taskStorageEngine;
+        if (taskCache != null) {
+            registerMBean(taskCache, TASK_CACHE_MBEAN_NAME);
+            taskStorageEngine.addTaskChangeListener(taskCache);
+            repository = taskCache;
+        }
+        // The other engines keep their collection versions in memory already
+        taskRepository = taskStorageEngine instanceof TaskRepositoryImpl
+                ? new ColumnarTaskRepository(repository, taskColumns, (TaskRepositoryImpl) taskStorageEngine) : repository;
+        tombstonePurger = createTombstonePurger(taskStorageEngine);
+    }
+
+    /**
+     * Purge the tombstones older than the retention period, every purge interval, on a background thread.
+     * Clients whose copy is older than a purged tombstone are told to resync by getChangesSince.
+     * @param taskRepository The repository that stores the tasks
+     * @return The purging thread, or null if tombstones are kept forever
+     */
+    private ScheduledExecutorService createTombstonePurger(TaskStorageEngine taskRepository) {
+        long retentionMillis = Configuration.getLongProperty("task.api.changes.tombstoneRetentionMillis", 7 * 24 * 60 * 60 * 1000L);
+        long intervalMillis = Configuration.getLongProperty("task.api.changes.tombstonePurgeIntervalMillis", 60 * 60 * 1000L);
+        if (retentionMillis <= 0 || intervalMillis <= 0) {
+            return null;
+        }
+        ScheduledExecutorService purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "task-tombstone-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purger.scheduleWithFixedDelay(() -> {
+            try {
+                int purged = taskRepository.purgeTombstones(Instant.now().minusMillis(retentionMillis));
+                if (purged > 0) {
+                    logger.info("Purged " + purged + " task tombstones older than " + retentionMillis + "ms");
+                }
+            } catch (RuntimeException e) {
+                logger.error("Error purging task tombstones", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return purger;
+    }
+
+    /**
+     * Create the pool that all repositories borrow connections from.
+     * @param embeddedDataSource Opens the physical connections
+     * @return
+     */
+    private ConnectionPool createConnectionPool(EmbeddedDataSource embeddedDataSource) {
+        return new ConnectionPool.ConnectionPoolBuilder()
+                .withMaxSize(Configuration.getIntProperty("task.api.database.pool.maxSize", 10))
+                .withMinIdle(Configuration.getIntProperty("task.api.database.pool.minIdle", 1))
+                .withAcquireTimeoutMillis(Configuration.getLongProperty("task.api.database.pool.acquireTimeoutMillis", 5_000))
+                .withIdleTimeoutMillis(Configuration.getLongProperty("task.api.database.pool.idleTimeoutMillis", 600_000))
+                .withValidationIntervalMillis(Configuration.getLongProperty("task.api.database.pool.validationIntervalMillis", 30_000))
+                .withStatementCacheSize(Configuration.getIntProperty("task.api.database.pool.statementCacheSize", 50))
+                .build(embeddedDataSource);
+    }
+
+    /**
+     * Create the writer that commits concurrent single task writes together.
+     * @param dataSource
+     * @return The writer, or null if group commit is disabled
+     */
+    private GroupCommitter createGroupCommitter(DataSource dataSource) {
+        if (!Configuration.getBooleanProperty("task.api.database.groupCommit.enabled", true)) {
+            return null;
+        }
+        GroupCommitter groupCommitter = new GroupCommitter.GroupCommitterBuilder()
+                .withMaxBatchSize(Configuration.getIntProperty("task.api.database.groupCommit.maxBatchSize", 64))
+                .withMaxWaitMicros(Configuration.getLongProperty("task.api.database.groupCommit.maxWaitMicros", 0))
+                .withTimeoutMillis(Configuration.getLongProperty("task.api.database.groupCommit.timeoutMillis", 30_000))
+                .build(dataSource);
+        registerMBean(groupCommitter, GROUP_COMMIT_MBEAN_NAME);
+        return groupCommitter;
+    }
+
+    /**
+     * Open the log of task records, replaying it to find the tasks as they were when the server last stopped.
+     * @return
+     */
+    private LogStructuredTaskRepository createLogStructuredTaskRepository() {
+        return new LogStructuredTaskRepository.LogStructuredTaskRepositoryBuilder()
+                .withDirectory(Paths.get(Configuration.getProperty("task.api.database.log.directory", "tasklog")))
+                .withSegmentBytes(Configuration.getIntProperty("task.api.database.log.segmentBytes", 64 * 1024 * 1024))
+                .withSyncWrites(Configuration.getBooleanProperty("task.api.database.log.syncWrites", true))
+                .withCompactionIntervalMillis(Configuration.getLongProperty("task.api.database.log.compactionIntervalMillis", 60_000))
+                .withCompactionThresholdPercent(Configuration.getIntProperty("task.api.database.log.compactionThresholdPercent", 50))
+                .build();
+    }
+
+    /**
+     * Build the search index from every task, then keep it up to date with the changes the repository makes.
+     * Nothing else can write tasks yet, so no change can be missed between reading the tasks and listening.
+     * @param taskRepository The repository that stores the tasks
+     * @return
+     */
+    private TaskSearchIndex createTaskSearchIndex(TaskStorageEngine taskRepository) {
+        TaskSearchIndex index = new TaskSearchIndex();
+        taskRepository.forEachTask(index::add);
+        taskRepository.addTaskChangeListener(index);
+        return index;
+    }
+
+    /**
+     * Build the task columns from every task, then keep them up to date with the changes the repository makes,
+     * as the search index is.
+     * @param taskRepository The repository that stores the tasks
+     * @return
+     */
+    private TaskColumns createTaskColumns(TaskStorageEngine taskRepository) {
+        TaskColumns columns = new TaskColumns();
+        taskRepository.forEachTask(columns::add);
+        taskRepository.addTaskChangeListener(columns);
+        return columns;
     }
 
     /**
-     * Create the embedded data source. This is Derby's native connection pooling implementation.
+     * Create the cache of single tasks in front of the task repository.
+     * @param taskRepository The repository that stores the tasks
+     * @return The cache, or null if caching is disabled
+     */
+    private CachingTaskRepository createTaskCache(TaskRepository taskRepository) {
+        if (!Configuration.getBooleanProperty("task.api.cache.enabled", true)) {
+            return null;
+        }
+        return new CachingTaskRepository.CachingTaskRepositoryBuilder()
+                .withMaxEntries(Configuration.getIntProperty("task.api.cache.maxEntries", 10_000))
+                .withTimeToLiveMillis(Configuration.getLongProperty("task.api.cache.timeToLiveMillis", 60_000))
+                .build(taskRepository);
+    }
+
+    /**
+     * Expose gauges and counters over JMX.
+     */
+    private void registerMBean(Object mbean, String mbeanName) {
+        try {
+            ObjectName name = new ObjectName(mbeanName);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to register MBean " + mbeanName, e);
+        }
+    }
+
+    private void unregisterMBean(String mbeanName) {
+        try {
+            ObjectName name = new ObjectName(mbeanName);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Unable to unregister MBean " + mbeanName, e);
+        }
+    }
+
+    /**
+     * Create the embedded data source. This opens the physical connections held by the connection pool.
      * @return
      */
     private EmbeddedDataSource getEmbeddedDataSource() {
@@ -112,16 +326,87 @@ public class DatabaseContext {
     /**
      * This method returns the TaskRepository.
      * This is the only way to get a TaskRepository.
+     * All callers share the same repository, so that they share its cache.
      * @return
      */
     public TaskRepository getTaskRepository() {
-        return new TaskRepositoryImpl(dataSource);
+        return taskRepository;
+    }
+
+    /**
+     * Counters for the task cache (hits, misses and evictions).
+     * @return The cache counters, or empty if caching is disabled
+     */
+    public Optional<TaskCacheMXBean> getTaskCache() {
+        return Optional.ofNullable(taskCache);
+    }
+
+    /**
+     * The full-text index of task titles and descriptions.
+     * @return
+     */
+    public TaskSearchIndex getTaskSearchIndex() {
+        return taskSearchIndex;
+    }
+
+    /**
+     * The columnar projection of task due dates and statuses, for counting tasks.
+     * @return
+     */
+    public TaskColumns getTaskColumns() {
+        return taskColumns;
+    }
+
+    /**
+     * Listen to every change committed to the tasks, in version order.
+     * @param listener
+     */
+    public void addTaskChangeListener(TaskChangeListener listener) {
+        taskStorageEngine.addTaskChangeListener(listener);
+    }
+
+    public void removeTaskChangeListener(TaskChangeListener listener) {
+        taskStorageEngine.removeTaskChangeListener(listener);
+    }
+
+    /**
+     * Gauges for the connection pool (active, idle and waiting counts, and statement cache hits and misses).
+     * @return The pool's gauges, or empty if tasks aren't stored in the database
+     */
+    public Optional<ConnectionPoolMXBean> getConnectionPool() {
+        return Optional.ofNullable(connectionPool);
+    }
+
+    /**
+     * Timings of connection acquisition and of each shape of SQL statement.
+     * @return The timings, or empty if tasks aren't stored in the database
+     */
+    public Optional<SqlStatisticsMXBean> getSqlStatistics() {
+        return Optional.ofNullable(instrumentedDataSource);
     }
 
     /**
      * Graceful database shutdown.
      */
     public void shutdown() {
+        unregisterMBean(TASK_CACHE_MBEAN_NAME);
+        if (tombstonePurger != null) {
+            tombstonePurger.shutdownNow();
+            try {
+                tombstonePurger.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        taskStorageEngine.close();
+        if (connectionPool == null) {
+            instance = null;
+            return;
+        }
+        connectionPool.close();
+        unregisterMBean(CONNECTION_POOL_MBEAN_NAME);
+        unregisterMBean(SQL_STATISTICS_MBEAN_NAME);
+        unregisterMBean(GROUP_COMMIT_MBEAN_NAME);
         String shutdownURL = "jdbc:derby:;shutdown=true";
         try {
             DriverManager.getConnection(shutdownURL);
@@ -141,8 +426,12 @@ public class DatabaseContext {
      * Utility method to delete all database records.
      */
     void cleanDatabase() {
-        TaskRepositoryImpl taskRepository = new TaskRepositoryImpl(dataSource);
-        taskRepository.cleanTaskData();
+        taskStorageEngine.cleanTaskData();
+        taskSearchIndex.clear();
+        taskColumns.clear();
+        if (taskCache != null) {
+            taskCache.invalidateAll();
+        }
     }
 
 }
@@ -0,0 +1,77 @@
+package nz.co.solnet.database;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The deletions whose tombstones a storage engine that keeps its indexes in memory still holds, in version order,
+ * so that the ones older than the retention period can be found without looking at any other change.
+ * Deletions must be added in version order, and every call must be serialized by the engine.
+ */
+final class DeletionQueue {
+
+    private final ArrayDeque<Deletion> deletions = new ArrayDeque<>();
+
+    void add(long version, int id, Instant deletedOn) {
+        deletions.addLast(new Deletion(version, id, deletedOn.toEpochMilli()));
+    }
+
+    void clear() {
+        deletions.clear();
+    }
+
+    /**
+     * @return The oldest deletions, up to the last one made before a time, oldest first. They stay in the queue.
+     */
+    List<Deletion> getDeletedBefore(Instant deletedBefore) {
+        long deletedBeforeMillis = deletedBefore.toEpochMilli();
+        List<Deletion> expired = new ArrayList<>();
+        Iterator<Deletion> iterator = deletions.iterator();
+        while (iterator.hasNext()) {
+            Deletion deletion = iterator.next();
+            if (deletion.deletedOnMillis >= deletedBeforeMillis) {
+                break;
+            }
+            expired.add(deletion);
+        }
+        return expired;
+    }
+
+    /**
+     * Remove the oldest deletions, once their tombstones have been purged.
+     */
+    void removeOldest(int count) {
+        for (int i = 0; i < count; i++) {
+            deletions.removeFirst();
+        }
+    }
+
+    /**
+     * A deleted task's id, and the version and time of its deletion.
+     */
+    static final class Deletion {
+
+        private final long version;
+
+        private final int id;
+
+        private final long deletedOnMillis;
+
+        private Deletion(long version, int id, long deletedOnMillis) {
+            this.version = version;
+            this.id = id;
+            this.deletedOnMillis = deletedOnMillis;
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        int getId() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An index of tasks by status, then due date then id, for the storage engines that keep their indexes in memory.
+ * Each status has a ConcurrentSkipListMap keyed by due date then id, so the tasks between two dates are a sub map of
+ * each status asked for, merged in due date order. As in the database, a task without a status or a due date is never
+ * between dates, so it isn't indexed.
+ * Reads can run alongside writes, and see the maps through their weakly consistent iterators. Writes must be
+ * serialized by the engine.
+ * @param <V> What is held for each task, such as the task itself or where it is stored
+ */
+final class DueDateIndex<V> {
+
+    private static final LocalDate DEFAULT_START_DATE = LocalDate.parse("0001-01-01"); // Min date for derby
+
+    private static final LocalDate DEFAULT_END_DATE = LocalDate.parse("9999-12-31"); // Max date for derby
+
+    // A map for each status, created up front, so the EnumMap itself is never written after construction
+    private final Map<Task.Status, ConcurrentSkipListMap<DueDateKey, V>> tasksInDueDateOrder = new EnumMap<>(Task.Status.class);
+
+    DueDateIndex() {
+        for (Task.Status status : Task.Status.values()) {
+            tasksInDueDateOrder.put(status, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    /**
+     * Index a new task, or move an existing one to where its new status and due date put it.
+     * The task is added at its new position before it is removed from its old one, so a read alongside never misses it.
+     * @param previousStatus The status it was indexed with, or null if it is new
+     * @param previousDueDate The due date it was indexed with, or null if it is new
+     */
+    void put(int id, Task.Status status, LocalDate dueDate, V value, Task.Status previousStatus, LocalDate previousDueDate) {
+        if (status != null && dueDate != null) {
+            tasksInDueDateOrder.get(status).put(new DueDateKey(dueDate, id), value);
+        }
+        // Only removed if it is somewhere else, as the put replaced it otherwise
+        if (previousStatus != null && previousDueDate != null && (previousStatus != status || !previousDueDate.equals(dueDate))) {
+            tasksInDueDateOrder.get(previousStatus).remove(new DueDateKey(previousDueDate, id));
+        }
+    }
+
+    void remove(int id, Task.Status status, LocalDate dueDate) {
+        if (status != null && dueDate != null) {
+            tasksInDueDateOrder.get(status).remove(new DueDateKey(dueDate, id));
+        }
+    }
+
+    void clear() {
+        for (ConcurrentSkipListMap<DueDateKey, V> tasksWithStatus : tasksInDueDateOrder.values()) {
+            tasksWithStatus.clear();
+        }
+    }
+
+    /**
+     * Iterate the tasks between two dates with any of the statuses, after the cursor if given, in due date then id
+     * order. Tasks are matched exactly as they are by the database.
+     * If either date is null, then the min or max date for apache derby is used.
+     * @param statuses The statuses to match, or null for any status
+     * @param after The last task of the previous page, or null for the first page
+     */
+    Iterator<V> iterateBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskCursor after) {
+        DueDateKey from = new DueDateKey(startDate != null ? startDate : DEFAULT_START_DATE, Integer.MIN_VALUE);
+        boolean fromInclusive = true;
+        if (after != null && after.getDueDate() != null) {
+            DueDateKey cursor = new DueDateKey(after.getDueDate(), after.getId());
+            if (cursor.compareTo(from) >= 0) {
+                from = cursor;
+                fromInclusive = false;
+            }
+        }
+        DueDateKey to = new DueDateKey(endDate != null ? endDate : DEFAULT_END_DATE, Integer.MAX_VALUE);
+        if (from.compareTo(to) > 0) {
+            return Collections.emptyIterator();
+        }
+
+        Set<Task.Status> matchedStatuses = EnumSet.noneOf(Task.Status.class);
+        matchedStatuses.addAll(statuses != null ? statuses : EnumSet.allOf(Task.Status.class));
+        List<Iterator<Map.Entry<DueDateKey, V>>> iterators = new ArrayList<>(matchedStatuses.size());
+        for (Task.Status status : matchedStatuses) {
+            iterators.add(tasksInDueDateOrder.get(status).subMap(from, fromInclusive, to, true).entrySet().iterator());
+        }
+        return new MergingIterator<>(iterators);
+    }
+
+    /**
+     * The position of a task in its status's map: its due date, then its id.
+     */
+    private static final class DueDateKey implements Comparable<DueDateKey> {
+
+        private final LocalDate dueDate;
+
+        private final int id;
+
+        DueDateKey(LocalDate dueDate, int id) {
+            this.dueDate = dueDate;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(DueDateKey other) {
+            int byDueDate = dueDate.compareTo(other.dueDate);
+            return byDueDate != 0 ? byDueDate : Integer.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof DueDateKey && compareTo((DueDateKey) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return dueDate.hashCode() * 31 + id;
+        }
+    }
+
+    /**
+     * The tasks of one or more statuses' sub maps, merged in due date then id order. There are at most as many sub
+     * maps as statuses, so the next task is found by comparing the head of each.
+     */
+    private static final class MergingIterator<V> implements Iterator<V> {
+
+        private final List<Iterator<Map.Entry<DueDateKey, V>>> iterators;
+
+        // The next entry of each iterator, or null once it is exhausted
+        private final List<Map.Entry<DueDateKey, V>> heads;
+
+        MergingIterator(List<Iterator<Map.Entry<DueDateKey, V>>> iterators) {
+            this.iterators = iterators;
+            this.heads = new ArrayList<>(iterators.size());
+            for (Iterator<Map.Entry<DueDateKey, V>> iterator : iterators) {
+                heads.add(iterator.hasNext() ? iterator.next() : null);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (Map.Entry<DueDateKey, V> head : heads) {
+                if (head != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public V next() {
+            int lowest = -1;
+            for (int i = 0; i < heads.size(); i++) {
+                if (heads.get(i) != null && (lowest < 0 || heads.get(i).getKey().compareTo(heads.get(lowest).getKey()) < 0)) {
+                    lowest = i;
+                }
+            }
+            if (lowest < 0) {
+                throw new NoSuchElementException();
+            }
+            V next = heads.get(lowest).getValue();
+            Iterator<Map.Entry<DueDateKey, V>> iterator = iterators.get(lowest);
+            heads.set(lowest, iterator.hasNext() ? iterator.next() : null);
+            return next;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package nz.co.solnet.database;
+
+/**
+ * Counters for group commit of task writes, exposed over JMX.
+ */
+public interface GroupCommitMXBean {
+
+    /**
+     * @return The number of transactions committed, each of which may hold several writes
+     */
+    long getCommits();
+
+    /**
+     * @return The number of writes committed. Divided by the number of commits, this is the average batch size.
+     */
+    long getWrites();
+
+    /**
+     * @return The most writes committed in one transaction
+     */
+    long getLargestBatchSize();
+
+    /**
+     * @return The number of batches whose transaction failed, so their writes were retried one at a time
+     */
+    long getRetriedBatches();
+
+    /**
+     * @return The number of writes waiting for the next batch
+     */
+    int getQueueLength();
+}
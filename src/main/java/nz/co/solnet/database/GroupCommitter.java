@@ -0,0 +1,363 @@
+package nz.co.solnet.database;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Commits concurrent writes together, so that a burst of writes shares one transaction and one log flush rather
+ * than each forcing its own.
+ * <p>
+ * Callers queue a write and wait for it. A single writer thread takes the writes that are queued, up to
+ * maxBatchSize, waiting up to maxWaitMicros for more if there are fewer, and executes them in one transaction
+ * on one connection. Each write has a savepoint, so a write that fails is rolled back on its own and only its
+ * caller gets the exception. Every caller is only answered once the transaction has committed, so a write is as
+ * durable when it returns as it was in a transaction of its own.
+ * <p>
+ * If the transaction itself fails (the commit fails, or Derby rolls back the whole transaction as a deadlock
+ * victim), each write in the batch is retried in a transaction of its own, so every caller gets the result it
+ * would have had without group commit.
+ * With maxWaitMicros of 0, only the writes that queued while the previous batch was being written are grouped, so
+ * a lone write is never delayed.
+ * <p>
+ * A caller that is interrupted, or still queued after timeoutMillis, takes its write back out of the queue and fails
+ * without it being executed. Once its write has been taken into a batch the caller waits for it to commit or fail,
+ * as it must know which, and Derby's lock timeout bounds how long that takes.
+ */
+class GroupCommitter implements GroupCommitMXBean {
+
+    private final Logger logger = LogManager.getLogger(GroupCommitter.class);
+
+    // How often a waiting caller checks that the writer is still running
+    private static final long WRITER_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final DataSource dataSource;
+
+    private final int maxBatchSize;
+
+    private final long maxWaitNanos;
+
+    private final long timeoutNanos;
+
+    private final LinkedBlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<>();
+
+    private final Thread writer;
+
+    private final LongAdder commits = new LongAdder();
+
+    private final LongAdder writes = new LongAdder();
+
+    private final LongAdder retriedBatches = new LongAdder();
+
+    private final LongAccumulator largestBatchSize = new LongAccumulator(Math::max, 0);
+
+    private volatile boolean closed;
+
+    private GroupCommitter(DataSource dataSource, GroupCommitterBuilder builder) {
+        this.dataSource = dataSource;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(builder.maxWaitMicros);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(builder.timeoutMillis);
+        writer = new Thread(this::writeBatches, "task-group-commit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Execute a write in the next batch's transaction, and wait for the batch to commit.
+     * @param write Executes the write on the batch's connection. It must not commit, roll back or close it.
+     * @return What the write returned
+     * @throws SQLException What the write threw, or why its transaction couldn't be committed, or why it wasn't
+     * executed
+     */
+    <T> T execute(TransactionalWrite<T> write) throws SQLException {
+        if (closed) {
+            throw new SQLException("Group commit is closed");
+        }
+        if (!writer.isAlive()) {
+            throw new SQLException("Group commit writer has stopped");
+        }
+        PendingWrite<T> pendingWrite = new PendingWrite<>(write);
+        queue.add(pendingWrite);
+        if (closed && queue.remove(pendingWrite)) {
+            // The writer may have stopped before it was queued
+            throw new SQLException("Group commit is closed");
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                long remainingNanos = Math.max(deadline - System.nanoTime(), 1);
+                try {
+                    return pendingWrite.result.get(Math.min(remainingNanos, WRITER_CHECK_NANOS), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (queue.remove(pendingWrite)) {
+                        throw new SQLException("Interrupted waiting for group commit, the write was not executed");
+                    }
+                    // Keep waiting, as the write can't be taken back out of a batch, and the caller must know
+                    // whether it committed
+                } catch (TimeoutException e) {
+                    if (!writer.isAlive()) {
+                        queue.remove(pendingWrite);
+                        pendingWrite.result.completeExceptionally(new SQLException("Group commit writer has stopped"));
+                    } else if (deadline - System.nanoTime() <= 0 && queue.remove(pendingWrite)) {
+                        throw new SQLTimeoutException("Timed out waiting for group commit, the write was not executed");
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new SQLException("Error writing batch", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void writeBatches() {
+        List<PendingWrite<?>> batch = new ArrayList<>(maxBatchSize);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize && maxWaitNanos > 0) {
+                    PendingWrite<?> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                // Closed
+            } catch (Throwable e) {
+                // Carry on, as a writer that died would leave every later write waiting
+                logger.error("Error writing batch", e);
+            } finally {
+                for (PendingWrite<?> pendingWrite : batch) {
+                    pendingWrite.result.completeExceptionally(new SQLException("Write was not executed"));
+                }
+                batch.clear();
+            }
+        }
+        PendingWrite<?> pendingWrite;
+        while ((pendingWrite = queue.poll()) != null) {
+            pendingWrite.result.completeExceptionally(new SQLException("Group commit is closed"));
+        }
+    }
+
+    /**
+     * Execute a batch in one transaction, or each write in its own if the batch's transaction fails.
+     */
+    private void writeBatch(List<PendingWrite<?>> batch) {
+        if (batch.size() == 1) {
+            writeAlone(batch.get(0));
+            return;
+        }
+        List<Object> results = new ArrayList<>(batch.size());
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                for (PendingWrite<?> pendingWrite : batch) {
+                    Savepoint savepoint = connection.setSavepoint();
+                    try {
+                        results.add(pendingWrite.write.execute(connection));
+                        connection.releaseSavepoint(savepoint);
+                    } catch (SQLException e) {
+                        if (isTransactionRolledBack(e)) {
+                            throw e;
+                        }
+                        connection.rollback(savepoint);
+                        results.add(e);
+                    }
+                }
+                connection.commit();
+            } catch (Throwable e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (Throwable e) {
+            logger.warn("Retrying a batch of " + batch.size() + " writes one at a time, as its transaction failed", e);
+            retriedBatches.increment();
+            for (PendingWrite<?> pendingWrite : batch) {
+                writeAlone(pendingWrite);
+            }
+            return;
+        }
+        commits.increment();
+        writes.add(batch.size());
+        largestBatchSize.accumulate(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).complete(results.get(i));
+        }
+    }
+
+    /**
+     * Execute a write in a transaction of its own.
+     */
+    private <T> void writeAlone(PendingWrite<T> pendingWrite) {
+        T result;
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                result = pendingWrite.write.execute(connection);
+                connection.commit();
+            } catch (Throwable e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (Throwable e) {
+            pendingWrite.result.completeExceptionally(e);
+            return;
+        }
+        commits.increment();
+        writes.increment();
+        largestBatchSize.accumulate(1);
+        pendingWrite.result.complete(result);
+    }
+
+    /**
+     * @return True if Derby rolled back the whole transaction, such as for a deadlock or lock timeout, rather than
+     * just the statement
+     */
+    private static boolean isTransactionRolledBack(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("40");
+    }
+
+    /**
+     * Stop the writer thread. Writes that are queued and not yet executed fail.
+     */
+    void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getLargestBatchSize() {
+        return largestBatchSize.get();
+    }
+
+    @Override
+    public long getRetriedBatches() {
+        return retriedBatches.sum();
+    }
+
+    @Override
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * A write executed within a transaction it doesn't own.
+     */
+    @FunctionalInterface
+    interface TransactionalWrite<T> {
+
+        T execute(Connection connection) throws SQLException;
+    }
+
+    private static final class PendingWrite<T> {
+
+        private final TransactionalWrite<T> write;
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        PendingWrite(TransactionalWrite<T> write) {
+            this.write = write;
+        }
+
+        /**
+         * Complete with the write's result, or the exception it threw, which was rolled back to its savepoint.
+         */
+        @SuppressWarnings("unchecked")
+        void complete(Object outcome) {
+            if (outcome instanceof SQLException) {
+                result.completeExceptionally((SQLException) outcome);
+            } else {
+                result.complete((T) outcome);
+            }
+        }
+    }
+
+    static class GroupCommitterBuilder {
+
+        private int maxBatchSize = 64;
+
+        private long maxWaitMicros = 0;
+
+        private long timeoutMillis = 30_000;
+
+        GroupCommitterBuilder withMaxBatchSize(int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException("Group commit max batch size must be at least 1");
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * @param maxWaitMicros How long the writer waits for more writes once it has one, or 0 to only take those
+         *                      already queued
+         */
+        GroupCommitterBuilder withMaxWaitMicros(long maxWaitMicros) {
+            this.maxWaitMicros = Math.max(0, maxWaitMicros);
+            return this;
+        }
+
+        /**
+         * @param timeoutMillis How long a write can wait in the queue before it fails without being executed
+         */
+        GroupCommitterBuilder withTimeoutMillis(long timeoutMillis) {
+            if (timeoutMillis < 1) {
+                throw new IllegalArgumentException("Group commit timeout must be at least 1 millisecond");
+            }
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        GroupCommitter build(DataSource dataSource) {
+            return new GroupCommitter(dataSource, this);
+        }
+    }
+}
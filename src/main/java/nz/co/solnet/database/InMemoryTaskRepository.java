@@ -0,0 +1,463 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Repository that holds every task in memory, for deployments where latency matters more than keeping the tasks
+ * when the server stops, and for tests.
+ * <p>
+ * Tasks are held by id in a ConcurrentHashMap, for single task lookups, and in a ConcurrentSkipListMap by id, for
+ * pages ordered by id. Each status has a ConcurrentSkipListMap of its tasks keyed by due date then id (a
+ * {@link DueDateIndex}), so a date range query walks a sub map of each status asked for, merged in due date order.
+ * The last change to each task, and each deletion, is also held by version for {@link #getChangesSince(long, int)}.
+ * Deletions are also queued in the order they were made, so those older than the retention period can be purged.
+ * <p>
+ * Writes are serialized by a lock, held while they take a version, change the maps and publish their changes, so
+ * changes are always published in version order. Reads take no lock and see the maps through their weakly consistent
+ * iterators, so a read that runs alongside a write may or may not see its change.
+ * Stored tasks are never modified: a write replaces the stored task, and tasks are copied on the way out.
+ */
+class InMemoryTaskRepository implements TaskStorageEngine {
+
+    private final ConcurrentHashMap<Integer, Task> tasks = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<Integer, Task> tasksInIdOrder = new ConcurrentSkipListMap<>();
+
+    private final DueDateIndex<Task> tasksInDueDateOrder = new DueDateIndex<>();
+
+    // The last change to each task (its creation or latest update) and each deletion
+    private final VersionIndex<TaskChange> changes = new VersionIndex<>();
+
+    // Guarded by writeLock
+    private final DeletionQueue deletions = new DeletionQueue();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final TaskChangePublisher changePublisher = new TaskChangePublisher(0);
+
+    // Guarded by writeLock
+    private int lastId;
+
+    // Written under writeLock. Every write that changes a task takes the next version.
+    private volatile long lastVersion;
+
+    // Written under writeLock. The highest version of a deletion that has been purged.
+    private volatile long purgedVersion;
+
+    // Replaced under writeLock by every write, so the three values are always read together
+    private volatile CollectionVersion tasksVersion = CollectionVersion.EMPTY;
+
+    @Override
+    public void addTaskChangeListener(TaskChangeListener listener) {
+        changePublisher.addListener(listener);
+    }
+
+    @Override
+    public void removeTaskChangeListener(TaskChangeListener listener) {
+        changePublisher.removeListener(listener);
+    }
+
+    /**
+     * Remove every task and deletion. Ids and versions carry on from where they were, as they do in the database,
+     * and every deletion up to now counts as purged.
+     */
+    @Override
+    public void cleanTaskData() {
+        writeLock.lock();
+        try {
+            tasks.clear();
+            tasksInIdOrder.clear();
+            tasksInDueDateOrder.clear();
+            changes.clear();
+            deletions.clear();
+            purgedVersion = lastVersion;
+            tasksVersion = tasksVersion.clear(lastVersion);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Task createTask(Task task) {
+        writeLock.lock();
+        try {
+            Task createdTask = buildTask(task, ++lastId, LocalDate.now(), ++lastVersion, Instant.now());
+            store(createdTask, null);
+            changePublisher.publish(createdTask.getVersion(), Collections.singletonList(TaskChange.created(createdTask)));
+            return copy(createdTask);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Create several tasks, with consecutive versions. Nothing can fail part way, so all of them are created.
+     * @param tasks
+     * @return
+     */
+    @Override
+    public List<Task> createTasks(List<Task> tasks) {
+        LocalDate creationDate = LocalDate.now();
+        Instant lastModified = Instant.now();
+        List<Task> createdTasks = new ArrayList<>(tasks.size());
+        writeLock.lock();
+        try {
+            for (Task task : tasks) {
+                Task createdTask = buildTask(task, ++lastId, creationDate, ++lastVersion, lastModified);
+                store(createdTask, null);
+                changePublisher.publish(createdTask.getVersion(), Collections.singletonList(TaskChange.created(createdTask)));
+                createdTasks.add(copy(createdTask));
+            }
+            return createdTasks;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<Task> getTask(int id) {
+        Task task = tasks.get(id);
+        return task == null ? Optional.empty() : Optional.of(copy(task));
+    }
+
+    @Override
+    public List<Task> getTasks() {
+        List<Task> tasks = new ArrayList<>();
+        forEachTask(tasks::add);
+        return tasks;
+    }
+
+    /**
+     * Stream all tasks, in id order.
+     * @param action
+     */
+    @Override
+    public void forEachTask(Consumer<Task> action) {
+        for (Task task : tasksInIdOrder.values()) {
+            action.accept(copy(task));
+        }
+    }
+
+    @Override
+    public List<Task> getTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        List<Task> tasks = new ArrayList<>();
+        forEachTaskBetweenDates(startDate, endDate, statuses, tasks::add);
+        return tasks;
+    }
+
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, Consumer<Task> action) {
+        forEachTaskBetweenDates(startDate, endDate, statuses, null, 0, action);
+    }
+
+    /**
+     * Stream a page of tasks ordered by id, from the tail of the id ordered map after the cursor.
+     * @param after The last task of the previous page, or null for the first page
+     * @param limit The maximum number of tasks in the page
+     * @param action
+     */
+    @Override
+    public void forEachTask(TaskCursor after, int limit, Consumer<Task> action) {
+        NavigableMap<Integer, Task> page = after == null ? tasksInIdOrder : tasksInIdOrder.tailMap(after.getId(), false);
+        int count = 0;
+        for (Task task : page.values()) {
+            if (limit > 0 && count++ == limit) {
+                return;
+            }
+            action.accept(copy(task));
+        }
+    }
+
+    /**
+     * Stream tasks between two dates, ordered by due date then id.
+     * If either date is null, then the min or max date for apache derby is used, as in the database.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @param after The last task of the previous page, or null for the first page
+     * @param limit The maximum number of tasks in the page, or 0 for no limit
+     * @param action
+     */
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskCursor after, int limit,
+                                        Consumer<Task> action) {
+        int count = 0;
+        Iterator<Task> matched = tasksInDueDateOrder.iterateBetweenDates(startDate, endDate, statuses, after);
+        while (matched.hasNext() && (limit <= 0 || count++ < limit)) {
+            action.accept(copy(matched.next()));
+        }
+    }
+
+    /**
+     * Set the fields of every task between two dates that are set in the patch.
+     * Tasks are matched exactly as they are by {@link #getTasksBetweenDates(LocalDate, LocalDate, List)}, and every
+     * updated task gets the same new version.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @param patch The fields to set
+     * @return The number of tasks updated
+     */
+    @Override
+    public int updateTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskPatch patch) {
+        writeLock.lock();
+        try {
+            List<Task> matched = getTasksToChange(startDate, endDate, statuses);
+            if (matched.isEmpty()) {
+                return 0;
+            }
+            long version = ++lastVersion;
+            Instant lastModified = Instant.now();
+            List<TaskChange> updates = new ArrayList<>(matched.size());
+            for (Task task : matched) {
+                Task updatedTask = new Task.TaskBuilder()
+                        .withId(task.getId())
+                        .withTitle(patch.isTitleSet() ? patch.getTitle() : task.getTitle())
+                        .withDescription(patch.isDescriptionSet() ? patch.getDescription() : task.getDescription())
+                        .withDueDate(patch.isDueDateSet() ? patch.getDueDate() : task.getDueDate())
+                        .withCreationDate(task.getCreationDate())
+                        .withStatus(getDbName(patch.isStatusSet() ? patch.getStatus() : task.getStatus()))
+                        .withVersion(version)
+                        .withLastModified(lastModified)
+                        .build();
+                store(updatedTask, task);
+                updates.add(TaskChange.updated(updatedTask));
+            }
+            changePublisher.publish(version, updates);
+            return updates.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete every task between two dates, matched as by {@link #getTasksBetweenDates(LocalDate, LocalDate, List)},
+     * with one new version.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @return The number of tasks deleted
+     */
+    @Override
+    public int deleteTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        writeLock.lock();
+        try {
+            List<Task> matched = getTasksToChange(startDate, endDate, statuses);
+            if (matched.isEmpty()) {
+                return 0;
+            }
+            long version = ++lastVersion;
+            Instant deletedOn = Instant.now();
+            List<TaskChange> deleted = new ArrayList<>(matched.size());
+            for (Task task : matched) {
+                remove(task, version, deletedOn);
+                deleted.add(TaskChange.deleted(task.getId(), version));
+            }
+            changePublisher.publish(version, deleted);
+            return deleted.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Collect the tasks a bulk write changes, in id order as the database publishes them, before it changes the maps
+     * it reads them from.
+     */
+    private List<Task> getTasksToChange(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        List<Task> matched = new ArrayList<>();
+        tasksInDueDateOrder.iterateBetweenDates(startDate, endDate, statuses, null).forEachRemaining(matched::add);
+        matched.sort(Comparator.comparingInt(Task::getId));
+        return matched;
+    }
+
+    /**
+     * The version of all tasks, kept up to date by every write rather than counted on each request.
+     * @return
+     */
+    @Override
+    public String getTasksVersion() {
+        return tasksVersion.toString();
+    }
+
+    /**
+     * Combine the count, maximum and sum of the versions of the tasks between two dates, as the database does.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @return
+     */
+    @Override
+    public String getTasksBetweenDatesVersion(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        long count = 0;
+        long max = 0;
+        long sum = 0;
+        Iterator<Task> matched = tasksInDueDateOrder.iterateBetweenDates(startDate, endDate, statuses, null);
+        while (matched.hasNext()) {
+            long version = matched.next().getVersion();
+            count++;
+            max = Math.max(max, version);
+            sum += version;
+        }
+        return CollectionVersion.of(count, max, sum).toString();
+    }
+
+    /**
+     * Get the tasks created, updated and deleted after a version, from the changes held by version, in the same
+     * pages as the database.
+     * @param since The version of the client's copy, or 0 for every task
+     * @param limit The maximum number of changes to return, unless more than that were made with a single version
+     * @return The changes, or a resync if deletions after since have been purged
+     */
+    @Override
+    public TaskChanges getChangesSince(long since, int limit) {
+        VersionIndex.Page<TaskChange> page = changes.getChangesSince(since, changePublisher.getLastPublishedVersion(), limit);
+        List<Task> changedTasks = new ArrayList<>();
+        List<Integer> deletedIds = new ArrayList<>();
+        for (TaskChange change : page.getChanges()) {
+            if (change.getType() == TaskChange.Type.DELETED) {
+                deletedIds.add(change.getId());
+            } else {
+                changedTasks.add(copy(change.getTask()));
+            }
+        }
+        // Read after the page, so a purge that runs alongside it is always seen
+        if (TaskChanges.isTooOld(since, purgedVersion)) {
+            return TaskChanges.resync();
+        }
+        return new TaskChanges(changedTasks, deletedIds, page.getVersion(), page.hasMore());
+    }
+
+    /**
+     * Remove the deletions made before a time from the changes, oldest first.
+     * @param deletedBefore
+     * @return The number of deletions purged
+     */
+    @Override
+    public int purgeTombstones(Instant deletedBefore) {
+        writeLock.lock();
+        try {
+            List<DeletionQueue.Deletion> expired = deletions.getDeletedBefore(deletedBefore);
+            for (DeletionQueue.Deletion deletion : expired) {
+                changes.remove(deletion.getVersion(), deletion.getId());
+                purgedVersion = deletion.getVersion();
+            }
+            deletions.removeOldest(expired.size());
+            return expired.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Replace an existing task.
+     * @param task
+     * @return The updated task, or empty if there is no task with the id
+     */
+    @Override
+    public Optional<Task> updateTask(Task task) {
+        writeLock.lock();
+        try {
+            Task previous = tasks.get(task.getId());
+            if (previous == null) {
+                return Optional.empty();
+            }
+            Task updatedTask = buildTask(task, task.getId(), previous.getCreationDate(), ++lastVersion, Instant.now());
+            store(updatedTask, previous);
+            changePublisher.publish(updatedTask.getVersion(), Collections.singletonList(TaskChange.updated(updatedTask)));
+            return Optional.of(copy(updatedTask));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete an existing task, and record its deletion.
+     * @param taskId
+     * @return True if the task was deleted, false if there is no task with the id
+     */
+    @Override
+    public boolean deleteTask(int taskId) {
+        writeLock.lock();
+        try {
+            Task previous = tasks.get(taskId);
+            if (previous == null) {
+                return false;
+            }
+            long version = ++lastVersion;
+            remove(previous, version, Instant.now());
+            changePublisher.publish(version, Collections.singletonList(TaskChange.deleted(taskId, version)));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Add a new or updated task to every map. Must be called holding writeLock.
+     * @param task The task to store, with a new version
+     * @param previous The task it replaces, or null if it is new
+     */
+    private void store(Task task, Task previous) {
+        tasks.put(task.getId(), task);
+        tasksInIdOrder.put(task.getId(), task);
+        tasksInDueDateOrder.put(task.getId(), task.getStatus(), task.getDueDate(), task,
+                previous == null ? null : previous.getStatus(), previous == null ? null : previous.getDueDate());
+        changes.put(task.getVersion(), task.getId(), TaskChange.updated(task));
+        if (previous == null) {
+            tasksVersion = tasksVersion.add(task.getVersion());
+        } else {
+            changes.remove(previous.getVersion(), previous.getId());
+            tasksVersion = tasksVersion.replace(previous.getVersion(), task.getVersion());
+        }
+    }
+
+    /**
+     * Remove a task from every map, and record its deletion. Must be called holding writeLock.
+     */
+    private void remove(Task task, long version, Instant deletedOn) {
+        tasks.remove(task.getId());
+        tasksInIdOrder.remove(task.getId());
+        tasksInDueDateOrder.remove(task.getId(), task.getStatus(), task.getDueDate());
+        changes.remove(task.getVersion(), task.getId());
+        changes.put(version, task.getId(), TaskChange.deleted(task.getId(), version));
+        deletions.add(version, task.getId(), deletedOn);
+        tasksVersion = tasksVersion.remove(task.getVersion(), version);
+    }
+
+    private static Task buildTask(Task task, int id, LocalDate creationDate, long version, Instant lastModified) {
+        return new Task.TaskBuilder()
+                .withId(id)
+                .withTitle(task.getTitle())
+                .withDescription(task.getDescription())
+                .withDueDate(task.getDueDate())
+                .withCreationDate(creationDate)
+                .withStatus(getDbName(task.getStatus()))
+                .withVersion(version)
+                .withLastModified(lastModified)
+                .build();
+    }
+
+    private static Task copy(Task task) {
+        return buildTask(task, task.getId(), task.getCreationDate(), task.getVersion(), task.getLastModified());
+    }
+
+    private static String getDbName(Task.Status status) {
+        return status == null ? null : status.getDbName();
+    }
+}
@@ -0,0 +1,424 @@
+package nz.co.solnet.database;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times how long connections take to acquire, and how long each statement takes to execute and to iterate over its
+ * results, keeping the timings for each shape of SQL (its text, with ? for bind parameters).
+ * Statements that take longer than the slow query threshold are written, with their bind parameters, to the
+ * nz.co.solnet.database.SlowQueryLog logger, which log4j2.xml sends to logs/slow-query.log.
+ * <p>
+ * Connections, statements and result sets are wrapped in proxies, as ConnectionPool does for its connections,
+ * so the repositories use them unchanged.
+ */
+class InstrumentedDataSource implements DataSource, SqlStatisticsMXBean {
+
+    private static final Logger slowQueryLogger = LogManager.getLogger("nz.co.solnet.database.SlowQueryLog");
+
+    // Statements are normally a handful of fixed shapes. This bounds memory if something builds SQL from input.
+    private static final int MAX_STATEMENT_SHAPES = 1000;
+
+    private static final String OTHER_STATEMENTS = "(other statements)";
+
+    private static final int MAX_PARAMETER_LENGTH = 100;
+
+    private final DataSource dataSource;
+
+    private final long slowQueryThresholdNanos;
+
+    private final ConcurrentHashMap<String, Timings> statements = new ConcurrentHashMap<>();
+
+    private final LongAdder acquisitions = new LongAdder();
+
+    private final LongAdder acquireNanos = new LongAdder();
+
+    private final LongAccumulator maxAcquireNanos = new LongAccumulator(Math::max, 0);
+
+    private final LongAdder slowStatements = new LongAdder();
+
+    /**
+     * @param dataSource The data source to instrument
+     * @param slowQueryThresholdMillis Statements that take longer than this are logged as slow
+     */
+    InstrumentedDataSource(DataSource dataSource, long slowQueryThresholdMillis) {
+        this.dataSource = dataSource;
+        this.slowQueryThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryThresholdMillis);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = dataSource.getConnection();
+        long elapsed = System.nanoTime() - start;
+        acquisitions.increment();
+        acquireNanos.add(elapsed);
+        maxAcquireNanos.accumulate(elapsed);
+        return (Connection) Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnectionHandler(connection));
+    }
+
+    @Override
+    public long getConnectionAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    @Override
+    public double getMeanConnectionAcquireMillis() {
+        long count = acquisitions.sum();
+        return count == 0 ? 0 : toMillis(acquireNanos.sum()) / count;
+    }
+
+    @Override
+    public double getMaxConnectionAcquireMillis() {
+        return toMillis(maxAcquireNanos.get());
+    }
+
+    @Override
+    public long getSlowStatements() {
+        return slowStatements.sum();
+    }
+
+    @Override
+    public List<StatementStatistics> getStatements() {
+        List<StatementStatistics> result = new ArrayList<>(statements.values());
+        result.sort(Comparator.comparingDouble((StatementStatistics s) -> s.getExecutions() * (s.getMeanExecuteMillis() + s.getMeanIterateMillis())).reversed());
+        return result;
+    }
+
+    private void record(String sql, Map<Integer, Object> parameters, long executeNanos, long iterateNanos, long rows) {
+        Timings timings = statements.get(sql);
+        if (timings == null) {
+            timings = statements.size() < MAX_STATEMENT_SHAPES
+                    ? statements.computeIfAbsent(sql, Timings::new)
+                    : statements.computeIfAbsent(OTHER_STATEMENTS, Timings::new);
+        }
+        timings.record(executeNanos, iterateNanos, rows);
+
+        if (executeNanos + iterateNanos >= slowQueryThresholdNanos) {
+            slowStatements.increment();
+            slowQueryLogger.warn(String.format("%.1f ms (execute %.1f ms, iterate %.1f ms, %d rows): %s; parameters %s",
+                    toMillis(executeNanos + iterateNanos), toMillis(executeNanos), toMillis(iterateNanos), rows, sql, formatParameters(parameters)));
+        }
+    }
+
+    private static String formatParameters(Map<Integer, Object> parameters) {
+        StringBuilder builder = new StringBuilder("[");
+        for (Map.Entry<Integer, Object> parameter : parameters.entrySet()) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            String value = String.valueOf(parameter.getValue());
+            if (value.length() > MAX_PARAMETER_LENGTH) {
+                value = value.substring(0, MAX_PARAMETER_LENGTH) + "...";
+            }
+            builder.append(parameter.getKey()).append('=').append(value);
+        }
+        return builder.append(']').toString();
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /**
+     * The timings of one shape of statement.
+     */
+    private static class Timings implements StatementStatistics {
+
+        private final String sql;
+
+        private final LongAdder executions = new LongAdder();
+
+        private final LongAdder executeNanos = new LongAdder();
+
+        private final LongAdder iterateNanos = new LongAdder();
+
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private final LongAdder rows = new LongAdder();
+
+        Timings(String sql) {
+            this.sql = sql;
+        }
+
+        void record(long executeNanos, long iterateNanos, long rows) {
+            this.executions.increment();
+            this.executeNanos.add(executeNanos);
+            this.iterateNanos.add(iterateNanos);
+            this.maxNanos.accumulate(executeNanos + iterateNanos);
+            this.rows.add(rows);
+        }
+
+        @Override
+        public String getSql() {
+            return sql;
+        }
+
+        @Override
+        public long getExecutions() {
+            return executions.sum();
+        }
+
+        @Override
+        public double getMeanExecuteMillis() {
+            long count = executions.sum();
+            return count == 0 ? 0 : toMillis(executeNanos.sum()) / count;
+        }
+
+        @Override
+        public double getMeanIterateMillis() {
+            long count = executions.sum();
+            return count == 0 ? 0 : toMillis(iterateNanos.sum()) / count;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return toMillis(maxNanos.get());
+        }
+
+        @Override
+        public long getRows() {
+            return rows.sum();
+        }
+    }
+
+    /**
+     * Wraps the statements a connection creates.
+     */
+    private class ConnectionHandler implements InvocationHandler {
+
+        private final Connection connection;
+
+        ConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = invokeTarget(connection, method, args);
+            switch (method.getName()) {
+                case "createStatement":
+                    return wrap(Statement.class, (Statement) result, null);
+                case "prepareStatement":
+                    return wrap(PreparedStatement.class, (Statement) result, (String) args[0]);
+                case "prepareCall":
+                    return wrap(CallableStatement.class, (Statement) result, (String) args[0]);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return result;
+            }
+        }
+
+        private Object wrap(Class<? extends Statement> type, Statement statement, String sql) {
+            return Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+                    new Class<?>[]{type}, new StatementHandler(statement, sql));
+        }
+    }
+
+    /**
+     * Times a statement's executions and remembers its bind parameters.
+     */
+    private class StatementHandler implements InvocationHandler {
+
+        private final Statement statement;
+
+        // Null for a plain Statement, whose SQL is given when it is executed
+        private final String sql;
+
+        private final Map<Integer, Object> parameters = new TreeMap<>();
+
+        private ResultSetHandler openResultSet;
+
+        StatementHandler(Statement statement, String sql) {
+            this.statement = statement;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("execute")) {
+                return execute(method, args);
+            }
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+                    && method.getDeclaringClass() != Statement.class) {
+                parameters.put((Integer) args[0], args[1]);
+            } else if (name.equals("clearParameters")) {
+                parameters.clear();
+            } else if (name.equals("close")) {
+                closeResultSet();
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            return invokeTarget(statement, method, args);
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            closeResultSet();
+            String executedSql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql;
+            long start = System.nanoTime();
+            Object result = invokeTarget(statement, method, args);
+            long executeNanos = System.nanoTime() - start;
+
+            if (result instanceof ResultSet) {
+                openResultSet = new ResultSetHandler((ResultSet) result, executedSql, new TreeMap<>(parameters), executeNanos);
+                return Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+                        new Class<?>[]{ResultSet.class}, openResultSet);
+            }
+            long rows = 0;
+            if (result instanceof Integer || result instanceof Long) {
+                rows = ((Number) result).longValue();
+            } else if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    rows += Math.max(count, 0);
+                }
+            }
+            record(executedSql, parameters, executeNanos, 0, rows);
+            return result;
+        }
+
+        private void closeResultSet() {
+            if (openResultSet != null) {
+                openResultSet.finish();
+                openResultSet = null;
+            }
+        }
+    }
+
+    /**
+     * Times iteration over a result set, and records the statement's timings when it is closed.
+     */
+    private class ResultSetHandler implements InvocationHandler {
+
+        private final ResultSet resultSet;
+
+        private final String sql;
+
+        private final Map<Integer, Object> parameters;
+
+        private final long executeNanos;
+
+        private long iterateNanos;
+
+        private long rows;
+
+        private boolean finished;
+
+        ResultSetHandler(ResultSet resultSet, String sql, Map<Integer, Object> parameters, long executeNanos) {
+            this.resultSet = resultSet;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.executeNanos = executeNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next":
+                    long start = System.nanoTime();
+                    Object hasNext = invokeTarget(resultSet, method, args);
+                    iterateNanos += System.nanoTime() - start;
+                    if ((Boolean) hasNext) {
+                        rows++;
+                    }
+                    return hasNext;
+                case "close":
+                    finish();
+                    return invokeTarget(resultSet, method, args);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return invokeTarget(resultSet, method, args);
+            }
+        }
+
+        void finish() {
+            if (!finished) {
+                finished = true;
+                record(sql, parameters, executeNanos, iterateNanos, rows);
+            }
+        }
+    }
+
+    private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Connections all use the configured credentials");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,794 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Repository that appends every write to a {@link TaskLog} of memory-mapped segment files, and keeps where the
+ * current record of each task is in memory.
+ * <p>
+ * The records are indexed as the tasks are by {@link InMemoryTaskRepository}: by id in a ConcurrentHashMap and a
+ * ConcurrentSkipListMap, by status then due date in a {@link DueDateIndex}, and by version in a
+ * {@link VersionIndex}. A task's other fields are read from the log when it is returned, so only the index is held
+ * on the heap, and a date range version is worked out without reading any task.
+ * <p>
+ * Writes are serialized by a lock, held while they take a version, append their records, update the indexes and
+ * publish their changes. A write is appended (and forced to disk if syncWrites is set) before it changes the
+ * indexes, so a write that fails changes nothing. Reads take no lock.
+ * <p>
+ * Opening the repository replays the log, keeping the record with the highest version for each id, so the tasks
+ * are as they were after the last complete write. Tombstones are kept, as deleted tasks are in the database, so that
+ * getChangesSince returns deletions after a restart.
+ * <p>
+ * Tombstones older than the retention period are purged, and the highest version purged is kept in a sequence
+ * record. A purged tombstone is no longer returned, but its record is still copied by compaction until it is in the
+ * oldest segment, as until then an earlier record of its task may be in an older segment, and would be replayed.
+ * <p>
+ * A background thread compacts the log: a sealed segment whose current records take up less than the compaction
+ * threshold of it has them copied to the active segment, a batch at a time under the lock, and is then deleted.
+ */
+class LogStructuredTaskRepository implements TaskStorageEngine {
+
+    private static final int COMPACTION_BATCH_SIZE = 1_000;
+
+    private final Logger logger = LogManager.getLogger(LogStructuredTaskRepository.class);
+
+    private final TaskLog log;
+
+    private final int compactionThresholdPercent;
+
+    private final ConcurrentHashMap<Integer, TaskLog.Record> tasks = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<Integer, TaskLog.Record> tasksInIdOrder = new ConcurrentSkipListMap<>();
+
+    private final DueDateIndex<TaskLog.Record> tasksInDueDateOrder = new DueDateIndex<>();
+
+    // The last change to each task (its creation or latest update) and each deletion
+    private final VersionIndex<TaskLog.Record> changes = new VersionIndex<>();
+
+    // The tombstone of each deleted task
+    private final ConcurrentHashMap<Integer, TaskLog.Record> tombstones = new ConcurrentHashMap<>();
+
+    // Guarded by writeLock. The tombstones that have been purged, but are still in the log.
+    private final Map<Integer, TaskLog.Record> purgedTombstones = new HashMap<>();
+
+    // Guarded by writeLock
+    private final DeletionQueue deletions = new DeletionQueue();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final TaskChangePublisher changePublisher;
+
+    private final ScheduledExecutorService compactor;
+
+    // Guarded by writeLock
+    private int lastId;
+
+    // Written under writeLock. Every write that changes a task takes the next version.
+    private volatile long lastVersion;
+
+    // Written under writeLock. The highest version of a tombstone that has been purged.
+    private volatile long purgedVersion;
+
+    // Replaced under writeLock by every write, so the three values are always read together
+    private volatile CollectionVersion tasksVersion = CollectionVersion.EMPTY;
+
+    private LogStructuredTaskRepository(LogStructuredTaskRepositoryBuilder builder) {
+        this.compactionThresholdPercent = builder.compactionThresholdPercent;
+        Map<Integer, TaskLog.Record> latest = new HashMap<>();
+        try {
+            log = TaskLog.open(builder.directory, builder.segmentBytes, builder.syncWrites, record -> {
+                lastId = Math.max(lastId, record.getId());
+                lastVersion = Math.max(lastVersion, record.getVersion());
+                if (record.getType() == TaskLog.SEQUENCE) {
+                    purgedVersion = Math.max(purgedVersion, TaskLog.readPurgedVersion(record));
+                } else {
+                    TaskLog.Record existing = latest.get(record.getId());
+                    // Equal versions are a compacted copy, which is the later one
+                    if (existing == null || record.getVersion() >= existing.getVersion()) {
+                        latest.put(record.getId(), record);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening task log " + builder.directory, e);
+        }
+        // Every write raises the collection's highest version, including a delete, so it is the last version
+        tasksVersion = CollectionVersion.EMPTY.clear(lastVersion);
+        List<TaskLog.Record> replayedTombstones = new ArrayList<>();
+        for (TaskLog.Record record : latest.values()) {
+            log.retain(record);
+            if (record.getType() == TaskLog.TASK) {
+                store(record, null);
+            } else if (record.getVersion() <= purgedVersion) {
+                purgedTombstones.put(record.getId(), record);
+            } else {
+                replayedTombstones.add(record);
+            }
+        }
+        // A tombstone written without the time of its deletion is counted from now
+        Instant openedOn = Instant.now();
+        replayedTombstones.sort(Comparator.comparingLong(TaskLog.Record::getVersion));
+        for (TaskLog.Record record : replayedTombstones) {
+            changes.put(record.getVersion(), record.getId(), record);
+            tombstones.put(record.getId(), record);
+            Instant deletedOn = TaskLog.readDeletedOn(record);
+            deletions.add(record.getVersion(), record.getId(), deletedOn == null ? openedOn : deletedOn);
+        }
+        changePublisher = new TaskChangePublisher(lastVersion);
+        logger.info("Opened task log " + builder.directory + " with " + tasks.size() + " tasks at version " + lastVersion);
+
+        if (builder.compactionIntervalMillis > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "task-log-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compact, builder.compactionIntervalMillis, builder.compactionIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            compactor = null;
+        }
+    }
+
+    @Override
+    public void addTaskChangeListener(TaskChangeListener listener) {
+        changePublisher.addListener(listener);
+    }
+
+    @Override
+    public void removeTaskChangeListener(TaskChangeListener listener) {
+        changePublisher.removeListener(listener);
+    }
+
+    /**
+     * Remove every task and deletion, by deleting every segment. Ids and versions carry on from where they were, as
+     * they do in the database, and every deletion up to now counts as purged.
+     */
+    @Override
+    public void cleanTaskData() {
+        writeLock.lock();
+        try {
+            log.clear();
+            log.appendSequence(lastId, lastVersion, lastVersion);
+            purgedVersion = lastVersion;
+            tasks.clear();
+            tasksInIdOrder.clear();
+            tasksInDueDateOrder.clear();
+            changes.clear();
+            tombstones.clear();
+            purgedTombstones.clear();
+            deletions.clear();
+            tasksVersion = tasksVersion.clear(lastVersion);
+        } catch (IOException e) {
+            throw new RuntimeException("Error clearing task log", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Task createTask(Task task) {
+        return createTasks(Collections.singletonList(task)).get(0);
+    }
+
+    /**
+     * Create several tasks, with consecutive versions, as one write to the log, so either all of them are created
+     * or none are.
+     * @param tasks
+     * @return
+     */
+    @Override
+    public List<Task> createTasks(List<Task> tasks) {
+        LocalDate creationDate = LocalDate.now();
+        Instant lastModified = Instant.now();
+        List<Task> createdTasks = new ArrayList<>(tasks.size());
+        writeLock.lock();
+        try {
+            int id = lastId;
+            long version = lastVersion;
+            for (Task task : tasks) {
+                createdTasks.add(buildTask(task, ++id, creationDate, ++version, lastModified));
+            }
+            List<TaskLog.Record> records = appendTasks(createdTasks);
+            lastId = id;
+            lastVersion = version;
+            for (int i = 0; i < createdTasks.size(); i++) {
+                store(records.get(i), null);
+                changePublisher.publish(createdTasks.get(i).getVersion(), Collections.singletonList(TaskChange.created(createdTasks.get(i))));
+            }
+            return createdTasks;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<Task> getTask(int id) {
+        TaskLog.Record record = tasks.get(id);
+        return record == null ? Optional.empty() : Optional.of(log.readTask(record));
+    }
+
+    @Override
+    public List<Task> getTasks() {
+        List<Task> tasks = new ArrayList<>();
+        forEachTask(tasks::add);
+        return tasks;
+    }
+
+    /**
+     * Stream all tasks, in id order.
+     * @param action
+     */
+    @Override
+    public void forEachTask(Consumer<Task> action) {
+        for (TaskLog.Record record : tasksInIdOrder.values()) {
+            action.accept(log.readTask(record));
+        }
+    }
+
+    @Override
+    public List<Task> getTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        List<Task> tasks = new ArrayList<>();
+        forEachTaskBetweenDates(startDate, endDate, statuses, tasks::add);
+        return tasks;
+    }
+
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, Consumer<Task> action) {
+        forEachTaskBetweenDates(startDate, endDate, statuses, null, 0, action);
+    }
+
+    /**
+     * Stream a page of tasks ordered by id, from the tail of the id ordered map after the cursor.
+     * @param after The last task of the previous page, or null for the first page
+     * @param limit The maximum number of tasks in the page
+     * @param action
+     */
+    @Override
+    public void forEachTask(TaskCursor after, int limit, Consumer<Task> action) {
+        NavigableMap<Integer, TaskLog.Record> page = after == null ? tasksInIdOrder : tasksInIdOrder.tailMap(after.getId(), false);
+        int count = 0;
+        for (TaskLog.Record record : page.values()) {
+            if (limit > 0 && count++ == limit) {
+                return;
+            }
+            action.accept(log.readTask(record));
+        }
+    }
+
+    /**
+     * Stream tasks between two dates, ordered by due date then id.
+     * If either date is null, then the min or max date for apache derby is used, as in the database.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @param after The last task of the previous page, or null for the first page
+     * @param limit The maximum number of tasks in the page, or 0 for no limit
+     * @param action
+     */
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskCursor after, int limit,
+                                        Consumer<Task> action) {
+        int count = 0;
+        Iterator<TaskLog.Record> matched = tasksInDueDateOrder.iterateBetweenDates(startDate, endDate, statuses, after);
+        while (matched.hasNext() && (limit <= 0 || count++ < limit)) {
+            action.accept(log.readTask(matched.next()));
+        }
+    }
+
+    /**
+     * Set the fields of every task between two dates that are set in the patch, as one write to the log.
+     * Tasks are matched exactly as they are by {@link #getTasksBetweenDates(LocalDate, LocalDate, List)}, and every
+     * updated task gets the same new version.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @param patch The fields to set
+     * @return The number of tasks updated
+     */
+    @Override
+    public int updateTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskPatch patch) {
+        writeLock.lock();
+        try {
+            List<TaskLog.Record> matched = getRecordsToChange(startDate, endDate, statuses);
+            if (matched.isEmpty()) {
+                return 0;
+            }
+            long version = lastVersion + 1;
+            Instant lastModified = Instant.now();
+            List<Task> updatedTasks = new ArrayList<>(matched.size());
+            for (TaskLog.Record record : matched) {
+                Task task = log.readTask(record);
+                updatedTasks.add(new Task.TaskBuilder()
+                        .withId(task.getId())
+                        .withTitle(patch.isTitleSet() ? patch.getTitle() : task.getTitle())
+                        .withDescription(patch.isDescriptionSet() ? patch.getDescription() : task.getDescription())
+                        .withDueDate(patch.isDueDateSet() ? patch.getDueDate() : task.getDueDate())
+                        .withCreationDate(task.getCreationDate())
+                        .withStatus(getDbName(patch.isStatusSet() ? patch.getStatus() : task.getStatus()))
+                        .withVersion(version)
+                        .withLastModified(lastModified)
+                        .build());
+            }
+            List<TaskLog.Record> records = appendTasks(updatedTasks);
+            lastVersion = version;
+            List<TaskChange> updates = new ArrayList<>(matched.size());
+            for (int i = 0; i < records.size(); i++) {
+                store(records.get(i), matched.get(i));
+                updates.add(TaskChange.updated(updatedTasks.get(i)));
+            }
+            changePublisher.publish(version, updates);
+            return updates.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete every task between two dates, matched as by {@link #getTasksBetweenDates(LocalDate, LocalDate, List)},
+     * with one new version, as one write to the log.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @return The number of tasks deleted
+     */
+    @Override
+    public int deleteTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        writeLock.lock();
+        try {
+            List<TaskLog.Record> matched = getRecordsToChange(startDate, endDate, statuses);
+            if (matched.isEmpty()) {
+                return 0;
+            }
+            return delete(matched);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Collect the records of the tasks a bulk write changes, in id order as the database publishes them, before it
+     * changes the maps it reads them from.
+     */
+    private List<TaskLog.Record> getRecordsToChange(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        List<TaskLog.Record> matched = new ArrayList<>();
+        tasksInDueDateOrder.iterateBetweenDates(startDate, endDate, statuses, null).forEachRemaining(matched::add);
+        matched.sort(Comparator.comparingInt(TaskLog.Record::getId));
+        return matched;
+    }
+
+    /**
+     * The version of all tasks, kept up to date by every write rather than counted on each request.
+     * @return
+     */
+    @Override
+    public String getTasksVersion() {
+        return tasksVersion.toString();
+    }
+
+    /**
+     * Combine the count, maximum and sum of the versions of the tasks between two dates, as the database does.
+     * The versions are held in the index, so no task is read from the log.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @return
+     */
+    @Override
+    public String getTasksBetweenDatesVersion(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        long count = 0;
+        long max = 0;
+        long sum = 0;
+        Iterator<TaskLog.Record> matched = tasksInDueDateOrder.iterateBetweenDates(startDate, endDate, statuses, null);
+        while (matched.hasNext()) {
+            long version = matched.next().getVersion();
+            count++;
+            max = Math.max(max, version);
+            sum += version;
+        }
+        return CollectionVersion.of(count, max, sum).toString();
+    }
+
+    /**
+     * Get the tasks created, updated and deleted after a version, from the records held by version, in the same
+     * pages as the database.
+     * @param since The version of the client's copy, or 0 for every task
+     * @param limit The maximum number of changes to return, unless more than that were made with a single version
+     * @return The changes, or a resync if tombstones after since have been purged
+     */
+    @Override
+    public TaskChanges getChangesSince(long since, int limit) {
+        VersionIndex.Page<TaskLog.Record> page = changes.getChangesSince(since, changePublisher.getLastPublishedVersion(), limit);
+        List<Task> changedTasks = new ArrayList<>();
+        List<Integer> deletedIds = new ArrayList<>();
+        for (TaskLog.Record record : page.getChanges()) {
+            if (record.getType() == TaskLog.TOMBSTONE) {
+                deletedIds.add(record.getId());
+            } else {
+                changedTasks.add(log.readTask(record));
+            }
+        }
+        // Read after the page, so a purge that runs alongside it is always seen
+        if (TaskChanges.isTooOld(since, purgedVersion)) {
+            return TaskChanges.resync();
+        }
+        return new TaskChanges(changedTasks, deletedIds, page.getVersion(), page.hasMore());
+    }
+
+    /**
+     * Stop returning the tombstones of tasks deleted before a time. The highest version purged is appended in a
+     * sequence record before the maps change, so the purge is only seen once it will be replayed.
+     * @param deletedBefore
+     * @return The number of tombstones purged
+     */
+    @Override
+    public int purgeTombstones(Instant deletedBefore) {
+        writeLock.lock();
+        try {
+            List<DeletionQueue.Deletion> expired = deletions.getDeletedBefore(deletedBefore);
+            if (expired.isEmpty()) {
+                return 0;
+            }
+            long version = expired.get(expired.size() - 1).getVersion();
+            log.appendSequence(lastId, lastVersion, version);
+            for (DeletionQueue.Deletion deletion : expired) {
+                changes.remove(deletion.getVersion(), deletion.getId());
+                purgedTombstones.put(deletion.getId(), tombstones.remove(deletion.getId()));
+            }
+            deletions.removeOldest(expired.size());
+            purgedVersion = version;
+            return expired.size();
+        } catch (IOException e) {
+            throw new RuntimeException("Error recording purged tombstones", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Replace an existing task.
+     * @param task
+     * @return The updated task, or empty if there is no task with the id
+     */
+    @Override
+    public Optional<Task> updateTask(Task task) {
+        writeLock.lock();
+        try {
+            TaskLog.Record previous = tasks.get(task.getId());
+            if (previous == null) {
+                return Optional.empty();
+            }
+            Task updatedTask = buildTask(task, task.getId(), log.readTask(previous).getCreationDate(), lastVersion + 1, Instant.now());
+            TaskLog.Record record = appendTasks(Collections.singletonList(updatedTask)).get(0);
+            lastVersion = updatedTask.getVersion();
+            store(record, previous);
+            changePublisher.publish(updatedTask.getVersion(), Collections.singletonList(TaskChange.updated(updatedTask)));
+            return Optional.of(updatedTask);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete an existing task, and record its deletion with a tombstone.
+     * @param taskId
+     * @return True if the task was deleted, false if there is no task with the id
+     */
+    @Override
+    public boolean deleteTask(int taskId) {
+        writeLock.lock();
+        try {
+            TaskLog.Record previous = tasks.get(taskId);
+            if (previous == null) {
+                return false;
+            }
+            delete(Collections.singletonList(previous));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Append a tombstone for each task with one new version, then remove them. Must be called holding writeLock.
+     * @return The number of tasks deleted
+     */
+    private int delete(List<TaskLog.Record> previous) {
+        long version = lastVersion + 1;
+        List<Integer> ids = new ArrayList<>(previous.size());
+        for (TaskLog.Record record : previous) {
+            ids.add(record.getId());
+        }
+        Instant deletedOn = Instant.now();
+        List<TaskLog.Record> records;
+        try {
+            records = log.appendTombstones(ids, version, deletedOn);
+        } catch (IOException e) {
+            throw new RuntimeException("Error appending tombstones for tasks " + ids, e);
+        }
+        lastVersion = version;
+        List<TaskChange> deleted = new ArrayList<>(previous.size());
+        for (int i = 0; i < records.size(); i++) {
+            remove(previous.get(i), records.get(i), deletedOn);
+            deleted.add(TaskChange.deleted(ids.get(i), version));
+        }
+        changePublisher.publish(version, deleted);
+        return deleted.size();
+    }
+
+    private List<TaskLog.Record> appendTasks(List<Task> tasks) {
+        try {
+            return log.appendTasks(tasks);
+        } catch (IOException e) {
+            throw new RuntimeException("Error appending " + tasks.size() + " tasks", e);
+        }
+    }
+
+    /**
+     * Point every map at a new or updated task's record. Must be called holding writeLock.
+     * @param record The task's record, with a new version
+     * @param previous The record it replaces, or null if it is new
+     */
+    private void store(TaskLog.Record record, TaskLog.Record previous) {
+        tasks.put(record.getId(), record);
+        tasksInIdOrder.put(record.getId(), record);
+        tasksInDueDateOrder.put(record.getId(), record.getStatus(), record.getDueDate(), record,
+                previous == null ? null : previous.getStatus(), previous == null ? null : previous.getDueDate());
+        changes.put(record.getVersion(), record.getId(), record);
+        if (previous == null) {
+            tasksVersion = tasksVersion.add(record.getVersion());
+        } else {
+            changes.remove(previous.getVersion(), previous.getId());
+            log.release(previous);
+            tasksVersion = tasksVersion.replace(previous.getVersion(), record.getVersion());
+        }
+    }
+
+    /**
+     * Remove a task from every map, and index its tombstone. Must be called holding writeLock.
+     */
+    private void remove(TaskLog.Record previous, TaskLog.Record tombstone, Instant deletedOn) {
+        tasks.remove(previous.getId());
+        tasksInIdOrder.remove(previous.getId());
+        tasksInDueDateOrder.remove(previous.getId(), previous.getStatus(), previous.getDueDate());
+        changes.remove(previous.getVersion(), previous.getId());
+        changes.put(tombstone.getVersion(), tombstone.getId(), tombstone);
+        tombstones.put(tombstone.getId(), tombstone);
+        deletions.add(tombstone.getVersion(), tombstone.getId(), deletedOn);
+        log.release(previous);
+        tasksVersion = tasksVersion.remove(previous.getVersion(), tombstone.getVersion());
+    }
+
+    /**
+     * Compact every sealed segment whose current records take up less than the compaction threshold of it.
+     * Runs on the compaction thread, so it logs rather than throws.
+     */
+    void compact() {
+        try {
+            List<TaskLog.Segment> sealedSegments;
+            writeLock.lock();
+            try {
+                sealedSegments = log.getSealedSegments();
+            } finally {
+                writeLock.unlock();
+            }
+            for (TaskLog.Segment segment : sealedSegments) {
+                if (isWorthCompacting(segment)) {
+                    compact(segment);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error compacting task log", e);
+        }
+    }
+
+    private boolean isWorthCompacting(TaskLog.Segment segment) {
+        writeLock.lock();
+        try {
+            return segment.getLiveBytes() * 100 < (long) segment.getUsedBytes() * compactionThresholdPercent;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copy the current records of a sealed segment to the active segment, then delete it.
+     * The segment is read without the lock, as it is never written again. The records are copied a batch at a time
+     * under the lock, skipping any that a write has superseded since, so writes only wait for one batch.
+     */
+    private void compact(TaskLog.Segment segment) throws IOException {
+        List<TaskLog.Record> records = new ArrayList<>();
+        log.forEachRecord(segment, records::add);
+        long liveBytesBefore = segment.getLiveBytes();
+        int copied = 0;
+        for (int start = 0; start < records.size(); start += COMPACTION_BATCH_SIZE) {
+            writeLock.lock();
+            try {
+                List<TaskLog.Record> live = new ArrayList<>();
+                boolean oldest = log.isOldest(segment);
+                for (TaskLog.Record record : records.subList(start, Math.min(start + COMPACTION_BATCH_SIZE, records.size()))) {
+                    if (isCurrent(record)) {
+                        live.add(record);
+                    } else if (record.isSameRecord(purgedTombstones.get(record.getId()))) {
+                        if (oldest) {
+                            // Nothing it supersedes can be left in an older segment, so it can go
+                            purgedTombstones.remove(record.getId());
+                        } else {
+                            live.add(record);
+                        }
+                    }
+                }
+                if (!live.isEmpty()) {
+                    List<TaskLog.Record> copies = log.copy(live);
+                    for (int i = 0; i < copies.size(); i++) {
+                        replace(live.get(i), copies.get(i));
+                    }
+                    copied += copies.size();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        writeLock.lock();
+        try {
+            // The segment may have held the only record of the last id or version
+            log.appendSequence(lastId, lastVersion, purgedVersion);
+            log.deleteSegment(segment);
+        } finally {
+            writeLock.unlock();
+        }
+        logger.info("Compacted task log segment " + segment + ", copying " + copied + " records (" + liveBytesBefore
+                + " of " + segment.getUsedBytes() + " bytes)");
+    }
+
+    /**
+     * @return True if a task or tombstone record is the one the maps point at. Must be called holding writeLock.
+     */
+    private boolean isCurrent(TaskLog.Record record) {
+        if (record.getType() == TaskLog.TASK) {
+            return record.isSameRecord(tasks.get(record.getId()));
+        }
+        return record.getType() == TaskLog.TOMBSTONE && record.isSameRecord(tombstones.get(record.getId()));
+    }
+
+    /**
+     * Point every map at the copy of a record. The copy has the same version, status and due date, so it takes the
+     * record's place in each map. Must be called holding writeLock.
+     */
+    private void replace(TaskLog.Record record, TaskLog.Record copy) {
+        if (copy.getType() == TaskLog.TASK) {
+            tasks.put(copy.getId(), copy);
+            tasksInIdOrder.put(copy.getId(), copy);
+            tasksInDueDateOrder.put(copy.getId(), copy.getStatus(), copy.getDueDate(), copy, record.getStatus(), record.getDueDate());
+            changes.put(copy.getVersion(), copy.getId(), copy);
+        } else if (purgedTombstones.containsKey(copy.getId())) {
+            purgedTombstones.put(copy.getId(), copy);
+        } else {
+            tombstones.put(copy.getId(), copy);
+            changes.put(copy.getVersion(), copy.getId(), copy);
+        }
+        log.release(record);
+    }
+
+    /**
+     * Stop compacting, and close the log.
+     */
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            try {
+                compactor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeLock.lock();
+        try {
+            log.close();
+        } catch (IOException e) {
+            logger.error("Error closing task log", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static Task buildTask(Task task, int id, LocalDate creationDate, long version, Instant lastModified) {
+        return new Task.TaskBuilder()
+                .withId(id)
+                .withTitle(task.getTitle())
+                .withDescription(task.getDescription())
+                .withDueDate(task.getDueDate())
+                .withCreationDate(creationDate)
+                .withStatus(getDbName(task.getStatus()))
+                .withVersion(version)
+                .withLastModified(lastModified)
+                .build();
+    }
+
+    private static String getDbName(Task.Status status) {
+        return status == null ? null : status.getDbName();
+    }
+
+    static class LogStructuredTaskRepositoryBuilder {
+
+        private static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+
+        private Path directory = Paths.get("tasklog");
+
+        private int segmentBytes = 64 * 1024 * 1024;
+
+        private boolean syncWrites = true;
+
+        private long compactionIntervalMillis = 60_000;
+
+        private int compactionThresholdPercent = 50;
+
+        LogStructuredTaskRepositoryBuilder withDirectory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        LogStructuredTaskRepositoryBuilder withSegmentBytes(int segmentBytes) {
+            if (segmentBytes < MIN_SEGMENT_BYTES) {
+                throw new IllegalArgumentException("Task log segment bytes must be at least " + MIN_SEGMENT_BYTES);
+            }
+            this.segmentBytes = segmentBytes;
+            return this;
+        }
+
+        /**
+         * Force every write to disk before it returns. Without this, a write survives the server crashing, but not
+         * the machine.
+         */
+        LogStructuredTaskRepositoryBuilder withSyncWrites(boolean syncWrites) {
+            this.syncWrites = syncWrites;
+            return this;
+        }
+
+        /**
+         * @param compactionIntervalMillis How often to look for segments to compact, or 0 to never compact
+         */
+        LogStructuredTaskRepositoryBuilder withCompactionIntervalMillis(long compactionIntervalMillis) {
+            this.compactionIntervalMillis = Math.max(0, compactionIntervalMillis);
+            return this;
+        }
+
+        LogStructuredTaskRepositoryBuilder withCompactionThresholdPercent(int compactionThresholdPercent) {
+            if (compactionThresholdPercent < 0 || compactionThresholdPercent > 100) {
+                throw new IllegalArgumentException("Task log compaction threshold percent must be between 0 and 100");
+            }
+            this.compactionThresholdPercent = compactionThresholdPercent;
+            return this;
+        }
+
+        LogStructuredTaskRepository build() {
+            return new LogStructuredTaskRepository(this);
+        }
+    }
+}
@@ -19,14 +19,18 @@ public class Repository {
         this.dataSource = dataSource;
     }
 
+    /**
+     * Borrow a connection. Closing the connection returns it to the pool.
+     * @return
+     * @throws RuntimeException if no connection could be obtained, e.g. the pool acquire timeout elapsed
+     */
     public Connection getConnection() {
         try {
-            Connection connection = dataSource.getConnection();
-            return connection;
+            return dataSource.getConnection();
         } catch (SQLException e) {
             logger.error("Error in getting connection", e);
+            throw new RuntimeException("Error in getting connection", e);
         }
-        return null;
     }
 
     /**
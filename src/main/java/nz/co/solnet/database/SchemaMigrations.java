@@ -0,0 +1,146 @@
+package nz.co.solnet.database;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Versioned schema migrations.
+ * Each migration is applied once, in version order, in its own transaction, and is recorded in the schema_version table.
+ * To change the schema add a new migration to the end of the list. Never edit a migration that has been released,
+ * as existing databases will already have applied it.
+ */
+class SchemaMigrations extends Repository {
+
+    private final Logger logger = LogManager.getLogger(SchemaMigrations.class);
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "Create tasks table",
+                    "CREATE TABLE tasks (id int not null generated always as identity,"
+                            + " title varchar(256) not null,"
+                            + " description varchar(1024),"
+                            + " due_date date,"
+                            + " status varchar(10),"
+                            + " creation_date date not null,"
+                            + " primary key (id))"),
+            new Migration(2, "Index tasks by due date",
+                    "CREATE INDEX tasks_due_date_idx ON tasks (due_date)"),
+            new Migration(3, "Index tasks by status and due date",
+                    "CREATE INDEX tasks_status_due_date_idx ON tasks (status, due_date)"),
+            new Migration(4, "Add version and last modified time to tasks",
+                    "ALTER TABLE tasks ADD COLUMN version BIGINT NOT NULL DEFAULT 0",
+                    "ALTER TABLE tasks ADD COLUMN last_modified TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP"),
+            new Migration(5, "Index tasks by version",
+                    "CREATE INDEX tasks_version_idx ON tasks (version)"),
+            new Migration(6, "Record deleted tasks",
+                    "CREATE TABLE task_tombstones (id int not null,"
+                            + " version bigint not null,"
+                            + " deleted_on timestamp not null,"
+                            + " primary key (id))",
+                    "CREATE INDEX task_tombstones_version_idx ON task_tombstones (version)"),
+            // Migration 4 gave every existing task version 0, which no client's since is below. Each is given its
+            // own version above every other, so the next sync returns it. The versions carry on from the new maximum.
+            new Migration(7, "Give tasks from before versioning a version",
+                    "UPDATE tasks SET version = id + (SELECT COALESCE(MAX(version), 0) FROM tasks)"
+                            + " + (SELECT COALESCE(MAX(version), 0) FROM task_tombstones) WHERE version = 0"),
+            new Migration(8, "Record the version up to which tombstones have been purged",
+                    "CREATE TABLE task_tombstone_horizon (version bigint not null)",
+                    "INSERT INTO task_tombstone_horizon (version) VALUES (0)")
+    );
+
+    SchemaMigrations(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    /**
+     * Bring the schema up to the latest version.
+     */
+    void migrate() {
+        try {
+            initialiseSchemaVersionTable();
+            int currentVersion = getCurrentVersion();
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version > currentVersion) {
+                    apply(migration);
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error in migrating database schema", e);
+        }
+    }
+
+    /**
+     * Create the schema_version table if it doesn't exist.
+     * Databases created before migrations were introduced already have the tasks table, so version 1 is recorded
+     * as applied rather than run.
+     */
+    private void initialiseSchemaVersionTable() throws SQLException {
+        if (doesTableExist("schema_version")) {
+            return;
+        }
+        boolean existingDatabase = doesTableExist("tasks");
+        try (Connection conn = getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("CREATE TABLE schema_version (version int not null,"
+                    + " description varchar(256) not null,"
+                    + " applied_on timestamp not null,"
+                    + " primary key (version))");
+            if (existingDatabase) {
+                logger.info("Task table already exists, recording it as schema version 1");
+                recordVersion(conn, MIGRATIONS.get(0));
+            }
+        }
+    }
+
+    private int getCurrentVersion() throws SQLException {
+        try (Connection conn = getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private void apply(Migration migration) throws SQLException {
+        logger.info("Migrating database schema to version " + migration.version + ": " + migration.description);
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement statement = conn.createStatement()) {
+                for (String sql : migration.statements) {
+                    statement.execute(sql);
+                }
+                recordVersion(conn, migration);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private void recordVersion(Connection conn, Migration migration) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("INSERT INTO schema_version (version, description, applied_on) VALUES (?, ?, CURRENT_TIMESTAMP)")) {
+            statement.setInt(1, migration.version);
+            statement.setString(2, migration.description);
+            statement.executeUpdate();
+        }
+    }
+
+    private static class Migration {
+
+        private final int version;
+
+        private final String description;
+
+        private final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+}
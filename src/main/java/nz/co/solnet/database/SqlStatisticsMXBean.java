@@ -0,0 +1,34 @@
+package nz.co.solnet.database;
+
+import java.util.List;
+
+/**
+ * Timings of connection acquisition and of each shape of SQL statement, exposed over JMX.
+ */
+public interface SqlStatisticsMXBean {
+
+    /**
+     * @return The number of connections acquired
+     */
+    long getConnectionAcquisitions();
+
+    /**
+     * @return The mean time taken to acquire a connection, in milliseconds
+     */
+    double getMeanConnectionAcquireMillis();
+
+    /**
+     * @return The longest time taken to acquire a connection, in milliseconds
+     */
+    double getMaxConnectionAcquireMillis();
+
+    /**
+     * @return The number of statements that took longer than the slow query threshold
+     */
+    long getSlowStatements();
+
+    /**
+     * @return The timings of each shape of SQL statement executed, slowest (by total time) first
+     */
+    List<StatementStatistics> getStatements();
+}
@@ -0,0 +1,38 @@
+package nz.co.solnet.database;
+
+/**
+ * Timings of one shape of SQL statement, exposed over JMX as part of {@link SqlStatisticsMXBean}.
+ */
+public interface StatementStatistics {
+
+    /**
+     * @return The statement's SQL, with ? for its bind parameters
+     */
+    String getSql();
+
+    /**
+     * @return The number of times the statement has been executed
+     */
+    long getExecutions();
+
+    /**
+     * @return The mean time taken to execute the statement, in milliseconds
+     */
+    double getMeanExecuteMillis();
+
+    /**
+     * @return The mean time taken to iterate over the statement's results, in milliseconds.
+     * Only time spent in ResultSet.next() is counted, not the time the caller takes to use each row.
+     */
+    double getMeanIterateMillis();
+
+    /**
+     * @return The longest time taken to execute the statement and iterate over its results, in milliseconds
+     */
+    double getMaxMillis();
+
+    /**
+     * @return The number of rows read or updated by the statement
+     */
+    long getRows();
+}
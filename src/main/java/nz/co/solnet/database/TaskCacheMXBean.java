@@ -0,0 +1,32 @@
+package nz.co.solnet.database;
+
+/**
+ * Counters for the task cache, exposed over JMX.
+ */
+public interface TaskCacheMXBean {
+
+    /**
+     * @return The number of single task lookups answered from the cache
+     */
+    long getHits();
+
+    /**
+     * @return The number of single task lookups that went to the database
+     */
+    long getMisses();
+
+    /**
+     * @return The number of entries removed because the cache was full or the entry had expired
+     */
+    long getEvictions();
+
+    /**
+     * @return The number of tasks currently cached
+     */
+    int getSize();
+
+    /**
+     * @return The maximum number of tasks the cache will hold
+     */
+    int getMaxEntries();
+}
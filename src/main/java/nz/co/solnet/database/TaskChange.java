@@ -0,0 +1,63 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+
+/**
+ * A committed change to a task: its creation, an update or its deletion.
+ * Every change has the version of the write that made it. A bulk update or delete gives every task it changes the
+ * same version.
+ */
+public class TaskChange {
+
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED
+    }
+
+    private final Type type;
+
+    private final long version;
+
+    private final int id;
+
+    private final Task task;
+
+    private TaskChange(Type type, long version, int id, Task task) {
+        this.type = type;
+        this.version = version;
+        this.id = id;
+        this.task = task;
+    }
+
+    static TaskChange created(Task task) {
+        return new TaskChange(Type.CREATED, task.getVersion(), task.getId(), task);
+    }
+
+    static TaskChange updated(Task task) {
+        return new TaskChange(Type.UPDATED, task.getVersion(), task.getId(), task);
+    }
+
+    static TaskChange deleted(int id, long version) {
+        return new TaskChange(Type.DELETED, version, id, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return The task as it is after the change, or null if it was deleted. It must not be modified.
+     */
+    public Task getTask() {
+        return task;
+    }
+}
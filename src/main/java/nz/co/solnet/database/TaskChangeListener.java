@@ -0,0 +1,15 @@
+package nz.co.solnet.database;
+
+/**
+ * Told about every committed change to a task, so that something kept alongside the tasks table can stay in step
+ * with it.
+ */
+public interface TaskChangeListener {
+
+    /**
+     * Called once a change has been committed, in version order.
+     * Changes are delivered one at a time while later changes wait, so this must be quick and must not write tasks.
+     * @param change The change
+     */
+    void onTaskChange(TaskChange change);
+}
@@ -0,0 +1,99 @@
+package nz.co.solnet.database;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers committed task changes to listeners in version order.
+ * Writes take their version before they commit, so they can commit out of order. Writes to the same task take theirs
+ * once they hold its lock, so only writes to different tasks do. A change is held here until every earlier version
+ * has been published or skipped (because its write failed or changed nothing), so listeners see changes in the same
+ * order as the versions the tasks carry.
+ * Every version taken must be published or skipped, otherwise later changes are never delivered.
+ */
+class TaskChangePublisher {
+
+    private final Logger logger = LogManager.getLogger(TaskChangePublisher.class);
+
+    private final List<TaskChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Changes waiting for an earlier version, by version
+    private final TreeMap<Long, List<TaskChange>> pending = new TreeMap<>();
+
+    private long lastPublishedVersion;
+
+    /**
+     * @param lastVersion The last version given to a task, before any new write
+     */
+    TaskChangePublisher(long lastVersion) {
+        this.lastPublishedVersion = lastVersion;
+    }
+
+    void addListener(TaskChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(TaskChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publish the changes made by a committed write.
+     * @param version The write's version
+     * @param changes The changes, which all have the write's version
+     */
+    void publish(long version, List<TaskChange> changes) {
+        lock.lock();
+        try {
+            pending.put(version, changes);
+            while (!pending.isEmpty() && pending.firstKey() == lastPublishedVersion + 1) {
+                Map.Entry<Long, List<TaskChange>> next = pending.pollFirstEntry();
+                lastPublishedVersion = next.getKey();
+                for (TaskChange change : next.getValue()) {
+                    deliver(change);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Skip a version whose write failed or changed nothing.
+     * @param version The write's version
+     */
+    void skip(long version) {
+        publish(version, Collections.emptyList());
+    }
+
+    /**
+     * @return The version up to which every change has been published
+     */
+    long getLastPublishedVersion() {
+        lock.lock();
+        try {
+            return lastPublishedVersion;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deliver(TaskChange change) {
+        for (TaskChangeListener listener : listeners) {
+            try {
+                listener.onTaskChange(change);
+            } catch (RuntimeException e) {
+                logger.error("Error in task change listener " + listener, e);
+            }
+        }
+    }
+}
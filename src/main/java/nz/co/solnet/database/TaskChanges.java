@@ -0,0 +1,97 @@
+package nz.co.solnet.database;
+
+import com.google.gson.annotations.SerializedName;
+import nz.co.solnet.model.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tasks changed and deleted after a version, for clients that keep a copy of the tasks in sync.
+ * A task that was changed several times is only included once, as it is now. A task that was deleted is only
+ * included in the deleted ids.
+ * Clients ask for the next changes with the version of these, until hasMore is false.
+ * Tombstones are purged once they are older than the retention period, so a client whose copy is older than the last
+ * purged tombstone may have missed a deletion. It is told to resync: to drop its copy and ask for every task again.
+ */
+public class TaskChanges {
+
+    private final List<Task> tasks;
+
+    @SerializedName("deleted")
+    private final List<Integer> deletedIds;
+
+    private final long version;
+
+    @SerializedName("has_more")
+    private final boolean hasMore;
+
+    private final boolean resync;
+
+    TaskChanges(List<Task> tasks, List<Integer> deletedIds, long version, boolean hasMore) {
+        this(tasks, deletedIds, version, hasMore, false);
+    }
+
+    private TaskChanges(List<Task> tasks, List<Integer> deletedIds, long version, boolean hasMore, boolean resync) {
+        this.tasks = tasks;
+        this.deletedIds = deletedIds;
+        this.version = version;
+        this.hasMore = hasMore;
+        this.resync = resync;
+    }
+
+    /**
+     * Tell a client that its copy is too old to be brought up to date, as tombstones it hasn't seen have been purged.
+     * It has no changes, and a version of 0 with more to come, so a client that just follows the version gets
+     * every task next.
+     * @return
+     */
+    static TaskChanges resync() {
+        return new TaskChanges(new ArrayList<>(), new ArrayList<>(), 0, true, true);
+    }
+
+    /**
+     * Whether a client whose copy is at a version may have missed a deletion whose tombstone has been purged.
+     * A copy at version 0 is empty, so it has nothing to miss.
+     * @param since The version of the client's copy
+     * @param purgedVersion The version up to which tombstones have been purged
+     */
+    static boolean isTooOld(long since, long purgedVersion) {
+        return since > 0 && since < purgedVersion;
+    }
+
+    /**
+     * @return The tasks created or updated, in version order
+     */
+    public List<Task> getTasks() {
+        return tasks;
+    }
+
+    /**
+     * @return The ids of the tasks deleted, in version order
+     */
+    public List<Integer> getDeletedIds() {
+        return deletedIds;
+    }
+
+    /**
+     * @return The version these changes are up to (the high water mark), to ask for the changes after
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return True if there are more changes after the version than were returned
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * @return True if the client must drop its copy and sync again from version 0
+     */
+    public boolean isResync() {
+        return resync;
+    }
+}
@@ -0,0 +1,34 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+
+import java.util.Map;
+
+/**
+ * The number of tasks with each status in a collection of tasks, for reports that need the numbers and not the tasks.
+ */
+public class TaskCounts {
+
+    private final Map<Task.Status, Integer> counts;
+
+    private final int total;
+
+    TaskCounts(Map<Task.Status, Integer> counts, int total) {
+        this.counts = counts;
+        this.total = total;
+    }
+
+    /**
+     * @return The count of each status that was counted, in status order
+     */
+    public Map<Task.Status, Integer> getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return The sum of the counts
+     */
+    public int getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,85 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * A position in an ordered collection of tasks, used for keyset (cursor) pagination.
+ * Unfiltered collections are ordered by id, so only the id is used. Collections filtered by date are ordered
+ * by due date then id, so both are used.
+ * Cursors are handed to clients as opaque strings, see {@link #encode()} and {@link #decode(String)}.
+ */
+public class TaskCursor {
+
+    private static final String SEPARATOR = ":";
+
+    private final LocalDate dueDate;
+
+    private final int id;
+
+    private TaskCursor(LocalDate dueDate, int id) {
+        this.dueDate = dueDate;
+        this.id = id;
+    }
+
+    /**
+     * The position after the given task in a collection ordered by id.
+     * @param task
+     * @return
+     */
+    public static TaskCursor byId(Task task) {
+        return new TaskCursor(null, task.getId());
+    }
+
+    /**
+     * The position after the given task in a collection ordered by due date then id.
+     * @param task
+     * @return
+     */
+    public static TaskCursor byDueDate(Task task) {
+        return new TaskCursor(task.getDueDate(), task.getId());
+    }
+
+    /**
+     * Decode a cursor previously produced by {@link #encode()}.
+     * @param value
+     * @return
+     * @throws IllegalArgumentException if the value is not a valid cursor
+     */
+    public static TaskCursor decode(String value) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+            int separator = decoded.indexOf(SEPARATOR);
+            if (separator < 0) {
+                return new TaskCursor(null, Integer.parseInt(decoded));
+            }
+            return new TaskCursor(LocalDate.parse(decoded.substring(0, separator)), Integer.parseInt(decoded.substring(separator + 1)));
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + value, e);
+        }
+    }
+
+    public String encode() {
+        String value = dueDate == null ? String.valueOf(id) : dueDate + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public LocalDate getDueDate() {
+        return dueDate;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return true if this cursor was created for a collection ordered by due date
+     */
+    public boolean isByDueDate() {
+        return dueDate != null;
+    }
+}
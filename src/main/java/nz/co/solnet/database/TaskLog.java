@@ -0,0 +1,710 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of task records, in memory-mapped segment files, for {@link LogStructuredTaskRepository}.
+ * <p>
+ * Every record has a header of its length, a CRC32C of the rest of the record, its type, its flags, its version
+ * and its task's id. A task record then has the task's fields, a tombstone has the time of the deletion, and a
+ * sequence record keeps the last id and version given out (in its id and version) for when no task or tombstone
+ * does, and the version up to which tombstones have been purged. Tombstones and sequence records written before
+ * those were added have nothing more.
+ * The records of one write are appended together, to one segment, with every record but the last flagged as
+ * continued, so a write is only replayed if all of its records were written.
+ * When the active segment has no room for a write, a new segment is started, and the old one is sealed and never
+ * written again.
+ * <p>
+ * Opening the log replays the segments in order, and stops at the first record that is incomplete or fails its
+ * check, which is where a crash left off. Everything after that in the last segment is cleared, whatever it holds,
+ * and writing carries on from there.
+ * <p>
+ * Records are read through their segment's mapping, so a read takes no lock and no system call. Writes, rolling,
+ * and retiring segments must be serialized by the engine. A segment is never unmapped explicitly, so a read that
+ * runs alongside compaction or cleanTaskData still sees the record it looked up. Instead a segment is retired by
+ * clearing the length of its first record, so that it replays as empty, and its file is deleted. Where a mapped
+ * file can't be deleted, as on Windows, it is deleted once its mapping has been garbage collected: when another
+ * segment is retired, or when the log is next opened.
+ */
+final class TaskLog implements Closeable {
+
+    static final byte TASK = 1;
+
+    static final byte TOMBSTONE = 2;
+
+    static final byte SEQUENCE = 3;
+
+    private static final byte CONTINUED = 1;
+
+    private static final int LENGTH_OFFSET = 0;
+
+    private static final int CRC_OFFSET = 4;
+
+    private static final int TYPE_OFFSET = 8;
+
+    private static final int FLAGS_OFFSET = 9;
+
+    private static final int VERSION_OFFSET = 10;
+
+    private static final int ID_OFFSET = 18;
+
+    private static final int HEADER_BYTES = 22;
+
+    // The task's fields, after the header
+    private static final int CREATION_DATE_OFFSET = HEADER_BYTES;
+
+    private static final int LAST_MODIFIED_SECONDS_OFFSET = CREATION_DATE_OFFSET + 8;
+
+    private static final int LAST_MODIFIED_NANOS_OFFSET = LAST_MODIFIED_SECONDS_OFFSET + 8;
+
+    private static final int DUE_DATE_OFFSET = LAST_MODIFIED_NANOS_OFFSET + 4;
+
+    private static final int STATUS_OFFSET = DUE_DATE_OFFSET + 8;
+
+    private static final int TITLE_OFFSET = STATUS_OFFSET + 1;
+
+    // The body of a tombstone
+    private static final int DELETED_ON_OFFSET = HEADER_BYTES;
+
+    // The body of a sequence record
+    private static final int PURGED_VERSION_OFFSET = HEADER_BYTES;
+
+    // Stands in for a null date or time
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("segment-(\\d{20})\\.log");
+
+    private final Logger logger = LogManager.getLogger(TaskLog.class);
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    private final boolean syncWrites;
+
+    private final FileChannel lockChannel;
+
+    private final FileLock lock;
+
+    // Oldest first. The last is the active segment.
+    private final List<Segment> segments = new ArrayList<>();
+
+    private Segment active;
+
+    // The files of retired segments that couldn't be deleted yet, as they were still mapped
+    private final List<Path> retiredPaths = new ArrayList<>();
+
+    private TaskLog(Path directory, int segmentBytes, boolean syncWrites) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncWrites = syncWrites;
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Task log " + directory + " is in use by another process");
+        }
+    }
+
+    /**
+     * Open the log in a directory, creating it if there isn't one, and replay every complete write in it.
+     * @param replay Given every record of every complete write, in the order they were written
+     */
+    static TaskLog open(Path directory, int segmentBytes, boolean syncWrites, Consumer<Record> replay) throws IOException {
+        TaskLog log = new TaskLog(directory, segmentBytes, syncWrites);
+        try {
+            log.replay(replay);
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        return log;
+    }
+
+    private void replay(Consumer<Record> replay) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path path : files) {
+                if (SEGMENT_FILE_NAME.matcher(path.getFileName().toString()).matches()) {
+                    paths.add(path);
+                }
+            }
+        }
+        Collections.sort(paths);
+
+        for (int i = 0; i < paths.size(); i++) {
+            boolean last = i == paths.size() - 1;
+            // A new segment is always started before the old ones are retired, so the last is never retired
+            if (!last && isRetired(paths.get(i))) {
+                Files.delete(paths.get(i));
+                continue;
+            }
+            Segment segment = Segment.open(paths.get(i), last ? segmentBytes : 0);
+            segments.add(segment);
+            int end = forEachRecord(segment, replay);
+            segment.writePosition = end;
+            if (end + 4 <= segment.capacity() && segment.buffer.getInt(end + LENGTH_OFFSET) != 0) {
+                logger.warn("Discarding the records after byte " + end + " of " + segment.path + ", which were not completely written");
+            }
+            if (last) {
+                // A torn write can leave bytes after a length that was never written, so nothing after the end is kept
+                zero(segment, end, segment.capacity() - end);
+                segment.buffer.force();
+            }
+        }
+        if (segments.isEmpty()) {
+            roll(0);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+    }
+
+    /**
+     * @return True if a segment file's first record has no length, as it was retired but not deleted. It is read
+     * without mapping it, so that it can be deleted straight away.
+     */
+    private static boolean isRetired(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, LENGTH_OFFSET);
+            return length.hasRemaining() || length.getInt(0) == 0;
+        }
+    }
+
+    /**
+     * Read every record of every complete write in a segment, in the order they were written.
+     * @return The position after the last complete write
+     */
+    int forEachRecord(Segment segment, Consumer<Record> action) {
+        List<Record> write = new ArrayList<>();
+        int position = 0;
+        int end = 0;
+        Record record;
+        while ((record = readRecord(segment, position)) != null) {
+            write.add(record);
+            position += record.length;
+            if (!record.continued) {
+                write.forEach(action);
+                write.clear();
+                end = position;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return The record at a position, or null if there is no complete record there
+     */
+    private static Record readRecord(Segment segment, int position) {
+        ByteBuffer buffer = segment.buffer;
+        if (position + HEADER_BYTES > segment.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(position + LENGTH_OFFSET);
+        if (length < HEADER_BYTES || length > segment.capacity() - position) {
+            return null;
+        }
+        ByteBuffer checked = buffer.duplicate();
+        checked.limit(position + length).position(position + TYPE_OFFSET);
+        CRC32C crc = new CRC32C();
+        crc.update(checked);
+        if ((int) crc.getValue() != buffer.getInt(position + CRC_OFFSET)) {
+            return null;
+        }
+
+        byte type = buffer.get(position + TYPE_OFFSET);
+        Task.Status status = null;
+        LocalDate dueDate = null;
+        if (type == TASK) {
+            byte ordinal = buffer.get(position + STATUS_OFFSET);
+            status = ordinal < 0 ? null : Task.Status.values()[ordinal];
+            dueDate = toDate(buffer.getLong(position + DUE_DATE_OFFSET));
+        }
+        return new Record(segment, position, length, type, (buffer.get(position + FLAGS_OFFSET) & CONTINUED) != 0,
+                buffer.getLong(position + VERSION_OFFSET), buffer.getInt(position + ID_OFFSET), status, dueDate);
+    }
+
+    /**
+     * Read the task a task record holds.
+     */
+    Task readTask(Record record) {
+        ByteBuffer buffer = record.segment.buffer.duplicate();
+        int offset = record.offset;
+        long lastModifiedSeconds = buffer.getLong(offset + LAST_MODIFIED_SECONDS_OFFSET);
+        buffer.position(offset + TITLE_OFFSET);
+        String title = getString(buffer);
+        String description = getString(buffer);
+        return new Task.TaskBuilder()
+                .withId(record.id)
+                .withTitle(title)
+                .withDescription(description)
+                .withDueDate(record.dueDate)
+                .withCreationDate(toDate(buffer.getLong(offset + CREATION_DATE_OFFSET)))
+                .withStatus(record.status == null ? null : record.status.getDbName())
+                .withVersion(record.version)
+                .withLastModified(lastModifiedSeconds == NONE ? null
+                        : Instant.ofEpochSecond(lastModifiedSeconds, buffer.getInt(offset + LAST_MODIFIED_NANOS_OFFSET)))
+                .build();
+    }
+
+    /**
+     * Append a task record for each task, as one write.
+     * @return The records, in the same order as the tasks
+     */
+    List<Record> appendTasks(List<Task> tasks) throws IOException {
+        List<byte[]> records = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            byte[] title = getBytes(task.getTitle());
+            byte[] description = getBytes(task.getDescription());
+            ByteBuffer record = newRecord(TASK, task.getVersion(), task.getId(),
+                    TITLE_OFFSET - HEADER_BYTES + 8 + length(title) + length(description));
+            record.putLong(toEpochDay(task.getCreationDate()));
+            record.putLong(task.getLastModified() == null ? NONE : task.getLastModified().getEpochSecond());
+            record.putInt(task.getLastModified() == null ? 0 : task.getLastModified().getNano());
+            record.putLong(toEpochDay(task.getDueDate()));
+            record.put(task.getStatus() == null ? -1 : (byte) task.getStatus().ordinal());
+            putBytes(record, title);
+            putBytes(record, description);
+            records.add(record.array());
+        }
+        return append(records);
+    }
+
+    /**
+     * Append a tombstone for each deleted task, as one write.
+     * @return The tombstones, in the same order as the ids
+     */
+    List<Record> appendTombstones(List<Integer> ids, long version, Instant deletedOn) throws IOException {
+        List<byte[]> records = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            records.add(newRecord(TOMBSTONE, version, id, 8).putLong(deletedOn.toEpochMilli()).array());
+        }
+        return append(records);
+    }
+
+    /**
+     * Read the time of the deletion a tombstone records.
+     * @return The time, or null if the tombstone was written without one
+     */
+    static Instant readDeletedOn(Record tombstone) {
+        if (tombstone.length < DELETED_ON_OFFSET + 8) {
+            return null;
+        }
+        return Instant.ofEpochMilli(tombstone.segment.buffer.getLong(tombstone.offset + DELETED_ON_OFFSET));
+    }
+
+    /**
+     * Append a record of the last id and version given out, so they carry on from there when the log is opened,
+     * even if no task or tombstone left holds them, and of the version up to which tombstones have been purged.
+     */
+    void appendSequence(int lastId, long lastVersion, long purgedVersion) throws IOException {
+        append(Collections.singletonList(newRecord(SEQUENCE, lastVersion, lastId, 8).putLong(purgedVersion).array()));
+    }
+
+    /**
+     * Read the version up to which tombstones had been purged when a sequence record was written.
+     * @return The version, or 0 if the record was written without one
+     */
+    static long readPurgedVersion(Record sequence) {
+        if (sequence.length < PURGED_VERSION_OFFSET + 8) {
+            return 0;
+        }
+        return sequence.segment.buffer.getLong(sequence.offset + PURGED_VERSION_OFFSET);
+    }
+
+    /**
+     * Append a copy of each record, with the same version, as one write, so that the segments they are in can be
+     * deleted.
+     * @return The copies, in the same order as the records
+     */
+    List<Record> copy(List<Record> records) throws IOException {
+        List<byte[]> copies = new ArrayList<>(records.size());
+        for (Record record : records) {
+            byte[] copy = new byte[record.length];
+            ByteBuffer buffer = record.segment.buffer.duplicate();
+            buffer.position(record.offset);
+            buffer.get(copy);
+            copies.add(copy);
+        }
+        return append(copies);
+    }
+
+    private static ByteBuffer newRecord(byte type, long version, int id, int bodyBytes) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyBytes);
+        record.putInt(LENGTH_OFFSET, record.capacity());
+        record.put(TYPE_OFFSET, type);
+        record.putLong(VERSION_OFFSET, version);
+        record.putInt(ID_OFFSET, id);
+        record.position(HEADER_BYTES);
+        return record;
+    }
+
+    /**
+     * Append records to the active segment as one write, starting a new segment if they don't fit, and force them
+     * to disk if syncWrites is set. If the write fails, what was written of it is cleared, so it is never replayed.
+     */
+    private List<Record> append(List<byte[]> records) throws IOException {
+        int writeBytes = 0;
+        for (byte[] record : records) {
+            writeBytes += record.length;
+        }
+        if (writeBytes > active.capacity() - active.writePosition) {
+            roll(writeBytes);
+        }
+
+        Segment segment = active;
+        int start = segment.writePosition;
+        ByteBuffer buffer = segment.writeBuffer;
+        buffer.position(start);
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                byte[] record = records.get(i);
+                record[FLAGS_OFFSET] = i < records.size() - 1 ? CONTINUED : 0;
+                CRC32C crc = new CRC32C();
+                crc.update(record, TYPE_OFFSET, record.length - TYPE_OFFSET);
+                ByteBuffer.wrap(record).putInt(CRC_OFFSET, (int) crc.getValue());
+                buffer.put(record);
+            }
+            if (syncWrites) {
+                segment.buffer.force();
+            }
+        } catch (RuntimeException e) {
+            zero(segment, start, writeBytes);
+            throw e;
+        }
+        segment.writePosition = start + writeBytes;
+
+        List<Record> written = new ArrayList<>(records.size());
+        int position = start;
+        for (byte[] record : records) {
+            Record appended = readRecord(segment, position);
+            if (appended.type != SEQUENCE) {
+                segment.liveBytes += appended.length;
+            }
+            written.add(appended);
+            position += record.length;
+        }
+        return written;
+    }
+
+    /**
+     * Seal the active segment, and start a new one with room for at least the given number of bytes.
+     */
+    private void roll(int minBytes) throws IOException {
+        if (active != null) {
+            active.buffer.force();
+        }
+        long number = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).number + 1;
+        Segment segment = Segment.create(directory.resolve(String.format("segment-%020d.log", number)), number,
+                Math.max(segmentBytes, minBytes));
+        segments.add(segment);
+        active = segment;
+    }
+
+    /**
+     * Count a record that is still current when the log is opened towards its segment's live bytes. Records that
+     * are appended are counted as they are written.
+     */
+    void retain(Record record) {
+        record.segment.liveBytes += record.length;
+    }
+
+    /**
+     * Stop counting a record that has been superseded or copied towards its segment's live bytes.
+     */
+    void release(Record record) {
+        record.segment.liveBytes -= record.length;
+    }
+
+    /**
+     * @return Every segment but the active one, oldest first
+     */
+    List<Segment> getSealedSegments() {
+        return new ArrayList<>(segments.subList(0, segments.size() - 1));
+    }
+
+    /**
+     * @return True if no segment is older than a segment, so the records a tombstone in it supersedes can't be in
+     * another segment
+     */
+    boolean isOldest(Segment segment) {
+        return segments.get(0) == segment;
+    }
+
+    /**
+     * Make sure what has been written to the active segment is on disk, then retire a sealed segment, whose
+     * records must all have been superseded or copied.
+     */
+    void deleteSegment(Segment segment) throws IOException {
+        active.buffer.force();
+        if (segments.remove(segment)) {
+            retire(segment);
+        }
+    }
+
+    /**
+     * Start a new segment, then retire every other one.
+     */
+    void clear() throws IOException {
+        List<Segment> cleared = new ArrayList<>(segments);
+        long number = active.number + 1;
+        Segment segment = Segment.create(directory.resolve(String.format("segment-%020d.log", number)), number, segmentBytes);
+        segments.clear();
+        segments.add(segment);
+        active = segment;
+        for (Segment retired : cleared) {
+            retire(retired);
+        }
+    }
+
+    /**
+     * Clear the length of a segment's first record, so it replays as empty, then delete its file if it can be.
+     * The first record's length is never read again once it has been looked up, so reads of it carry on.
+     */
+    private void retire(Segment segment) throws IOException {
+        segment.buffer.putInt(LENGTH_OFFSET, 0);
+        segment.buffer.force();
+        segment.channel.close();
+        retiredPaths.add(segment.path);
+        deleteRetiredFiles();
+    }
+
+    private void deleteRetiredFiles() {
+        Iterator<Path> paths = retiredPaths.iterator();
+        while (paths.hasNext()) {
+            Path path = paths.next();
+            try {
+                Files.deleteIfExists(path);
+                paths.remove();
+            } catch (IOException e) {
+                logger.debug("Task log segment " + path + " is still mapped, it will be deleted later");
+            }
+        }
+    }
+
+    /**
+     * Force what has been written to disk, and close the segments. Records already looked up can still be read.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+        } finally {
+            try {
+                if (lock != null && lock.isValid()) {
+                    lock.release();
+                }
+            } finally {
+                lockChannel.close();
+            }
+        }
+    }
+
+    private static void zero(Segment segment, int position, int length) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(position);
+        byte[] zeros = new byte[Math.min(length, 65536)];
+        while (length > 0) {
+            int chunk = Math.min(length, zeros.length);
+            buffer.put(zeros, 0, chunk);
+            length -= chunk;
+        }
+    }
+
+    private static byte[] getBytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long toEpochDay(LocalDate date) {
+        return date == null ? NONE : date.toEpochDay();
+    }
+
+    private static LocalDate toDate(long epochDay) {
+        return epochDay == NONE ? null : LocalDate.ofEpochDay(epochDay);
+    }
+
+    /**
+     * A segment file, and its mapping. The mapping's position is never changed, so readers can take duplicates of
+     * it alongside a write; the writer has a duplicate of its own.
+     */
+    static final class Segment {
+
+        private final long number;
+
+        private final Path path;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        private final ByteBuffer writeBuffer;
+
+        // Guarded by the engine's write lock
+        private int writePosition;
+
+        // The bytes of records that are still current. Guarded by the engine's write lock.
+        private long liveBytes;
+
+        private Segment(long number, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.writeBuffer = buffer.duplicate();
+        }
+
+        static Segment create(Path path, long number, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(number, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+
+        /**
+         * Open an existing segment, growing it to at least minCapacity if it is to be written to.
+         */
+        static Segment open(Path path, int minCapacity) throws IOException {
+            Matcher matcher = SEGMENT_FILE_NAME.matcher(path.getFileName().toString());
+            matcher.matches();
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long capacity = Math.max(channel.size(), minCapacity);
+            return new Segment(Long.parseLong(matcher.group(1)), path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * @return The bytes written to the segment
+         */
+        int getUsedBytes() {
+            return writePosition;
+        }
+
+        long getLiveBytes() {
+            return liveBytes;
+        }
+
+        @Override
+        public String toString() {
+            return path.getFileName().toString();
+        }
+    }
+
+    /**
+     * Where a record is in the log, and the fields the engine indexes it by. A task record's other fields are read
+     * from the log when they are needed.
+     */
+    static final class Record {
+
+        private final Segment segment;
+
+        private final int offset;
+
+        private final int length;
+
+        private final byte type;
+
+        private final boolean continued;
+
+        private final long version;
+
+        private final int id;
+
+        private final Task.Status status;
+
+        private final LocalDate dueDate;
+
+        private Record(Segment segment, int offset, int length, byte type, boolean continued, long version, int id,
+                       Task.Status status, LocalDate dueDate) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.type = type;
+            this.continued = continued;
+            this.version = version;
+            this.id = id;
+            this.status = status;
+            this.dueDate = dueDate;
+        }
+
+        byte getType() {
+            return type;
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        Task.Status getStatus() {
+            return status;
+        }
+
+        LocalDate getDueDate() {
+            return dueDate;
+        }
+
+        /**
+         * @return True if this is the same record as another, read from the same place in the log
+         */
+        boolean isSameRecord(Record other) {
+            return other != null && segment == other.segment && offset == other.offset;
+        }
+
+        boolean isIn(Segment segment) {
+            return this.segment == segment;
+        }
+    }
+}
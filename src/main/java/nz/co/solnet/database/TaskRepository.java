@@ -1,10 +1,12 @@
 package nz.co.solnet.database;
 
 import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
 
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * Interface for the TaskRepository.
@@ -13,14 +15,85 @@ public interface TaskRepository {
 
     Task createTask(Task task);
 
+    /**
+     * Create several tasks in one transaction, so either all of them are created or none are.
+     * @return The created tasks, with their generated ids, in the order given
+     */
+    List<Task> createTasks(List<Task> tasks);
+
     Optional<Task> getTask(int id);
 
     List<Task> getTasks();
 
     List<Task> getTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses);
 
+    /**
+     * Stream all tasks to the given action one at a time as the underlying rows are read,
+     * without materialising the collection.
+     */
+    void forEachTask(Consumer<Task> action);
+
+    /**
+     * Stream tasks between two dates to the given action one at a time as the underlying rows are read,
+     * without materialising the collection.
+     */
+    void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, Consumer<Task> action);
+
+    /**
+     * Stream a page of at most limit tasks ordered by id, starting after the given cursor (or from the start if null).
+     */
+    void forEachTask(TaskCursor after, int limit, Consumer<Task> action);
+
+    /**
+     * Stream a page of at most limit tasks between two dates ordered by due date then id,
+     * starting after the given cursor (or from the start if null).
+     */
+    void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskCursor after, int limit, Consumer<Task> action);
+
+    /**
+     * Get the version of the collection of all tasks.
+     * The version changes whenever a task is created, updated or deleted, so it can be used as an ETag for the collection.
+     * @return An opaque version string
+     */
+    String getTasksVersion();
+
+    /**
+     * Get the version of the collection of tasks between two dates, matched as by getTasksBetweenDates.
+     * The version changes whenever a task in the collection is created, updated or deleted, or a task enters or leaves it.
+     * @return An opaque version string
+     */
+    String getTasksBetweenDatesVersion(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses);
+
+    /**
+     * Get the tasks created, updated and deleted after a version, for a client to bring its copy of the tasks up to date.
+     * @param since The version of the client's copy, as returned by the previous call, or 0 for every task
+     * @param limit The maximum number of changes to return, unless more than that were made with a single version
+     * @return The changes, and the version to ask for the next changes after
+     */
+    TaskChanges getChangesSince(long since, int limit);
+
+    /**
+     * Update an existing task.
+     * @return The updated task, or empty if there is no task with the task's id
+     */
     Optional<Task> updateTask(Task task);
 
-    void deleteTask(int taskId);
+    /**
+     * Delete an existing task.
+     * @return True if the task was deleted, false if there is no task with the id
+     */
+    boolean deleteTask(int taskId);
+
+    /**
+     * Set the given fields on every task between two dates, matched as by getTasksBetweenDates.
+     * @return The number of tasks updated
+     */
+    int updateTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskPatch patch);
+
+    /**
+     * Delete every task between two dates, matched as by getTasksBetweenDates.
+     * @return The number of tasks deleted
+     */
+    int deleteTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses);
 
 }
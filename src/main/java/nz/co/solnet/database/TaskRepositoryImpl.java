@@ -1,61 +1,130 @@
 package nz.co.solnet.database;
 
 import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.sql.DataSource;
 import java.sql.*;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Repository class that supports CRUD operations for tasks.
+ * Single task writes can be group committed with other concurrent writes, see {@link GroupCommitter}.
+ * Writes that change existing tasks take their version once they hold the locks on the rows they change, so writes
+ * to one task always commit in the order of their versions.
  */
-class TaskRepositoryImpl extends Repository implements TaskRepository {
+class TaskRepositoryImpl extends Repository implements TaskStorageEngine {
 
     private final Logger logger = LogManager.getLogger(TaskRepositoryImpl.class);
 
+    private static final String INSERT_QUERY = "INSERT INTO tasks (title, description, due_date, status, creation_date, version, last_modified)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final List<Task.Status> ALL_STATUSES = Arrays.asList(Task.Status.values());
+
+    // A slot for each status, so any combination of statuses can be bound
+    private static final int STATUS_SLOTS = ALL_STATUSES.size();
+
+    private static final String STATUS_CONDITION = "status IN (" + String.join(", ", Collections.nCopies(STATUS_SLOTS, "?")) + ")";
+
+    // The last version given to a task. Every write that changes a task takes the next version, so versions only
+    // ever increase.
+    private final AtomicLong lastVersion;
+
+    // The last claim a bulk write marked its tasks with. Claims count down from 0, so they are never a version.
+    private final AtomicLong lastClaim = new AtomicLong();
+
+    private final TaskChangePublisher changePublisher;
+
+    // Null if each write commits its own transaction
+    private final GroupCommitter groupCommitter;
+
     public TaskRepositoryImpl(DataSource dataSource) {
-        super(dataSource);
+        this(dataSource, null);
     }
 
     /**
-     * Create a derby database if it doesn't exist and create tasks table.
+     * @param groupCommitter Commits single task writes together with other concurrent writes, or null for each
+     *                       write to commit its own transaction
      */
-    void initialiseTasksTable() {
+    public TaskRepositoryImpl(DataSource dataSource, GroupCommitter groupCommitter) {
+        super(dataSource);
+        this.lastVersion = new AtomicLong(getMaxVersion());
+        this.changePublisher = new TaskChangePublisher(lastVersion.get());
+        this.groupCommitter = groupCommitter;
+    }
 
-        try (Connection conn = getConnection()) {
+    /**
+     * Listen to every change this repository commits, in version order.
+     * @param listener
+     */
+    @Override
+    public void addTaskChangeListener(TaskChangeListener listener) {
+        changePublisher.addListener(listener);
+    }
 
-            try (Statement statement = conn.createStatement()) {
+    @Override
+    public void removeTaskChangeListener(TaskChangeListener listener) {
+        changePublisher.removeListener(listener);
+    }
 
-                if (!doesTableExist("tasks")) {
+    /**
+     * Whether every write committed before this is called has been published to the listeners. Writes commit before
+     * they are published, and are held until every earlier version is, so a listener's copy of the tasks can be
+     * behind the database while writes are in progress.
+     * @return True if every version taken so far has been published or skipped
+     */
+    boolean isPublished() {
+        // Read first, as any write that has committed by now took its version before this
+        long taken = lastVersion.get();
+        return changePublisher.getLastPublishedVersion() >= taken;
+    }
 
-                    StringBuilder sqlSB = new StringBuilder();
-                    sqlSB.append("CREATE TABLE tasks (id int not null generated always as identity,");
-                    sqlSB.append(" title varchar(256) not null,");
-                    sqlSB.append(" description varchar(1024),");
-                    sqlSB.append(" due_date date,");
-                    sqlSB.append(" status varchar(10),");
-                    sqlSB.append(" creation_date date not null,");
-                    sqlSB.append(" primary key (id))");
-                    statement.execute(sqlSB.toString());
-                } else {
-                    logger.info("Task table not created as it already exists.");
-                }
-            }
+    /**
+     * Get the last version given to a task, including the versions of the deletions recorded by tombstones.
+     */
+    private long getMaxVersion() {
+        try (Connection conn = getConnection();
+             PreparedStatement statement = conn.prepareStatement("SELECT (SELECT MAX(version) FROM tasks), (SELECT MAX(version) FROM task_tombstones)"
+                     + " FROM SYSIBM.SYSDUMMY1");
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return Math.max(resultSet.getLong(1), resultSet.getLong(2));
         } catch (SQLException e) {
-            throw new RuntimeException("Error in inserting initial data", e);
+            throw new RuntimeException("Error retrieving task version", e);
         }
     }
 
-    void cleanTaskData() {
+    /**
+     * Stop group committing. Writes waiting for a batch fail.
+     */
+    @Override
+    public void close() {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+    }
+
+    /**
+     * Delete every task and tombstone. Every deletion up to now has been purged, so clients with a copy from before
+     * are told to resync.
+     */
+    @Override
+    public void cleanTaskData() {
         try (Connection conn = getConnection(); Statement statement = conn.createStatement()) {
-            String sql = "DELETE FROM tasks";
-            statement.execute(sql);
+            statement.execute("DELETE FROM tasks");
+            statement.execute("DELETE FROM task_tombstones");
+            statement.execute("UPDATE task_tombstone_horizon SET version = " + changePublisher.getLastPublishedVersion());
         } catch (SQLException e) {
             logger.error("Error in cleaning tasks", e);
         }
@@ -63,35 +132,143 @@ class TaskRepositoryImpl extends Repository implements TaskRepository {
 
     /**
      * Create a new task.
+     * The created task is built from the given task and the generated id and creation date,
+     * rather than read back from the database.
      * @param task
      * @return
      */
     @Override
     public Task createTask(Task task) {
-        String query = "INSERT INTO tasks (title, description, due_date, status, creation_date) VALUES (?, ?, ?, ?, ?)";
-
-        try (Connection conn = getConnection();
-             PreparedStatement statement = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+        LocalDate creationDate = LocalDate.now();
+        Instant lastModified = Instant.now();
+        long version = lastVersion.incrementAndGet();
+        List<TaskChange> changes = Collections.emptyList();
+        try {
+            Task createdTask = executeWrite(conn -> insertTask(conn, task, creationDate, version, lastModified));
+            changes = Collections.singletonList(TaskChange.created(createdTask));
+            return createdTask;
+        } catch (SQLException e) {
+            throw new RuntimeException("Error inserting task " + task, e);
+        } finally {
+            changePublisher.publish(version, changes);
+        }
+    }
 
+    private Task insertTask(Connection conn, Task task, LocalDate creationDate, long version, Instant lastModified) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(INSERT_QUERY, Statement.RETURN_GENERATED_KEYS)) {
             setStatementParameters(statement, task);
+            statement.setDate(5, Date.valueOf(creationDate));
+            statement.setLong(6, version);
+            statement.setTimestamp(7, Timestamp.from(lastModified));
             statement.executeUpdate();
 
-            ResultSet resultSet = statement.getGeneratedKeys();
-            if (resultSet.next()) {
-                task.setId(resultSet.getInt(1));
+            try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                resultSet.next();
+                return buildTask(task, resultSet.getInt(1), creationDate, version, lastModified);
+            }
+        }
+    }
+
+    /**
+     * Execute a write of a single task in a transaction, which it shares with other concurrent writes if group
+     * commit is on.
+     * @param write Executes the write. It must not commit, roll back or close the connection.
+     * @return What the write returned, once it has been committed
+     * @throws SQLException What the write threw, or why it couldn't be committed, after it has been rolled back
+     */
+    private <T> T executeWrite(GroupCommitter.TransactionalWrite<T> write) throws SQLException {
+        if (groupCommitter != null) {
+            return groupCommitter.execute(write);
+        }
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                T result = write.execute(conn);
+                conn.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Create several tasks in one transaction, on one connection, reusing one prepared statement.
+     * The statement is executed once per task rather than with addBatch/executeBatch, because the embedded driver
+     * executes a batch one element at a time anyway, and only returns the generated key of the last element.
+     * The created tasks are built from the given tasks rather than read back from the database.
+     * @param tasks
+     * @return
+     */
+    @Override
+    public List<Task> createTasks(List<Task> tasks) {
+        LocalDate creationDate = LocalDate.now();
+        Instant lastModified = Instant.now();
+        List<Task> createdTasks = new ArrayList<>(tasks.size());
+        // The batch takes a block of consecutive versions, one for each task
+        long firstVersion = lastVersion.getAndAdd(tasks.size()) + 1;
+        boolean committed = false;
+
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement statement = conn.prepareStatement(INSERT_QUERY, Statement.RETURN_GENERATED_KEYS)) {
+                for (Task task : tasks) {
+                    long version = firstVersion + createdTasks.size();
+                    setStatementParameters(statement, task);
+                    statement.setDate(5, Date.valueOf(creationDate));
+                    statement.setLong(6, version);
+                    statement.setTimestamp(7, Timestamp.from(lastModified));
+                    statement.executeUpdate();
+                    try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                        resultSet.next();
+                        createdTasks.add(buildTask(task, resultSet.getInt(1), creationDate, version, lastModified));
+                    }
+                }
+                conn.commit();
+                committed = true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
             }
         } catch (SQLException e) {
-            throw new RuntimeException("Error inserting task " + task, e);
+            throw new RuntimeException("Error inserting " + tasks.size() + " tasks", e);
+        } finally {
+            for (int i = 0; i < tasks.size(); i++) {
+                if (committed) {
+                    changePublisher.publish(firstVersion + i, Collections.singletonList(TaskChange.created(createdTasks.get(i))));
+                } else {
+                    changePublisher.skip(firstVersion + i);
+                }
+            }
         }
-        return getTask(task.getId()).get();
+        return createdTasks;
     }
 
+    /**
+     * Set the title, description, due date and status parameters of an insert.
+     */
     private void setStatementParameters(PreparedStatement statement, Task task) throws SQLException {
         statement.setString(1, task.getTitle());
         statement.setString(2, task.getDescription());
         statement.setDate(3, task.getDueDate() == null ? null : Date.valueOf(task.getDueDate()));
         statement.setString(4, task.getStatus() == null ? null : task.getStatus().getDbName());
-        statement.setDate(5, new Date(System.currentTimeMillis()));
+    }
+
+    /**
+     * Build the task as it was written, from the given task and the values the database provided.
+     */
+    private Task buildTask(Task task, int id, LocalDate creationDate, long version, Instant lastModified) {
+        return new Task.TaskBuilder()
+                .withId(id)
+                .withTitle(task.getTitle())
+                .withDescription(task.getDescription())
+                .withDueDate(task.getDueDate())
+                .withCreationDate(creationDate)
+                .withStatus(task.getStatus() == null ? null : task.getStatus().getDbName())
+                .withVersion(version)
+                .withLastModified(lastModified)
+                .build();
     }
 
     /**
@@ -128,25 +305,33 @@ class TaskRepositoryImpl extends Repository implements TaskRepository {
     @Override
     public List<Task> getTasks() {
         List<Task> tasks = new ArrayList<>();
+        forEachTask(tasks::add);
+        return tasks;
+    }
 
+    /**
+     * Stream all tasks in the database.
+     * The connection is held until the action has been applied to every row.
+     * @param action
+     */
+    @Override
+    public void forEachTask(Consumer<Task> action) {
         String query = "SELECT * FROM tasks";
 
         try (Connection conn = getConnection();
-             Statement statement = conn.createStatement();
-             ResultSet resultSet = statement.executeQuery(query)) {
+             PreparedStatement statement = conn.prepareStatement(query);
+             ResultSet resultSet = statement.executeQuery()) {
 
             while (resultSet.next()) {
-                tasks.add(buildTaskFromResultSet(resultSet));
+                action.accept(buildTaskFromResultSet(resultSet));
             }
         } catch (SQLException e) {
-            logger.error("Error retrieving tasks", e);
+            throw new RuntimeException("Error retrieving tasks", e);
         }
-
-        return tasks;
     }
 
     /**
-     * Get tasks between two dates.
+     * Get tasks between two dates, ordered by due date then id.
      * If either date is null, then the min or max date for apache derby is used.
      * @param startDate
      * @param endDate
@@ -155,47 +340,520 @@ class TaskRepositoryImpl extends Repository implements TaskRepository {
     @Override
     public List<Task> getTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
         List<Task> tasks = new ArrayList<>();
+        forEachTaskBetweenDates(startDate, endDate, statuses, tasks::add);
+        return tasks;
+    }
+
+    /**
+     * Stream tasks between two dates.
+     * If either date is null, then the min or max date for apache derby is used.
+     * The connection is held until the action has been applied to every row.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @param action
+     */
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, Consumer<Task> action) {
+        forEachTaskBetweenDates(startDate, endDate, statuses, null, 0, action);
+    }
+
+    /**
+     * Stream a page of tasks ordered by id.
+     * Pages are found by seeking past the cursor on the primary key (keyset pagination) rather than with OFFSET,
+     * so the cost of a page does not grow with how far into the collection it is.
+     * @param after The last task of the previous page, or null for the first page
+     * @param limit The maximum number of tasks in the page
+     * @param action
+     */
+    @Override
+    public void forEachTask(TaskCursor after, int limit, Consumer<Task> action) {
+        String query = "SELECT * FROM tasks WHERE id > ? ORDER BY id FETCH FIRST ? ROWS ONLY";
+
+        try (Connection conn = getConnection(); PreparedStatement statement = conn.prepareStatement(query)) {
+            statement.setInt(1, after == null ? Integer.MIN_VALUE : after.getId());
+            statement.setInt(2, limit);
 
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    action.accept(buildTaskFromResultSet(resultSet));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error retrieving tasks", e);
+        }
+    }
+
+    /**
+     * Stream tasks between two dates.
+     * If either date is null, then the min or max date for apache derby is used.
+     * Tasks are ordered by due date then id. If a limit is given the tasks start after the cursor (keyset pagination).
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @param after The last task of the previous page, or null for the first page
+     * @param limit The maximum number of tasks in the page, or 0 for no limit
+     * @param action
+     */
+    @Override
+    public void forEachTaskBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskCursor after, int limit, Consumer<Task> action) {
         StringBuilder query = new StringBuilder();
-        query.append("SELECT * FROM tasks WHERE status IN ");
-        if (statuses != null) {
-            query.append(getDbStatuses(statuses));
-        } else {
-            query.append(getDbStatuses(new ArrayList<>(Arrays.asList(Task.Status.values()))));
+        query.append("SELECT * FROM tasks WHERE ");
+        appendDateRangeCondition(query);
+        if (after != null) {
+            // The redundant due_date >= ? bounds the index range, the OR then skips rows on the cursor's due date
+            query.append(" AND due_date >= ? AND (due_date > ? OR id > ?)");
+        }
+        // Always ordered, otherwise the order would depend on which index the optimizer picks
+        query.append(" ORDER BY due_date, id");
+        if (limit > 0) {
+            query.append(" FETCH FIRST ? ROWS ONLY");
         }
-        query.append(" AND due_date BETWEEN ? AND ?");
-        LocalDate defaultStartDate = LocalDate.parse("0001-01-01"); // Min date for derby
-        LocalDate defaultEndDate = LocalDate.parse("9999-12-31"); // Max date for derby
 
         try (Connection conn = getConnection(); PreparedStatement statement = conn.prepareStatement(query.toString())) {
-            statement.setDate(1, Date.valueOf(startDate != null ? startDate : defaultStartDate));
-            statement.setDate(2, Date.valueOf(endDate != null ? endDate : defaultEndDate));
+            int parameterIndex = setDateRangeParameters(statement, 1, startDate, endDate, statuses);
+            if (after != null) {
+                statement.setDate(parameterIndex++, Date.valueOf(after.getDueDate()));
+                statement.setDate(parameterIndex++, Date.valueOf(after.getDueDate()));
+                statement.setInt(parameterIndex++, after.getId());
+            }
+            if (limit > 0) {
+                statement.setInt(parameterIndex, limit);
+            }
 
             try (ResultSet resultSet = statement.executeQuery()) {
                 while (resultSet.next()) {
-                    Task task = buildTaskFromResultSet(resultSet);
-                    tasks.add(task);
+                    action.accept(buildTaskFromResultSet(resultSet));
                 }
             }
         } catch (SQLException e) {
             throw new RuntimeException("Error retrieving tasks between dates", e);
         }
-        return tasks;
     }
 
-    private String getDbStatuses(List<Task.Status> statuses) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("(");
-        for (int i = 0; i < statuses.size(); i++) {
-            sb.append("'");
-            sb.append(statuses.get(i).getDbName());
-            sb.append("'");
-            if (i < statuses.size() - 1) {
-                sb.append(",");
+    /**
+     * Set the fields of every task between two dates that are set in the patch.
+     * Tasks are matched exactly as they are by {@link #getTasksBetweenDates(LocalDate, LocalDate, List)}.
+     * The matching tasks are claimed first, and the version is taken once they are locked, so that a single task
+     * write that holds one of them commits first, with an earlier version. The claimed tasks are then updated, and
+     * read back by their new version, in the same transaction, to publish their changes.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @param patch The fields to set
+     * @return The number of tasks updated
+     */
+    @Override
+    public int updateTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, TaskPatch patch) {
+        long version = 0;
+        List<TaskChange> changes = Collections.emptyList();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                long claim = claimTasksBetweenDates(conn, startDate, endDate, statuses);
+                if (claim == 0) {
+                    conn.commit();
+                    return 0;
+                }
+                version = lastVersion.incrementAndGet();
+                int affected = updateClaimedTasks(conn, claim, patch, version);
+                changes = getChangedTasks(conn, version);
+                conn.commit();
+                return affected;
+            } catch (SQLException e) {
+                changes = Collections.emptyList();
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error updating tasks between dates", e);
+        } finally {
+            if (version > 0) {
+                changePublisher.publish(version, changes);
+            }
+        }
+    }
+
+    /**
+     * Claim every task between two dates for a bulk write, by setting its version to a claim that no other write
+     * uses. The update locks the tasks until the transaction ends, waiting for any write that holds one of them, and
+     * the claim then picks out exactly the tasks that matched, as no other transaction can see it.
+     * @return The claim, or 0 if no tasks matched
+     */
+    private long claimTasksBetweenDates(Connection conn, LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) throws SQLException {
+        long claim = lastClaim.decrementAndGet();
+        StringBuilder query = new StringBuilder("UPDATE tasks SET version = ? WHERE ");
+        appendDateRangeCondition(query);
+        try (PreparedStatement statement = conn.prepareStatement(query.toString())) {
+            statement.setLong(1, claim);
+            setDateRangeParameters(statement, 2, startDate, endDate, statuses);
+            return statement.executeUpdate() > 0 ? claim : 0;
+        }
+    }
+
+    private int updateClaimedTasks(Connection conn, long claim, TaskPatch patch, long version) throws SQLException {
+        List<String> assignments = new ArrayList<>();
+        if (patch.isTitleSet()) {
+            assignments.add("title = ?");
+        }
+        if (patch.isDescriptionSet()) {
+            assignments.add("description = ?");
+        }
+        if (patch.isDueDateSet()) {
+            assignments.add("due_date = ?");
+        }
+        if (patch.isStatusSet()) {
+            assignments.add("status = ?");
+        }
+        // Every updated task gets the same new version
+        assignments.add("version = ?");
+        assignments.add("last_modified = ?");
+        String query = "UPDATE tasks SET " + String.join(", ", assignments) + " WHERE version = ?";
+
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+            int parameterIndex = 1;
+            if (patch.isTitleSet()) {
+                statement.setString(parameterIndex++, patch.getTitle());
+            }
+            if (patch.isDescriptionSet()) {
+                statement.setString(parameterIndex++, patch.getDescription());
+            }
+            if (patch.isDueDateSet()) {
+                statement.setDate(parameterIndex++, patch.getDueDate() == null ? null : Date.valueOf(patch.getDueDate()));
+            }
+            if (patch.isStatusSet()) {
+                statement.setString(parameterIndex++, patch.getStatus() == null ? null : patch.getStatus().getDbName());
+            }
+            statement.setLong(parameterIndex++, version);
+            statement.setTimestamp(parameterIndex++, Timestamp.from(Instant.now()));
+            statement.setLong(parameterIndex, claim);
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Read the tasks a bulk update gave a version, before its transaction commits.
+     */
+    private List<TaskChange> getChangedTasks(Connection conn, long version) throws SQLException {
+        List<TaskChange> changes = new ArrayList<>();
+        try (PreparedStatement statement = conn.prepareStatement("SELECT * FROM tasks WHERE version = ? ORDER BY id")) {
+            statement.setLong(1, version);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    changes.add(TaskChange.updated(buildTaskFromResultSet(resultSet)));
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Delete every task between two dates.
+     * Tasks are matched exactly as they are by {@link #getTasksBetweenDates(LocalDate, LocalDate, List)}.
+     * The tasks are claimed first, and the version is taken once they are locked, as for a bulk update. The ids of
+     * the claimed tasks are then read, in the same transaction, to publish their deletion, and a tombstone is
+     * recorded for each of them.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @return The number of tasks deleted
+     */
+    @Override
+    public int deleteTasksBetweenDates(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        long version = 0;
+        List<TaskChange> changes = new ArrayList<>();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                long claim = claimTasksBetweenDates(conn, startDate, endDate, statuses);
+                if (claim == 0) {
+                    conn.commit();
+                    return 0;
+                }
+                version = lastVersion.incrementAndGet();
+                try (PreparedStatement statement = conn.prepareStatement("SELECT id FROM tasks WHERE version = ? ORDER BY id")) {
+                    statement.setLong(1, claim);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            changes.add(TaskChange.deleted(resultSet.getInt(1), version));
+                        }
+                    }
+                }
+                // Derby needs the type of a parameter in a select list
+                try (PreparedStatement statement = conn.prepareStatement("INSERT INTO task_tombstones (id, version, deleted_on)"
+                        + " SELECT id, CAST(? AS BIGINT), CAST(? AS TIMESTAMP) FROM tasks WHERE version = ?")) {
+                    statement.setLong(1, version);
+                    statement.setTimestamp(2, Timestamp.from(Instant.now()));
+                    statement.setLong(3, claim);
+                    statement.executeUpdate();
+                }
+                int affected;
+                try (PreparedStatement statement = conn.prepareStatement("DELETE FROM tasks WHERE version = ?")) {
+                    statement.setLong(1, claim);
+                    affected = statement.executeUpdate();
+                }
+                conn.commit();
+                return affected;
+            } catch (SQLException e) {
+                changes.clear();
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error deleting tasks between dates", e);
+        } finally {
+            if (version > 0) {
+                changePublisher.publish(version, changes);
+            }
+        }
+    }
+
+    /**
+     * Get the version of the collection of all tasks.
+     * @return
+     */
+    @Override
+    public String getTasksVersion() {
+        try (Connection conn = getConnection();
+             PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*), MAX(version), SUM(version) FROM tasks");
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return buildCollectionVersion(resultSet);
+        } catch (SQLException e) {
+            throw new RuntimeException("Error retrieving tasks version", e);
+        }
+    }
+
+    /**
+     * Get the version of the collection of tasks between two dates.
+     * Tasks are matched exactly as they are by {@link #getTasksBetweenDates(LocalDate, LocalDate, List)}.
+     * @param startDate
+     * @param endDate
+     * @param statuses
+     * @return
+     */
+    @Override
+    public String getTasksBetweenDatesVersion(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT COUNT(*), MAX(version), SUM(version) FROM tasks WHERE ");
+        appendDateRangeCondition(query);
+
+        try (Connection conn = getConnection(); PreparedStatement statement = conn.prepareStatement(query.toString())) {
+            setDateRangeParameters(statement, 1, startDate, endDate, statuses);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return buildCollectionVersion(resultSet);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error retrieving tasks between dates version", e);
+        }
+    }
+
+    /**
+     * Combine the count, maximum and sum of the versions of a collection's tasks.
+     * A created or updated task always has a higher version than any before it, which raises the maximum and the sum,
+     * and a deleted task lowers the count, so any change to the collection changes at least one of them.
+     */
+    private String buildCollectionVersion(ResultSet resultSet) throws SQLException {
+        return Long.toString(resultSet.getLong(1), 36)
+                + "-" + Long.toString(resultSet.getLong(2), 36)
+                + "-" + Long.toString(resultSet.getLong(3), 36);
+    }
+
+    /**
+     * Get the tasks created, updated and deleted after a version.
+     * Changes are read up to the last published version rather than the last version taken, as every write before
+     * it has committed (or failed). A write that commits later therefore always has a version above the one returned,
+     * so a client can't miss it. Both reads are range scans of a version index, so they cost the same at any table size.
+     * Up to limit + 1 of the tasks and tombstones are read, in version order. If there are more than limit, the
+     * changes stop before the version of the first one left out, so that every change with a version is returned
+     * together. If more than limit changes were made with the first version, they are all returned.
+     * The purged version is read after the tombstones, so a purge that runs alongside the reads is always seen.
+     * @param since The version of the client's copy, or 0 for every task
+     * @param limit The maximum number of changes to return, unless more than that were made with a single version
+     * @return The changes, or a resync if tombstones after since have been purged
+     */
+    @Override
+    public TaskChanges getChangesSince(long since, int limit) {
+        long highWaterMark = changePublisher.getLastPublishedVersion();
+        try (Connection conn = getConnection()) {
+            TaskChanges changes = readChangesSince(conn, since, highWaterMark, limit);
+            return TaskChanges.isTooOld(since, getPurgedVersion(conn)) ? TaskChanges.resync() : changes;
+        } catch (SQLException e) {
+            throw new RuntimeException("Error retrieving task changes", e);
+        }
+    }
+
+    private TaskChanges readChangesSince(Connection conn, long since, long highWaterMark, int limit) throws SQLException {
+        List<Task> tasks = new ArrayList<>();
+        List<long[]> tombstones = new ArrayList<>();
+        if (since >= highWaterMark) {
+            return new TaskChanges(tasks, new ArrayList<>(), highWaterMark, false);
+        }
+
+        readChangedTasks(conn, "version > ? AND version <= ? ORDER BY version, id FETCH FIRST ? ROWS ONLY", tasks,
+                since, highWaterMark, limit + 1);
+        readTombstones(conn, "version > ? AND version <= ? ORDER BY version, id FETCH FIRST ? ROWS ONLY", tombstones,
+                since, highWaterMark, limit + 1);
+        if (tasks.size() + tombstones.size() <= limit) {
+            return new TaskChanges(tasks, getIds(tombstones), highWaterMark, false);
+        }
+
+        long cutOffVersion = getVersionOfChange(tasks, tombstones, limit);
+        long firstVersion = Math.min(tasks.isEmpty() ? Long.MAX_VALUE : tasks.get(0).getVersion(),
+                tombstones.isEmpty() ? Long.MAX_VALUE : tombstones.get(0)[1]);
+        if (cutOffVersion == firstVersion) {
+            // A bulk write made more than limit changes with one version
+            tasks.clear();
+            tombstones.clear();
+            readChangedTasks(conn, "version = ? ORDER BY id", tasks, firstVersion);
+            readTombstones(conn, "version = ? ORDER BY id", tombstones, firstVersion);
+            return new TaskChanges(tasks, getIds(tombstones), firstVersion, firstVersion < highWaterMark);
+        }
+        tasks.removeIf(task -> task.getVersion() >= cutOffVersion);
+        tombstones.removeIf(tombstone -> tombstone[1] >= cutOffVersion);
+        return new TaskChanges(tasks, getIds(tombstones), cutOffVersion - 1, true);
+    }
+
+    private long getPurgedVersion(Connection conn) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT version FROM task_tombstone_horizon");
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Delete the tombstones up to the highest version of those deleted before a time, and record that version as
+     * purged, in one transaction.
+     * @param deletedBefore
+     * @return The number of tombstones purged
+     */
+    @Override
+    public int purgeTombstones(Instant deletedBefore) {
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                long purgedVersion;
+                try (PreparedStatement statement = conn.prepareStatement("SELECT MAX(version) FROM task_tombstones WHERE deleted_on < ?")) {
+                    statement.setTimestamp(1, Timestamp.from(deletedBefore));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        resultSet.next();
+                        purgedVersion = resultSet.getLong(1);
+                    }
+                }
+                int purged = 0;
+                if (purgedVersion > 0) {
+                    try (PreparedStatement statement = conn.prepareStatement("UPDATE task_tombstone_horizon SET version = ? WHERE version < ?")) {
+                        statement.setLong(1, purgedVersion);
+                        statement.setLong(2, purgedVersion);
+                        statement.executeUpdate();
+                    }
+                    try (PreparedStatement statement = conn.prepareStatement("DELETE FROM task_tombstones WHERE version <= ?")) {
+                        statement.setLong(1, purgedVersion);
+                        purged = statement.executeUpdate();
+                    }
+                }
+                conn.commit();
+                return purged;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
             }
+        } catch (SQLException e) {
+            throw new RuntimeException("Error purging task tombstones", e);
         }
-        sb.append(")");
-        return sb.toString();
+    }
+
+    /**
+     * Get the version of a change, counting the changed tasks and tombstones together in version order.
+     */
+    private long getVersionOfChange(List<Task> tasks, List<long[]> tombstones, int index) {
+        int taskIndex = 0;
+        int tombstoneIndex = 0;
+        long version = 0;
+        for (int i = 0; i <= index; i++) {
+            if (tombstoneIndex == tombstones.size()
+                    || (taskIndex < tasks.size() && tasks.get(taskIndex).getVersion() <= tombstones.get(tombstoneIndex)[1])) {
+                version = tasks.get(taskIndex++).getVersion();
+            } else {
+                version = tombstones.get(tombstoneIndex++)[1];
+            }
+        }
+        return version;
+    }
+
+    private void readChangedTasks(Connection conn, String condition, List<Task> tasks, long... parameters) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT * FROM tasks WHERE " + condition)) {
+            setLongParameters(statement, parameters);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    tasks.add(buildTaskFromResultSet(resultSet));
+                }
+            }
+        }
+    }
+
+    /**
+     * Read tombstones as pairs of the deleted task's id and the version of its deletion.
+     */
+    private void readTombstones(Connection conn, String condition, List<long[]> tombstones, long... parameters) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT id, version FROM task_tombstones WHERE " + condition)) {
+            setLongParameters(statement, parameters);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    tombstones.add(new long[] {resultSet.getInt(1), resultSet.getLong(2)});
+                }
+            }
+        }
+    }
+
+    private void setLongParameters(PreparedStatement statement, long... parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setLong(i + 1, parameters[i]);
+        }
+    }
+
+    private List<Integer> getIds(List<long[]> tombstones) {
+        List<Integer> ids = new ArrayList<>(tombstones.size());
+        for (long[] tombstone : tombstones) {
+            ids.add((int) tombstone[0]);
+        }
+        return ids;
+    }
+
+    /**
+     * Append the condition that matches tasks with one of the statuses (or any status if null) and a due date
+     * between two dates. The statuses and dates are bound by {@link #setDateRangeParameters}.
+     * The statuses are bound to a fixed number of slots, one for each status, rather than written into the SQL,
+     * so every combination of statuses shares one statement that is only compiled once per connection.
+     */
+    private void appendDateRangeCondition(StringBuilder query) {
+        query.append(STATUS_CONDITION);
+        query.append(" AND due_date BETWEEN ? AND ?");
+    }
+
+    /**
+     * Bind the statuses and dates of the condition appended by {@link #appendDateRangeCondition}.
+     * Slots beyond the number of statuses repeat the last status, which doesn't change what is matched.
+     * An empty list of statuses binds every slot to null, which matches nothing.
+     * If either date is null, then the min or max date for apache derby is used.
+     * @return The next parameter index
+     */
+    private int setDateRangeParameters(PreparedStatement statement, int parameterIndex, LocalDate startDate, LocalDate endDate,
+                                       List<Task.Status> statuses) throws SQLException {
+        List<Task.Status> matched = statuses != null ? statuses : ALL_STATUSES;
+        for (int slot = 0; slot < STATUS_SLOTS; slot++) {
+            if (matched.isEmpty()) {
+                statement.setNull(parameterIndex++, Types.VARCHAR);
+            } else {
+                statement.setString(parameterIndex++, matched.get(Math.min(slot, matched.size() - 1)).getDbName());
+            }
+        }
+        LocalDate defaultStartDate = LocalDate.parse("0001-01-01"); // Min date for derby
+        LocalDate defaultEndDate = LocalDate.parse("9999-12-31"); // Max date for derby
+        statement.setDate(parameterIndex++, Date.valueOf(startDate != null ? startDate : defaultStartDate));
+        statement.setDate(parameterIndex++, Date.valueOf(endDate != null ? endDate : defaultEndDate));
+        return parameterIndex;
     }
 
     private Task buildTaskFromResultSet(ResultSet resultSet) throws SQLException {
@@ -205,6 +863,8 @@ class TaskRepositoryImpl extends Repository implements TaskRepository {
         String title = resultSet.getString("title");
         LocalDate dueDate = resultSet.getDate("due_date") == null ? null : resultSet.getDate("due_date").toLocalDate();
         LocalDate creationDate = resultSet.getDate("creation_date").toLocalDate();
+        long version = resultSet.getLong("version");
+        Instant lastModified = resultSet.getTimestamp("last_modified").toInstant();
 
         return new Task.TaskBuilder()
                 .withId(id)
@@ -213,46 +873,141 @@ class TaskRepositoryImpl extends Repository implements TaskRepository {
                 .withTitle(title)
                 .withDueDate(dueDate)
                 .withCreationDate(creationDate)
+                .withVersion(version)
+                .withLastModified(lastModified)
                 .build();
     }
 
     /**
      * Update an existing task.
+     * The row is found and locked by a query with an updatable cursor, and updated in place through the cursor, on one
+     * connection. The creation date, which the update doesn't change, is read by the same query, as Derby has no
+     * UPDATE ... RETURNING. The version is taken once the cursor holds the row's lock.
      * @param task
-     * @return
+     * @return The updated task, or empty if there is no task with the id
      */
     @Override
     public Optional<Task> updateTask(Task task) {
-
-        String query = "UPDATE tasks SET title = ?, description = ?, due_date = ?, status = ? WHERE id = ?";
-
-        try (Connection conn = getConnection(); PreparedStatement statement = conn.prepareStatement(query)) {
-            statement.setString(1, task.getTitle());
-            statement.setString(2, task.getDescription());
-            statement.setDate(3, task.getDueDate() == null ? null : Date.valueOf(task.getDueDate()));
-            statement.setString(4, task.getStatus() == null ? null : task.getStatus().getDbName());
-            statement.setInt(5, task.getId());
-            statement.executeUpdate();
-            return getTask(task.getId());
+        WriteVersions versions = new WriteVersions();
+        List<TaskChange> changes = Collections.emptyList();
+        try {
+            Optional<Task> updatedTask = executeWrite(conn -> updateTask(conn, task, versions));
+            if (updatedTask.isPresent()) {
+                changes = Collections.singletonList(TaskChange.updated(updatedTask.get()));
+            }
+            return updatedTask;
         } catch (SQLException e) {
             throw new RuntimeException("Error updating task " + task, e);
+        } finally {
+            versions.publish(changes);
+        }
+    }
+
+    private Optional<Task> updateTask(Connection conn, Task task, WriteVersions versions) throws SQLException {
+        String query = "SELECT title, description, due_date, status, creation_date, version, last_modified FROM tasks WHERE id = ?"
+                + " FOR UPDATE OF title, description, due_date, status, version, last_modified";
+
+        try (PreparedStatement statement = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE)) {
+            statement.setInt(1, task.getId());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return Optional.empty();
+                }
+                // Read before updateRow, which moves a forward only cursor off the row
+                LocalDate creationDate = resultSet.getDate("creation_date").toLocalDate();
+                long version = versions.take();
+                resultSet.updateString("title", task.getTitle());
+                resultSet.updateString("description", task.getDescription());
+                resultSet.updateDate("due_date", task.getDueDate() == null ? null : Date.valueOf(task.getDueDate()));
+                resultSet.updateString("status", task.getStatus() == null ? null : task.getStatus().getDbName());
+                Instant lastModified = Instant.now();
+                resultSet.updateLong("version", version);
+                resultSet.updateTimestamp("last_modified", Timestamp.from(lastModified));
+                resultSet.updateRow();
+                return Optional.of(buildTask(task, task.getId(), creationDate, version, lastModified));
+            }
         }
     }
 
     /**
-     * Delete an existing task.
+     * Delete an existing task, and record a tombstone for it in the same transaction.
      * @param taskId
+     * @return True if the task was deleted, false if there is no task with the id
      */
     @Override
-    public void deleteTask(int taskId) {
-        String query = "DELETE FROM tasks WHERE id = ?";
+    public boolean deleteTask(int taskId) {
+        WriteVersions versions = new WriteVersions();
+        List<TaskChange> changes = Collections.emptyList();
+        try {
+            boolean deleted = executeWrite(conn -> deleteTask(conn, taskId, versions));
+            if (deleted) {
+                changes = Collections.singletonList(TaskChange.deleted(taskId, versions.getVersion()));
+            }
+            return deleted;
+        } catch (SQLException e) {
+            throw new RuntimeException("Error in deleting task", e);
+        } finally {
+            versions.publish(changes);
+        }
+    }
 
-        try (Connection conn = getConnection()) {
-            PreparedStatement statement = conn.prepareStatement(query);
+    private boolean deleteTask(Connection conn, int taskId, WriteVersions versions) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("DELETE FROM tasks WHERE id = ?")) {
+            statement.setInt(1, taskId);
+            boolean deleted = statement.executeUpdate() > 0;
+            if (deleted) {
+                // A deletion takes a version too, once the delete holds the row's lock, so that it is ordered with
+                // the other changes
+                insertTombstone(conn, taskId, versions.take());
+            }
+            return deleted;
+        }
+    }
+
+    private void insertTombstone(Connection conn, int taskId, long version) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("INSERT INTO task_tombstones (id, version, deleted_on) VALUES (?, ?, ?)")) {
             statement.setInt(1, taskId);
+            statement.setLong(2, version);
+            statement.setTimestamp(3, Timestamp.from(Instant.now()));
             statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new RuntimeException("Error in deleting task", e);
+        }
+    }
+
+    /**
+     * The versions taken by executions of one single task write. A group committed write is executed again on its
+     * own if its batch's transaction fails, and takes a new version then, as another write may have locked the row
+     * and taken a later version in between. Only the version of the execution that committed is published.
+     */
+    private final class WriteVersions {
+
+        private final List<Long> taken = new ArrayList<>(1);
+
+        long take() {
+            long version = lastVersion.incrementAndGet();
+            taken.add(version);
+            return version;
+        }
+
+        /**
+         * @return The version of the last execution, or 0 if it didn't take one
+         */
+        long getVersion() {
+            return taken.isEmpty() ? 0 : taken.get(taken.size() - 1);
+        }
+
+        /**
+         * Publish the changes with the last version taken, and skip the versions of the executions that were
+         * rolled back.
+         * @param changes The committed changes, or empty if the write failed or changed nothing
+         */
+        void publish(List<TaskChange> changes) {
+            for (int i = 0; i < taken.size(); i++) {
+                if (i == taken.size() - 1) {
+                    changePublisher.publish(taken.get(i), changes);
+                } else {
+                    changePublisher.skip(taken.get(i));
+                }
+            }
         }
     }
 }
@@ -0,0 +1,307 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index of the words in task titles and descriptions.
+ * Each term maps to the sorted ids of the tasks that contain it (its postings), and the terms are kept in order so
+ * that a prefix matches a contiguous range of them.
+ * The index is built from every task at startup and then kept up to date by the changes the task repository
+ * publishes, so it never has to read the database again.
+ */
+public class TaskSearchIndex implements TaskChangeListener {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Guarded by lock
+    private final TreeMap<String, Postings> postingsByTerm = new TreeMap<>();
+
+    // Guarded by lock. What was indexed for each task, so that it can be removed again.
+    private final Map<Integer, IndexedTask> indexedTasks = new HashMap<>();
+
+    TaskSearchIndex() {
+    }
+
+    /**
+     * Find the tasks that contain every word of a query, in their title or description.
+     * Words are matched case insensitively, and a word ending with * matches any word that starts with it.
+     * If any of the dates or statuses are given, then tasks are also matched exactly as they are by
+     * {@link TaskRepository#getTasksBetweenDates(LocalDate, LocalDate, List)}.
+     * @param query The words to find, separated by whitespace
+     * @param startDate The earliest due date, or null
+     * @param endDate The latest due date, or null
+     * @param statuses The statuses to match, or null to match any status
+     * @param limit The maximum number of ids to return
+     * @return The ids of the matching tasks in ascending order
+     */
+    public List<Integer> search(String query, LocalDate startDate, LocalDate endDate, List<Task.Status> statuses, int limit) {
+        List<QueryTerm> queryTerms = parseQuery(query);
+        if (queryTerms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        boolean filtered = startDate != null || endDate != null || statuses != null;
+
+        lock.readLock().lock();
+        try {
+            List<int[]> postingsList = new ArrayList<>(queryTerms.size());
+            for (QueryTerm queryTerm : queryTerms) {
+                int[] postings = queryTerm.prefix ? getPrefixPostings(queryTerm.term) : getPostings(queryTerm.term);
+                if (postings.length == 0) {
+                    return Collections.emptyList();
+                }
+                postingsList.add(postings);
+            }
+            // Intersect the shortest postings first, so that there are fewest candidates to look up in the rest
+            postingsList.sort(Comparator.comparingInt(postings -> postings.length));
+
+            List<Integer> ids = new ArrayList<>();
+            int[] candidates = postingsList.get(0);
+            for (int i = 0; i < candidates.length && ids.size() < limit; i++) {
+                int id = candidates[i];
+                if (containsAll(postingsList, id) && (!filtered || indexedTasks.get(id).matches(startDate, endDate, statuses))) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void onTaskChange(TaskChange change) {
+        if (change.getType() == TaskChange.Type.DELETED) {
+            remove(change.getId());
+        } else {
+            add(change.getTask());
+        }
+    }
+
+    /**
+     * Index a task, replacing what was indexed for an earlier version of it.
+     * @param task
+     */
+    void add(Task task) {
+        lock.writeLock().lock();
+        try {
+            IndexedTask indexedTask = indexedTasks.get(task.getId());
+            if (indexedTask != null) {
+                if (indexedTask.version > task.getVersion()) {
+                    return;
+                }
+                removePostings(task.getId(), indexedTask.terms);
+            }
+            String[] terms = tokenize(task.getTitle(), task.getDescription());
+            for (String term : terms) {
+                postingsByTerm.computeIfAbsent(term, key -> new Postings()).add(task.getId());
+            }
+            indexedTasks.put(task.getId(), new IndexedTask(task, terms));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(int id) {
+        lock.writeLock().lock();
+        try {
+            IndexedTask indexedTask = indexedTasks.remove(id);
+            if (indexedTask != null) {
+                removePostings(id, indexedTask.terms);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            postingsByTerm.clear();
+            indexedTasks.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removePostings(int id, String[] terms) {
+        for (String term : terms) {
+            Postings postings = postingsByTerm.get(term);
+            if (postings != null && postings.remove(id) && postings.size == 0) {
+                postingsByTerm.remove(term);
+            }
+        }
+    }
+
+    private int[] getPostings(String term) {
+        Postings postings = postingsByTerm.get(term);
+        return postings == null ? new int[0] : Arrays.copyOf(postings.ids, postings.size);
+    }
+
+    /**
+     * Merge the postings of every term that starts with a prefix.
+     */
+    private int[] getPrefixPostings(String prefix) {
+        SortedMap<String, Postings> matches = postingsByTerm.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (matches.size() == 1) {
+            return getPostings(matches.firstKey());
+        }
+        int total = 0;
+        for (Postings postings : matches.values()) {
+            total += postings.size;
+        }
+        int[] ids = new int[total];
+        int length = 0;
+        for (Postings postings : matches.values()) {
+            System.arraycopy(postings.ids, 0, ids, length, postings.size);
+            length += postings.size;
+        }
+        Arrays.sort(ids);
+        // A task can contain more than one of the terms
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, distinct);
+    }
+
+    private static boolean containsAll(List<int[]> postingsList, int id) {
+        for (int i = 1; i < postingsList.size(); i++) {
+            if (Arrays.binarySearch(postingsList.get(i), id) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split text into its distinct terms: lower case runs of letters and digits.
+     */
+    static String[] tokenize(String... texts) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String text : texts) {
+            if (text != null) {
+                for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}]+")) {
+                    if (!term.isEmpty()) {
+                        terms.add(term);
+                    }
+                }
+            }
+        }
+        return terms.toArray(new String[0]);
+    }
+
+    private static List<QueryTerm> parseQuery(String query) {
+        List<QueryTerm> queryTerms = new ArrayList<>();
+        if (query == null) {
+            return queryTerms;
+        }
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            String[] terms = tokenize(word);
+            for (int i = 0; i < terms.length; i++) {
+                // Only the last term of a word such as "e-mai*" is a prefix
+                queryTerms.add(new QueryTerm(terms[i], prefix && i == terms.length - 1));
+            }
+        }
+        return queryTerms;
+    }
+
+    private static class QueryTerm {
+
+        private final String term;
+
+        private final boolean prefix;
+
+        QueryTerm(String term, boolean prefix) {
+            this.term = term;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * The sorted ids of the tasks that contain a term.
+     * Ids are usually added in ascending order, as new tasks are created, so adding is usually an append.
+     */
+    private static class Postings {
+
+        private int[] ids = new int[4];
+
+        private int size;
+
+        void add(int id) {
+            int index = size > 0 && ids[size - 1] < id ? -(size + 1) : Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                return;
+            }
+            int insertionPoint = -(index + 1);
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, insertionPoint, ids, insertionPoint + 1, size - insertionPoint);
+            ids[insertionPoint] = id;
+            size++;
+        }
+
+        boolean remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+            return true;
+        }
+    }
+
+    /**
+     * What was indexed for a task: its terms, and the fields it can be filtered by.
+     */
+    private static class IndexedTask {
+
+        private final long version;
+
+        private final String[] terms;
+
+        private final Task.Status status;
+
+        private final LocalDate dueDate;
+
+        IndexedTask(Task task, String[] terms) {
+            this.version = task.getVersion();
+            this.terms = terms;
+            this.status = task.getStatus();
+            this.dueDate = task.getDueDate();
+        }
+
+        /**
+         * As the repository matches tasks between dates: the task must have a due date, and one of the statuses
+         * (or any status if null).
+         */
+        boolean matches(LocalDate startDate, LocalDate endDate, List<Task.Status> statuses) {
+            if (dueDate == null || status == null) {
+                return false;
+            }
+            if (statuses != null && !statuses.contains(status)) {
+                return false;
+            }
+            return (startDate == null || !dueDate.isBefore(startDate)) && (endDate == null || !dueDate.isAfter(endDate));
+        }
+    }
+}
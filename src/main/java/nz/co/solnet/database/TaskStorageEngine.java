@@ -0,0 +1,40 @@
+package nz.co.solnet.database;
+
+import java.time.Instant;
+
+/**
+ * A TaskRepository that stores the tasks itself, rather than decorating another repository.
+ * There must only be one engine for a store of tasks, as it assigns task versions, and it publishes every change
+ * it commits, in version order, to its listeners.
+ * The engine is chosen with task.api.database.engine, see {@link DatabaseContext}.
+ */
+interface TaskStorageEngine extends TaskRepository {
+
+    /**
+     * Listen to every change this engine commits, in version order.
+     * @param listener
+     */
+    void addTaskChangeListener(TaskChangeListener listener);
+
+    void removeTaskChangeListener(TaskChangeListener listener);
+
+    /**
+     * Delete every task, and the record of every deleted task. Every deletion up to now counts as purged, so clients
+     * with a copy from before are told to resync.
+     */
+    void cleanTaskData();
+
+    /**
+     * Purge the tombstones of tasks deleted before a time, and record the highest version purged. getChangesSince
+     * tells a client whose copy is older than that to resync, as it may have missed one of the deletions.
+     * @param deletedBefore
+     * @return The number of tombstones purged
+     */
+    int purgeTombstones(Instant deletedBefore);
+
+    /**
+     * Release the files and threads the engine holds, when the server stops. The engine isn't used after this.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,135 @@
+package nz.co.solnet.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An index of the last change to each task, and of each deletion, by version then id, for the storage engines that
+ * keep their indexes in memory. It answers getChangesSince with the same pages as the database.
+ * Reads can run alongside writes. Writes must be serialized by the engine.
+ * @param <V> What is held for each change
+ */
+final class VersionIndex<V> {
+
+    private final ConcurrentSkipListMap<VersionKey, V> changes = new ConcurrentSkipListMap<>();
+
+    void put(long version, int id, V value) {
+        changes.put(new VersionKey(version, id), value);
+    }
+
+    void remove(long version, int id) {
+        changes.remove(new VersionKey(version, id));
+    }
+
+    void clear() {
+        changes.clear();
+    }
+
+    /**
+     * Get the changes after a version, up to the high water mark, in version then id order.
+     * If there are more than limit, they stop before the version of the first one left out, so that every change with
+     * a version is returned together. If more than limit changes were made with the first version, they are all
+     * returned.
+     * @param since The version of the client's copy, or 0 for every task
+     * @param highWaterMark The version up to which every change has been published
+     * @param limit The maximum number of changes to return, unless more than that were made with a single version
+     * @return
+     */
+    Page<V> getChangesSince(long since, long highWaterMark, int limit) {
+        List<V> page = new ArrayList<>();
+        if (since >= highWaterMark) {
+            return new Page<>(page, highWaterMark, false);
+        }
+
+        long firstVersion = 0;
+        long cutOffVersion = 0;
+        for (Map.Entry<VersionKey, V> change : getChanges(since + 1, highWaterMark).entrySet()) {
+            if (page.isEmpty()) {
+                firstVersion = change.getKey().version;
+            }
+            if (page.size() == limit) {
+                cutOffVersion = change.getKey().version;
+                break;
+            }
+            page.add(change.getValue());
+        }
+        if (cutOffVersion == 0) {
+            return new Page<>(page, highWaterMark, false);
+        }
+        if (cutOffVersion == firstVersion) {
+            // A bulk write made more than limit changes with one version
+            return new Page<>(new ArrayList<>(getChanges(firstVersion, firstVersion).values()), firstVersion, firstVersion < highWaterMark);
+        }
+        // Drop the changes made with the cut off version that fitted in the page
+        page.clear();
+        page.addAll(getChanges(since + 1, cutOffVersion - 1).values());
+        return new Page<>(page, cutOffVersion - 1, true);
+    }
+
+    private Map<VersionKey, V> getChanges(long first, long last) {
+        return changes.subMap(new VersionKey(first, Integer.MIN_VALUE), true, new VersionKey(last, Integer.MAX_VALUE), true);
+    }
+
+    /**
+     * A page of changes, and the version it is up to.
+     */
+    static final class Page<V> {
+
+        private final List<V> changes;
+
+        private final long version;
+
+        private final boolean hasMore;
+
+        Page(List<V> changes, long version, boolean hasMore) {
+            this.changes = changes;
+            this.version = version;
+            this.hasMore = hasMore;
+        }
+
+        List<V> getChanges() {
+            return changes;
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    /**
+     * The position of a change: its version, then the task's id.
+     */
+    private static final class VersionKey implements Comparable<VersionKey> {
+
+        private final long version;
+
+        private final int id;
+
+        VersionKey(long version, int id) {
+            this.version = version;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(VersionKey other) {
+            int byVersion = Long.compare(version, other.version);
+            return byVersion != 0 ? byVersion : Integer.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof VersionKey && compareTo((VersionKey) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(version) * 31 + id;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package nz.co.solnet.model;
 
 import com.google.gson.annotations.SerializedName;
 
+import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
@@ -10,10 +11,10 @@ public class Task {
 
     private int id;
 
-    private static final int MAX_TITLE_LENGTH = 256;
+    static final int MAX_TITLE_LENGTH = 256;
     private String title;
 
-    private static final int MAX_DESCRIPTION_LENGTH = 1024;
+    static final int MAX_DESCRIPTION_LENGTH = 1024;
     private String description;
 
     @SerializedName("due_date")
@@ -25,6 +26,11 @@ public class Task {
     private static final int MAX_STATUS_LENGTH = 10;
     private Status status;
 
+    // Transient so they aren't part of the JSON representation, they are sent as the ETag and Last-Modified headers
+    private transient long version;
+
+    private transient Instant lastModified;
+
     public enum Status {
         TODO("TODO"),
         IN_PROGRESS("INPROGRESS"),
@@ -101,6 +107,27 @@ public class Task {
         this.status = status;
     }
 
+    /**
+     * The version of the task, which changes every time the task is written.
+     * Versions are taken from a single increasing sequence across all tasks.
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public Instant getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(Instant lastModified) {
+        this.lastModified = lastModified;
+    }
+
     public String toString() {
         return new StringBuilder()
                 .append("[")
@@ -164,6 +191,10 @@ public class Task {
 
         private Status status;
 
+        private long version;
+
+        private Instant lastModified;
+
         public TaskBuilder withId(int id) {
             this.id = id;
             return this;
@@ -198,6 +229,16 @@ public class Task {
             return this;
         }
 
+        public TaskBuilder withVersion(long version) {
+            this.version = version;
+            return this;
+        }
+
+        public TaskBuilder withLastModified(Instant lastModified) {
+            this.lastModified = lastModified;
+            return this;
+        }
+
         public Task build() {
             Task t = new Task();
             t.id = id;
@@ -206,6 +247,8 @@ public class Task {
             t.dueDate = dueDate;
             t.description = description;
             t.status = status;
+            t.version = version;
+            t.lastModified = lastModified;
             return t;
         }
     }
@@ -0,0 +1,125 @@
+package nz.co.solnet.model;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields to set on every task matched by a bulk update.
+ * Only the fields that were given are set. A field given as null is set to null.
+ */
+public class TaskPatch {
+
+    private boolean titleSet;
+    private String title;
+
+    private boolean descriptionSet;
+    private String description;
+
+    private boolean dueDateSet;
+    private LocalDate dueDate;
+
+    private boolean statusSet;
+    private Task.Status status;
+
+    public boolean isTitleSet() {
+        return titleSet;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public boolean isDescriptionSet() {
+        return descriptionSet;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public boolean isDueDateSet() {
+        return dueDateSet;
+    }
+
+    public LocalDate getDueDate() {
+        return dueDate;
+    }
+
+    public boolean isStatusSet() {
+        return statusSet;
+    }
+
+    public Task.Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return True if no fields are set
+     */
+    public boolean isEmpty() {
+        return !titleSet && !descriptionSet && !dueDateSet && !statusSet;
+    }
+
+    /**
+     * Returns a possibly empty list of constraint violations.
+     * The same constraints apply as when a single task is created or updated.
+     * @return
+     */
+    public List<ConstraintViolation> validate() {
+        List<ConstraintViolation> violations = new ArrayList<>();
+
+        if (isEmpty()) {
+            violations.add(new ConstraintViolation("At least one of title, description, due_date or status is required", "", null));
+        }
+
+        // Validate title
+        if (titleSet) {
+            if (title == null || title.isEmpty()) {
+                violations.add(new ConstraintViolation("Title is required", "title", title));
+            } else if (title.length() > Task.MAX_TITLE_LENGTH) {
+                violations.add(new ConstraintViolation("Title exceeds maximum length of " + Task.MAX_TITLE_LENGTH, "title", title));
+            }
+        }
+
+        // Validate description
+        if (descriptionSet && description != null && description.length() > Task.MAX_DESCRIPTION_LENGTH) {
+            violations.add(new ConstraintViolation("Description exceeds maximum length of " + Task.MAX_DESCRIPTION_LENGTH, "description", description));
+        }
+
+        return violations;
+    }
+
+    public static class TaskPatchBuilder {
+
+        private final TaskPatch patch = new TaskPatch();
+
+        public TaskPatchBuilder withTitle(String title) {
+            patch.titleSet = true;
+            patch.title = title;
+            return this;
+        }
+
+        public TaskPatchBuilder withDescription(String description) {
+            patch.descriptionSet = true;
+            patch.description = description;
+            return this;
+        }
+
+        public TaskPatchBuilder withDueDate(LocalDate dueDate) {
+            patch.dueDateSet = true;
+            patch.dueDate = dueDate;
+            return this;
+        }
+
+        public TaskPatchBuilder withStatus(Task.Status status) {
+            patch.statusSet = true;
+            patch.status = status;
+            return this;
+        }
+
+        public TaskPatch build() {
+            return patch;
+        }
+    }
+}
@@ -1,17 +1,29 @@
 package nz.co.solnet.server;
 
+import nz.co.solnet.Configuration;
+import jakarta.servlet.DispatcherType;
+import nz.co.solnet.api.metrics.MetricsFilter;
+import nz.co.solnet.api.metrics.MetricsServlet;
+import nz.co.solnet.api.metrics.RequestMetrics;
+import nz.co.solnet.api.stream.TaskStreamServlet;
 import nz.co.solnet.api.tasks.TaskServlet;
 import nz.co.solnet.database.DatabaseContext;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.server.handler.ShutdownHandler;
-import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.VirtualThreads;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -20,6 +32,7 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.EnumSet;
 
 public class JettyServer {
 
@@ -27,6 +40,10 @@ public class JettyServer {
 
     private static final Logger logger = LogManager.getLogger(JettyServer.class);
 
+    private static final String THREAD_MODE_PLATFORM = "platform";
+
+    private static final String THREAD_MODE_VIRTUAL = "virtual";
+
     public void start(int serverPort, String shutdownSecret) throws Exception {
 
         // Hide the jetty info logs (and below) unless someone explicitly sets the level
@@ -34,17 +51,18 @@ public class JettyServer {
             System.setProperty("org.eclipse.jetty.LEVEL", "WARN");
         }
 
-        int maxThreads = 100;
-        int minThreads = 10;
+        int maxThreads = Configuration.getIntProperty("task.api.server.maxThreads", 100);
+        int minThreads = Configuration.getIntProperty("task.api.server.minThreads", 10);
         int idleTimeout = 120;
 
         QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, idleTimeout);
+        configureThreadMode(threadPool, Configuration.getProperty("task.api.server.threadMode", THREAD_MODE_PLATFORM));
 
         server = new Server(threadPool);
 
         server.setErrorHandler(new JettyErrorHandler());
 
-        ServerConnector connector = new ServerConnector(server);
+        ServerConnector connector = createConnector(server, Configuration.getBooleanProperty("task.api.server.http2.enabled", false));
         connector.setPort(serverPort);
         server.addConnector(connector);
 
@@ -87,22 +105,108 @@ public class JettyServer {
 
         // add our servlet
         ServletHolder holderApiTasks = new ServletHolder("tasks", TaskServlet.class);
+        holderApiTasks.setAsyncSupported(true);
         context.addServlet(holderApiTasks, "/api/tasks/*");
 
-        // add the default servlet (servlet spec requirement)
-        ServletHolder holderPwd = new ServletHolder("default", DefaultServlet.class);
-        holderPwd.setInitParameter("dirAllowed", "false");
-        context.addServlet(holderPwd, "/");
+        // stream task changes, as an exact mapping it takes precedence over /api/tasks/*
+        // loaded on startup, so that changes made before the first subscriber can be replayed
+        ServletHolder holderTaskStream = new ServletHolder("stream", TaskStreamServlet.class);
+        holderTaskStream.setAsyncSupported(true);
+        holderTaskStream.setInitOrder(1);
+        context.addServlet(holderTaskStream, "/api/tasks/stream");
+
+        // record the latency of every task request, and serve the metrics
+        // mapped by servlet name, so that long lived streams aren't recorded as slow requests
+        RequestMetrics requestMetrics = new RequestMetrics();
+        FilterHolder holderMetricsFilter = new FilterHolder(new MetricsFilter(requestMetrics));
+        holderMetricsFilter.setName("metrics");
+        holderMetricsFilter.setAsyncSupported(true);
+        FilterMapping metricsFilterMapping = new FilterMapping();
+        metricsFilterMapping.setFilterName(holderMetricsFilter.getName());
+        metricsFilterMapping.setServletName(holderApiTasks.getName());
+        metricsFilterMapping.setDispatcherTypes(EnumSet.of(DispatcherType.REQUEST));
+        context.getServletHandler().addFilter(holderMetricsFilter, metricsFilterMapping);
+        context.addServlet(new ServletHolder("metrics", new MetricsServlet(requestMetrics)), "/api/metrics");
+
+        // add the default servlet (servlet spec requirement), which serves the documentation from memory
+        StaticAssetServlet staticAssetServlet = new StaticAssetServlet(context.getBaseResource(),
+                Configuration.getLongProperty("task.api.assets.maxAgeSeconds", 86_400));
+        context.addServlet(new ServletHolder("default", staticAssetServlet), "/");
 
         // Create a ShutdownHandler
         ShutdownHandler shutdownHandler = new ShutdownHandler(shutdownSecret);
         HandlerCollection handlers = new HandlerCollection();
-        handlers.setHandlers(new Handler[]{shutdownHandler, context});
+        handlers.setHandlers(new Handler[]{shutdownHandler, createGzipHandler(context)});
         server.setHandler(handlers);
 
         server.start();
     }
 
+    /**
+     * Create the connector, for HTTP/1.1 and optionally HTTP/2 over cleartext (h2c) on the same port.
+     * With HTTP/2 a client can send many requests at once over one connection, as concurrent streams, rather than
+     * opening a connection for each. Clients can start HTTP/2 with prior knowledge, or upgrade an HTTP/1.1 connection
+     * to it with an Upgrade: h2c header. Clients that don't ask for HTTP/2 are served HTTP/1.1 as before.
+     * Each stream of an HTTP/2 connection is handled as a request of its own, so the number of streams in progress
+     * per connection is limited by task.api.server.http2.maxConcurrentStreams.
+     * @param server The server
+     * @param http2Enabled Whether to accept h2c as well as HTTP/1.1
+     * @return
+     */
+    private static ServerConnector createConnector(Server server, boolean http2Enabled) {
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        HttpConnectionFactory http11 = new HttpConnectionFactory(httpConfiguration);
+        if (!http2Enabled) {
+            return new ServerConnector(server, http11);
+        }
+        HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfiguration);
+        h2c.setMaxConcurrentStreams(Configuration.getIntProperty("task.api.server.http2.maxConcurrentStreams", 128));
+        h2c.setInitialStreamRecvWindow(Configuration.getIntProperty("task.api.server.http2.initialStreamRecvWindow", 512 * 1024));
+        h2c.setInitialSessionRecvWindow(Configuration.getIntProperty("task.api.server.http2.initialSessionRecvWindow", 1024 * 1024));
+        logger.info("Accepting HTTP/2 (h2c) as well as HTTP/1.1");
+        return new ServerConnector(server, http11, h2c);
+    }
+
+    /**
+     * Compress API responses larger than task.api.compression.minSizeBytes for clients that accept gzip.
+     * The documentation is already gzipped, and the task stream is left alone so that each event is sent as soon as
+     * it is written.
+     * @param context The handler whose responses are compressed
+     * @return The handler, wrapping the context
+     */
+    private static GzipHandler createGzipHandler(Handler context) {
+        GzipHandler gzipHandler = new GzipHandler();
+        gzipHandler.setMinGzipSize(Configuration.getIntProperty("task.api.compression.minSizeBytes", 1024));
+        gzipHandler.setIncludedPaths("/api/*");
+        gzipHandler.setExcludedPaths("/api/tasks/stream");
+        gzipHandler.setIncludedMethods("GET", "POST");
+        gzipHandler.setHandler(context);
+        return gzipHandler;
+    }
+
+    /**
+     * In virtual thread mode, requests are handled on a new virtual thread each, while Jetty's selectors and
+     * acceptors stay on the pool's platform threads. A request blocked on JDBC then no longer holds one of the pool's
+     * threads, so the number of requests in progress isn't limited by maxThreads.
+     * The number of requests using the database at once is still bounded by the connection pool, and the rest wait
+     * for a connection (without holding a platform thread) for up to the pool's acquire timeout.
+     * Virtual threads need Java 21 or later. On earlier versions a warning is logged and platform threads are used.
+     * @param threadPool The server's thread pool
+     * @param threadMode platform or virtual
+     */
+    private static void configureThreadMode(QueuedThreadPool threadPool, String threadMode) {
+        if (THREAD_MODE_VIRTUAL.equalsIgnoreCase(threadMode)) {
+            if (VirtualThreads.areSupported()) {
+                threadPool.setVirtualThreadsExecutor(VirtualThreads.getDefaultVirtualThreadsExecutor());
+                logger.info("Handling requests on virtual threads");
+            } else {
+                logger.warn("Virtual threads are not supported by this JVM (Java 21 or later is required), handling requests on platform threads");
+            }
+        } else if (!THREAD_MODE_PLATFORM.equalsIgnoreCase(threadMode)) {
+            throw new IllegalArgumentException("Invalid value for task.api.server.threadMode: '" + threadMode + "' must be platform or virtual");
+        }
+    }
+
     private static URI getWebRootUri() throws URISyntaxException, MalformedURLException {
         ClassLoader cl = JettyServer.class.getClassLoader();
         URL fileURL = cl.getResource("webapp");
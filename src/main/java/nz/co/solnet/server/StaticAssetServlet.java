@@ -0,0 +1,221 @@
+package nz.co.solnet.server;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.util.resource.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the as built documentation (the files in the webapp folder) from memory.
+ * Every file is read and gzipped once, when the servlet starts, so a request is only a lookup and a write.
+ * The gzipped file is served to clients that accept it, unless gzipping didn't make it smaller.
+ * Each file has a strong ETag, from a hash of its content, so that clients can revalidate it with If-None-Match.
+ * HTML pages are revalidated on every use, as their names don't change when they do. Other files (the stylesheet
+ * and icon) can be used without revalidation for task.api.assets.maxAgeSeconds.
+ */
+public class StaticAssetServlet extends HttpServlet {
+
+    private static final Logger logger = LogManager.getLogger(StaticAssetServlet.class);
+
+    private static final String WELCOME_FILE = "index.html";
+
+    private final Resource webRoot;
+
+    private final long maxAgeSeconds;
+
+    // Written once in init, then only read
+    private final Map<String, Asset> assets = new HashMap<>();
+
+    public StaticAssetServlet(Resource webRoot, long maxAgeSeconds) {
+        this.webRoot = webRoot;
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    @Override
+    public void init() {
+        long size = 0;
+        long gzippedSize = 0;
+        for (String name : webRoot.list()) {
+            try {
+                Resource resource = webRoot.addPath(name);
+                if (resource.isDirectory()) {
+                    continue;
+                }
+                byte[] content;
+                try (InputStream input = resource.getInputStream()) {
+                    content = input.readAllBytes();
+                }
+                Asset asset = new Asset(content, getServletContext().getMimeType(name), getCacheControl(name));
+                assets.put("/" + name, asset);
+                size += content.length;
+                gzippedSize += asset.gzipped != null ? asset.gzipped.length : content.length;
+            } catch (IOException e) {
+                throw new RuntimeException("Error loading static asset " + name, e);
+            }
+        }
+        logger.info("Loaded " + assets.size() + " static assets, " + size + " bytes (" + gzippedSize + " bytes gzipped)");
+    }
+
+    /**
+     * Serve an asset, gzipped if the client accepts it, or respond with 304 Not Modified if the client's copy
+     * is current. HEAD requests are answered with the same headers.
+     * @param request HTTP request object
+     * @param response HTTP response object
+     * @throws IOException
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String path = request.getPathInfo() == null ? request.getServletPath() : request.getServletPath() + request.getPathInfo();
+        Asset asset = assets.get(path.equals("/") ? "/" + WELCOME_FILE : path);
+        if (asset == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        boolean gzip = asset.gzipped != null && acceptsGzip(request.getHeader("Accept-Encoding"));
+        String etag = gzip ? asset.gzippedETag : asset.etag;
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", asset.cacheControl);
+        if (asset.gzipped != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (isNotModified(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = gzip ? asset.gzipped : asset.content;
+        response.setStatus(HttpServletResponse.SC_OK);
+        if (asset.contentType != null) {
+            response.setContentType(asset.contentType);
+        }
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private String getCacheControl(String name) {
+        return name.endsWith(".html") ? "no-cache" : "public, max-age=" + maxAgeSeconds;
+    }
+
+    /**
+     * Whether an Accept-Encoding header accepts gzip, either by name or as *, with a quality above 0.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzipQuality = null;
+        Double anyQuality = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzipQuality = quality;
+            } else if (name.equals("*")) {
+                anyQuality = quality;
+            }
+        }
+        if (gzipQuality != null) {
+            return gzipQuality > 0;
+        }
+        return anyQuality != null && anyQuality > 0;
+    }
+
+    private static boolean isNotModified(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // Weak comparison, as If-None-Match requires
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A file, as it is and gzipped, with the headers it is served with.
+     */
+    private static class Asset {
+
+        private final byte[] content;
+
+        // Null if gzipping doesn't make the file smaller
+        private final byte[] gzipped;
+
+        private final String contentType;
+
+        private final String cacheControl;
+
+        private final String etag;
+
+        private final String gzippedETag;
+
+        Asset(byte[] content, String contentType, String cacheControl) throws IOException {
+            this.content = content;
+            byte[] compressed = gzip(content);
+            this.gzipped = compressed.length < content.length ? compressed : null;
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            String hash = hash(content);
+            // Each encoding is a different representation, so has a different strong ETag
+            this.etag = "\"" + hash + "\"";
+            this.gzippedETag = "\"" + hash + "-gzip\"";
+        }
+
+        private static byte[] gzip(byte[] content) throws IOException {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(content.length);
+            // Compressed once at startup, so the best (and slowest) compression is used
+            try (GZIPOutputStream gzip = new GZIPOutputStream(output) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                gzip.write(content);
+            }
+            return output.toByteArray();
+        }
+
+        private static String hash(byte[] content) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+    }
+}
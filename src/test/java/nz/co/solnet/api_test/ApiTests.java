@@ -3,6 +3,7 @@ package nz.co.solnet.api_test;
 import au.com.origin.snapshots.Expect;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
 import nz.co.solnet.Main;
 import nz.co.solnet.api.tasks.GsonLocalDateAdapter;
 import nz.co.solnet.database.DBTestUtils;
@@ -11,8 +12,16 @@ import org.junit.*;
 
 import static org.apache.logging.log4j.LogManager.getLogger;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.LocalDate;
 
 import au.com.origin.snapshots.junit4.SnapshotRunner;
@@ -35,9 +44,13 @@ public class ApiTests {
     public TestName name = new TestName();
 
     @BeforeClass
-    public static void beforeAll() {
+    public static void beforeAll() throws IOException {
 
         System.setProperty("task.api.database.url", "jdbc:derby:memory:testdb");
+        if ("log".equals(System.getProperty("task.api.database.engine"))) {
+            // Start from an empty log, as the in-memory database starts empty
+            System.setProperty("task.api.database.log.directory", Files.createTempDirectory("api-tests-tasklog").toString());
+        }
         System.setProperty("task.api.port", "8090");
         System.setProperty("task.api.database.username", "test");
         System.setProperty("task.api.database.password", "test");
@@ -79,6 +92,50 @@ public class ApiTests {
         expect.toMatchSnapshot(results.getLast().getJson());
     }
 
+    @Test
+    public void createBatch_201() throws IOException {
+        // Given
+        TestCase createBatch201 = new TestCase(BASE_URL);
+        createBatch201.addOperation(POST, "/api/tasks/batch", "[{ \"title\" : \"Test name 1\", \"description\" : \"Test description\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-04\" }, { \"title\" : \"Test name 2\", \"status\" : \"DONE\" }]");
+
+        // When
+        TestCase.Results results = createBatch201.execute();
+
+        // Then
+        assertEquals(201, results.getLast().getStatusCode());
+        expect.toMatchSnapshot(results.getLast().getJson());
+
+        // When
+        TestCase getCollection = new TestCase(BASE_URL);
+        getCollection.addOperation(GET, "/api/tasks");
+        results = getCollection.execute();
+
+        // Then
+        assertEquals(2, gson.fromJson(results.getLast().getJson(), JsonObject[].class).length);
+    }
+
+    @Test
+    public void createBatch_400_itemViolations() throws IOException {
+        // Given
+        TestCase createBatch400 = new TestCase(BASE_URL);
+        createBatch400.addOperation(POST, "/api/tasks/batch", "[{ \"title\" : \"Test name\" }, { \"description\" : \"Test description\" }, { \"title\" : \"Test name\", \"due_date\" : \"2023-13-04\" }]");
+
+        // When
+        TestCase.Results results = createBatch400.execute();
+
+        // Then
+        assertEquals(400, results.getLast().getStatusCode());
+        expect.toMatchSnapshot(results.getLast().getJson());
+
+        // When
+        TestCase getCollection = new TestCase(BASE_URL);
+        getCollection.addOperation(GET, "/api/tasks");
+        results = getCollection.execute();
+
+        // Then the valid task in the batch was not created either
+        assertEquals(0, gson.fromJson(results.getLast().getJson(), JsonObject[].class).length);
+    }
+
     @Test
     public void create_201_invalidStatus() throws IOException {
         // Given
@@ -253,6 +310,50 @@ public class ApiTests {
         expect.toMatchSnapshot(results.getLast().getJson());
     }
 
+    @Test
+    public void getCollection_200_paged() throws IOException {
+        // Given
+        TestCase getCollection200Paged = new TestCase(BASE_URL);
+        for (int i = 0; i < 3; i++) {
+            getCollection200Paged.addOperation(POST, "/api/tasks", "{ \"title\" : \"Test name\", \"description\" : \"Test description\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-04\" }");
+        }
+        getCollection200Paged.addOperation(GET, "/api/tasks?status=TODO&limit=2");
+
+        // When
+        TestCase.Results results = getCollection200Paged.execute();
+
+        // Then
+        assertEquals(200, results.getLast().getStatusCode());
+        JsonObject firstPage = gson.fromJson(results.getLast().getJson(), JsonObject.class);
+        assertEquals(2, firstPage.getAsJsonArray("tasks").size());
+        assertTrue(firstPage.has("next_cursor"));
+
+        // When
+        TestCase getNextPage = new TestCase(BASE_URL);
+        getNextPage.addOperation(GET, "/api/tasks?status=TODO&limit=2&cursor=" + firstPage.get("next_cursor").getAsString());
+        results = getNextPage.execute();
+
+        // Then
+        assertEquals(200, results.getLast().getStatusCode());
+        JsonObject lastPage = gson.fromJson(results.getLast().getJson(), JsonObject.class);
+        assertEquals(1, lastPage.getAsJsonArray("tasks").size());
+        assertFalse(lastPage.has("next_cursor"));
+    }
+
+    @Test
+    public void getCollection_400_invalidPageParameters() throws IOException {
+        // Given
+        TestCase getCollection400InvalidPageParameters = new TestCase(BASE_URL);
+        getCollection400InvalidPageParameters.addOperation(GET, "/api/tasks?limit=0&cursor=INVALID");
+
+        // When
+        TestCase.Results results = getCollection400InvalidPageParameters.execute();
+
+        // Then
+        assertEquals(400, results.getLast().getStatusCode());
+        expect.toMatchSnapshot(results.getLast().getJson());
+    }
+
     @Test
     public void get_400_malformedId() throws IOException {
         // Given
@@ -355,6 +456,201 @@ public class ApiTests {
         expect.toMatchSnapshot(results.getLast().getJson());
     }
 
+    @Test
+    public void deleteByFilter_200() throws IOException {
+        // Given
+        TestCase deleteByFilter200 = new TestCase(BASE_URL);
+        deleteByFilter200.addOperation(POST, "/api/tasks/batch", "[{ \"title\" : \"Test name 1\", \"status\" : \"DONE\", \"due_date\" : \"2023-04-04\" }, { \"title\" : \"Test name 2\", \"status\" : \"DONE\", \"due_date\" : \"2023-05-04\" }, { \"title\" : \"Test name 3\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-04\" }]");
+        deleteByFilter200.addOperation(DELETE, "/api/tasks?status=DONE&startDate=2023-04-01&endDate=2023-04-30");
+
+        // When
+        TestCase.Results results = deleteByFilter200.execute();
+
+        // Then
+        assertEquals(200, results.getLast().getStatusCode());
+        expect.toMatchSnapshot(results.getLast().getJson());
+
+        // When
+        TestCase getCollection = new TestCase(BASE_URL);
+        getCollection.addOperation(GET, "/api/tasks");
+        results = getCollection.execute();
+
+        // Then
+        assertEquals(2, gson.fromJson(results.getLast().getJson(), JsonObject[].class).length);
+    }
+
+    @Test
+    public void deleteByFilter_400_noFilter() throws IOException {
+        // Given
+        TestCase deleteByFilter400 = new TestCase(BASE_URL);
+        deleteByFilter400.addOperation(DELETE, "/api/tasks");
+
+        // When
+        TestCase.Results results = deleteByFilter400.execute();
+
+        // Then
+        assertEquals(400, results.getLast().getStatusCode());
+        expect.toMatchSnapshot(results.getLast().getJson());
+    }
+
+    @Test
+    public void search_200() throws IOException {
+        // Given
+        TestCase search200 = new TestCase(BASE_URL);
+        search200.addOperation(POST, "/api/tasks/batch", "[{ \"title\" : \"Write report\", \"description\" : \"Quarterly figures\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-04\" }, { \"title\" : \"Review report\", \"status\" : \"DONE\", \"due_date\" : \"2023-04-05\" }, { \"title\" : \"Write minutes\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-06\" }]");
+        search200.addOperation(GET, "/api/tasks/search?q=WRITE%20rep*");
+
+        // When
+        TestCase.Results results = search200.execute();
+
+        // Then
+        assertEquals(200, results.getLast().getStatusCode());
+        JsonObject[] tasks = gson.fromJson(results.getLast().getJson(), JsonObject[].class);
+        assertEquals(1, tasks.length);
+        assertEquals("Write report", tasks[0].get("title").getAsString());
+
+        // When
+        TestCase searchFiltered = new TestCase(BASE_URL);
+        searchFiltered.addOperation(PUT, "/api/tasks/" + tasks[0].get("id").getAsInt(), "{ \"title\" : \"Write summary\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-04\" }");
+        searchFiltered.addOperation(GET, "/api/tasks/search?q=report&status=DONE,IN_PROGRESS");
+        results = searchFiltered.execute();
+
+        // Then
+        tasks = gson.fromJson(results.getLast().getJson(), JsonObject[].class);
+        assertEquals(1, tasks.length);
+        assertEquals("Review report", tasks[0].get("title").getAsString());
+    }
+
+    @Test
+    public void search_400_noQuery() throws IOException {
+        // Given
+        TestCase search400 = new TestCase(BASE_URL);
+        search400.addOperation(GET, "/api/tasks/search?status=TODO");
+
+        // When
+        TestCase.Results results = search400.execute();
+
+        // Then
+        assertEquals(400, results.getLast().getStatusCode());
+        expect.toMatchSnapshot(results.getLast().getJson());
+    }
+
+    @Test
+    public void metrics_200() throws IOException {
+        // Given
+        TestCase metrics200 = new TestCase(BASE_URL);
+        metrics200.addOperation(GET, "/api/tasks/99999");
+        metrics200.addOperation(GET, "/api/metrics");
+
+        // When
+        TestCase.Results results = metrics200.execute();
+
+        // Then
+        assertEquals(200, results.getLast().getStatusCode());
+        JsonObject metrics = gson.fromJson(results.getLast().getJson(), JsonObject.class);
+        assertTrue(metrics.getAsJsonArray("requests").toString().contains("{\"method\":\"GET\",\"status\":\"4xx\""));
+        assertEquals(0, metrics.getAsJsonObject("in_flight").get("POST").getAsInt());
+    }
+
+    @Test
+    public void changes_200() throws IOException {
+        // Given
+        TestCase changes200 = new TestCase(BASE_URL);
+        changes200.addOperation(GET, "/api/tasks/changes");
+        TestCase.Results results = changes200.execute();
+        long since = gson.fromJson(results.getLast().getJson(), JsonObject.class).get("version").getAsLong();
+        TestCase create = new TestCase(BASE_URL);
+        create.addOperation(POST, "/api/tasks/batch", "[{ \"title\" : \"Test name 1\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-04\" }, { \"title\" : \"Test name 2\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-05\" }]");
+        results = create.execute();
+        JsonObject[] created = gson.fromJson(results.getLast().getJson(), JsonObject[].class);
+
+        // When
+        TestCase changesSince = new TestCase(BASE_URL);
+        changesSince.addOperation(DELETE, "/api/tasks/" + created[0].get("id").getAsInt());
+        changesSince.addOperation(GET, "/api/tasks/changes?since=" + since + "&limit=1");
+        results = changesSince.execute();
+
+        // Then
+        JsonObject changes = gson.fromJson(results.getLast().getJson(), JsonObject.class);
+        assertEquals(1, changes.getAsJsonArray("tasks").size());
+        assertEquals("Test name 2", changes.getAsJsonArray("tasks").get(0).getAsJsonObject().get("title").getAsString());
+        assertTrue(changes.get("has_more").getAsBoolean());
+
+        // When
+        changesSince = new TestCase(BASE_URL);
+        changesSince.addOperation(GET, "/api/tasks/changes?since=" + changes.get("version").getAsLong());
+        results = changesSince.execute();
+
+        // Then
+        changes = gson.fromJson(results.getLast().getJson(), JsonObject.class);
+        assertEquals(0, changes.getAsJsonArray("tasks").size());
+        assertEquals(created[0].get("id").getAsInt(), changes.getAsJsonArray("deleted").get(0).getAsInt());
+        assertFalse(changes.get("has_more").getAsBoolean());
+    }
+
+    @Test
+    public void counts_200() throws IOException {
+        // Given
+        TestCase create = new TestCase(BASE_URL);
+        create.addOperation(POST, "/api/tasks/batch", "[{ \"title\" : \"Test name 1\", \"status\" : \"TODO\", \"due_date\" : \"2031-04-04\" }, { \"title\" : \"Test name 2\", \"status\" : \"DONE\", \"due_date\" : \"2031-04-05\" }, { \"title\" : \"Test name 3\", \"status\" : \"DONE\", \"due_date\" : \"2031-04-06\" }, { \"title\" : \"Test name 4\", \"status\" : \"DONE\", \"due_date\" : \"2031-05-01\" }]");
+        TestCase.Results results = create.execute();
+        JsonObject[] created = gson.fromJson(results.getLast().getJson(), JsonObject[].class);
+
+        // When
+        TestCase counts200 = new TestCase(BASE_URL);
+        counts200.addOperation(DELETE, "/api/tasks/" + created[1].get("id").getAsInt());
+        counts200.addOperation(GET, "/api/tasks/counts?startDate=2031-04-01&endDate=2031-04-30");
+        results = counts200.execute();
+
+        // Then
+        assertEquals(200, results.getLast().getStatusCode());
+        JsonObject counts = gson.fromJson(results.getLast().getJson(), JsonObject.class);
+        assertEquals(1, counts.getAsJsonObject("counts").get("TODO").getAsInt());
+        assertEquals(0, counts.getAsJsonObject("counts").get("IN_PROGRESS").getAsInt());
+        assertEquals(1, counts.getAsJsonObject("counts").get("DONE").getAsInt());
+        assertEquals(2, counts.get("total").getAsInt());
+
+        // When
+        counts200 = new TestCase(BASE_URL);
+        counts200.addOperation(GET, "/api/tasks/counts?startDate=2031-04-01&status=DONE");
+        results = counts200.execute();
+
+        // Then
+        counts = gson.fromJson(results.getLast().getJson(), JsonObject.class);
+        assertEquals(1, counts.getAsJsonObject("counts").size());
+        assertEquals(2, counts.getAsJsonObject("counts").get("DONE").getAsInt());
+        assertEquals(2, counts.get("total").getAsInt());
+    }
+
+    @Test
+    public void stream_200() throws IOException {
+        // Given
+        HttpURLConnection stream = (HttpURLConnection) new URL(BASE_URL + "/api/tasks/stream").openConnection();
+        stream.setReadTimeout(10_000);
+        assertEquals(200, stream.getResponseCode());
+        assertTrue(stream.getContentType().startsWith("text/event-stream"));
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream.getInputStream(), StandardCharsets.UTF_8))) {
+            // When
+            TestCase create = new TestCase(BASE_URL);
+            create.addOperation(POST, "/api/tasks", "{ \"title\" : \"Streamed\", \"status\" : \"TODO\", \"due_date\" : \"2023-04-04\" }");
+            TestCase.Results results = create.execute();
+            int id = gson.fromJson(results.getLast().getJson(), JsonObject.class).get("id").getAsInt();
+
+            // Then
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals("event: created")) {
+                // skip the retry field and heartbeats
+            }
+            assertEquals("event: created", line);
+            JsonObject task = gson.fromJson(reader.readLine().substring("data: ".length()), JsonObject.class);
+            assertEquals(id, task.get("id").getAsInt());
+            assertEquals("Streamed", task.get("title").getAsString());
+        } finally {
+            stream.disconnect();
+        }
+    }
+
     private String getLongString(int length) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < length; i++) {
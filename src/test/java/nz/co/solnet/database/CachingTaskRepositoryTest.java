@@ -0,0 +1,134 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Races between writes are played out in order, by making a second write through the cache while the first is
+ * still inside the underlying repository.
+ */
+public class CachingTaskRepositoryTest {
+
+    private RacingRepository repository;
+
+    private CachingTaskRepository cache;
+
+    @Before
+    public void setUp() {
+        repository = new RacingRepository();
+        cache = new CachingTaskRepository.CachingTaskRepositoryBuilder().build(repository);
+        repository.addTaskChangeListener(cache);
+    }
+
+    @Test
+    public void updateRacingDelete_doesNotCacheDeletedTask() {
+        Task task = cache.createTask(newTask("Task"));
+        assertTrue(cache.getTask(task.getId()).isPresent());
+
+        repository.duringNextUpdate = () -> assertTrue(cache.deleteTask(task.getId()));
+        Task update = newTask("Updated");
+        update.setId(task.getId());
+        cache.updateTask(update);
+
+        assertFalse(cache.getTask(task.getId()).isPresent());
+    }
+
+    @Test
+    public void updateRacingUpdate_keepsNewerTask() {
+        Task task = cache.createTask(newTask("Task"));
+        cache.getTask(task.getId());
+
+        Task newer = newTask("Newer");
+        newer.setId(task.getId());
+        repository.duringNextUpdate = () -> cache.updateTask(newer);
+        Task older = newTask("Older");
+        older.setId(task.getId());
+        cache.updateTask(older);
+
+        // The older update was applied first, so the repository and the cache both have the newer one
+        assertEquals("Newer", repository.getTask(task.getId()).get().getTitle());
+        assertEquals("Newer", cache.getTask(task.getId()).get().getTitle());
+    }
+
+    @Test
+    public void updateRacingBulkDelete_doesNotCacheDeletedTask() {
+        Task task = cache.createTask(newTask("Task"));
+        cache.getTask(task.getId());
+
+        repository.duringNextUpdate = () -> assertEquals(1, cache.deleteTasksBetweenDates(null, null, null));
+        Task update = newTask("Updated");
+        update.setId(task.getId());
+        cache.updateTask(update);
+
+        assertFalse(cache.getTask(task.getId()).isPresent());
+    }
+
+    @Test
+    public void update_readsOwnWrite() {
+        Task task = cache.createTask(newTask("Task"));
+        cache.getTask(task.getId());
+
+        Task update = newTask("Updated");
+        update.setId(task.getId());
+        Optional<Task> updated = cache.updateTask(update);
+
+        assertEquals(updated.get().getVersion(), cache.getTask(task.getId()).get().getVersion());
+        assertEquals("Updated", cache.getTask(task.getId()).get().getTitle());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void full_evictsLeastRecentlyUsedTaskOfSegment() {
+        // 16 segments of 2 entries, so ids 5, 21 and 37 share one
+        cache = new CachingTaskRepository.CachingTaskRepositoryBuilder().withMaxEntries(32).build(repository);
+        for (int i = 0; i < 48; i++) {
+            cache.getTask(cache.createTask(newTask("Task " + i)).getId());
+        }
+        assertEquals(32, cache.getSize());
+        assertEquals(16, cache.getEvictions());
+
+        cache.getTask(21);
+        cache.getTask(5);
+        long misses = cache.getMisses();
+        cache.getTask(21);
+        assertEquals(misses, cache.getMisses());
+        cache.getTask(37);
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(32, cache.getSize());
+    }
+
+    private static Task newTask(String title) {
+        Task task = new Task();
+        task.setTitle(title);
+        task.setStatus(Task.Status.TODO);
+        task.setDueDate(LocalDate.parse("2024-01-01"));
+        return task;
+    }
+
+    /**
+     * Runs another write after the next update has been applied, but before it returns.
+     */
+    private static class RacingRepository extends InMemoryTaskRepository {
+
+        private Runnable duringNextUpdate;
+
+        @Override
+        public Optional<Task> updateTask(Task task) {
+            Optional<Task> updatedTask = super.updateTask(task);
+            Runnable race = duringNextUpdate;
+            duringNextUpdate = null;
+            if (race != null) {
+                race.run();
+            }
+            return updatedTask;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package nz.co.solnet.database;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes are grouped into one batch by giving the writer a long enough wait to take them all, and held in the queue
+ * by a write that blocks the writer until it is released.
+ */
+public class GroupCommitterTest {
+
+    private static final int BATCH_SIZE = 3;
+
+    private EmbeddedDataSource dataSource;
+
+    private GroupCommitter groupCommitter;
+
+    private ExecutorService callers;
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:groupcommit" + System.nanoTime());
+        dataSource.setCreateDatabase("create");
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("CREATE TABLE names (name varchar(32) not null)");
+        }
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+    }
+
+    @Test
+    public void failingWriteInBatch_isRolledBackToItsSavepoint() throws Exception {
+        groupCommitter = batching();
+
+        Future<Integer> first = submit(insert("first"));
+        Future<Integer> failing = submit(conn -> {
+            insert("failing").execute(conn);
+            throw new SQLException("Write failed", "22001");
+        });
+        Future<Integer> last = submit(insert("last"));
+
+        assertEquals(1, (int) first.get(10, TimeUnit.SECONDS));
+        assertEquals("Write failed", getCause(failing).getMessage());
+        assertEquals(1, (int) last.get(10, TimeUnit.SECONDS));
+        assertEquals(1, groupCommitter.getCommits());
+        assertEquals(0, groupCommitter.getRetriedBatches());
+        assertEquals(Arrays.asList("first", "last"), getNames());
+    }
+
+    @Test
+    public void failedBatchTransaction_retriesEachWriteAlone() throws Exception {
+        groupCommitter = batching();
+        AtomicBoolean deadlocked = new AtomicBoolean();
+
+        Future<Integer> first = submit(insert("first"));
+        Future<Integer> victim = submit(conn -> {
+            if (deadlocked.compareAndSet(false, true)) {
+                // Derby has rolled back the whole transaction
+                throw new SQLException("Deadlock", "40001");
+            }
+            return insert("victim").execute(conn);
+        });
+        Future<Integer> last = submit(insert("last"));
+
+        assertEquals(1, (int) first.get(10, TimeUnit.SECONDS));
+        assertEquals(1, (int) victim.get(10, TimeUnit.SECONDS));
+        assertEquals(1, (int) last.get(10, TimeUnit.SECONDS));
+        assertEquals(1, groupCommitter.getRetriedBatches());
+        assertEquals(BATCH_SIZE, groupCommitter.getCommits());
+        assertEquals(Arrays.asList("first", "last", "victim"), getNames());
+    }
+
+    @Test
+    public void errorInWrite_failsOnlyThatWrite() throws Exception {
+        groupCommitter = new GroupCommitter.GroupCommitterBuilder().build(dataSource);
+
+        try {
+            groupCommitter.execute(conn -> {
+                insert("failing").execute(conn);
+                throw new WriteError();
+            });
+            fail("The write's error should be thrown");
+        } catch (WriteError e) {
+            // Expected
+        }
+
+        assertEquals(1, (int) groupCommitter.execute(insert("next")));
+        assertEquals(Arrays.asList("next"), getNames());
+    }
+
+    @Test
+    public void interruptedWhileQueued_failsWithoutExecutingTheWrite() throws Exception {
+        groupCommitter = new GroupCommitter.GroupCommitterBuilder().withMaxBatchSize(1).build(dataSource);
+        CountDownLatch release = blockWriter();
+        AtomicInteger executed = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean stillInterrupted = new AtomicBoolean();
+        CountDownLatch answered = new CountDownLatch(1);
+
+        Future<?> queued = callers.submit(() -> {
+            try {
+                groupCommitter.execute(conn -> executed.incrementAndGet());
+            } catch (Throwable e) {
+                failure.set(e);
+                stillInterrupted.set(Thread.currentThread().isInterrupted());
+            } finally {
+                answered.countDown();
+            }
+        });
+        waitForQueueLength(1);
+        queued.cancel(true);
+        assertTrue(answered.await(10, TimeUnit.SECONDS));
+        release.countDown();
+
+        assertTrue(failure.get() instanceof SQLException);
+        assertTrue(stillInterrupted.get());
+        assertEquals(1, (int) groupCommitter.execute(insert("next")));
+        assertEquals(0, executed.get());
+    }
+
+    @Test
+    public void timedOutWhileQueued_failsWithoutExecutingTheWrite() throws Exception {
+        groupCommitter = new GroupCommitter.GroupCommitterBuilder().withMaxBatchSize(1).withTimeoutMillis(100).build(dataSource);
+        CountDownLatch release = blockWriter();
+        AtomicInteger executed = new AtomicInteger();
+
+        try {
+            groupCommitter.execute(conn -> executed.incrementAndGet());
+            fail("A write still queued after the timeout should fail");
+        } catch (SQLTimeoutException e) {
+            // Expected
+        } finally {
+            release.countDown();
+        }
+
+        assertEquals(1, (int) groupCommitter.execute(insert("next")));
+        assertEquals(0, executed.get());
+    }
+
+    @Test
+    public void closed_failsWrites() {
+        groupCommitter = new GroupCommitter.GroupCommitterBuilder().build(dataSource);
+        groupCommitter.close();
+
+        try {
+            groupCommitter.execute(insert("closed"));
+            fail("A write after closing should fail");
+        } catch (SQLException e) {
+            assertEquals("Group commit is closed", e.getMessage());
+        }
+    }
+
+    /**
+     * A group committer that waits for a whole batch before writing it.
+     */
+    private GroupCommitter batching() {
+        return new GroupCommitter.GroupCommitterBuilder()
+                .withMaxBatchSize(BATCH_SIZE)
+                .withMaxWaitMicros(TimeUnit.SECONDS.toMicros(10))
+                .build(dataSource);
+    }
+
+    /**
+     * Occupy the writer with a write that waits until the returned latch is released.
+     */
+    private CountDownLatch blockWriter() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        submit(conn -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 0;
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private Future<Integer> submit(GroupCommitter.TransactionalWrite<Integer> write) {
+        return callers.submit(() -> groupCommitter.execute(write));
+    }
+
+    private void waitForQueueLength(int length) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (groupCommitter.getQueueLength() < length) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static GroupCommitter.TransactionalWrite<Integer> insert(String name) {
+        return conn -> {
+            try (PreparedStatement statement = conn.prepareStatement("INSERT INTO names (name) VALUES (?)")) {
+                statement.setString(1, name);
+                return statement.executeUpdate();
+            }
+        };
+    }
+
+    private List<String> getNames() throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name FROM names ORDER BY name")) {
+            while (resultSet.next()) {
+                names.add(resultSet.getString(1));
+            }
+        }
+        return names;
+    }
+
+    private static Throwable getCause(Future<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("The write should fail");
+        return null;
+    }
+
+    private static class WriteError extends Error {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
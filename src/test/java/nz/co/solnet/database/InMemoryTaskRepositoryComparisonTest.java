@@ -0,0 +1,217 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The same random writes are made to the in-memory engine and to an in-memory Derby database, and every read is
+ * expected to return the same tasks from both. Each run uses a fixed seed, which the failure message gives, so a
+ * failure can be played out again.
+ * Versions and last modified times are left out, as the engines don't take versions for the same failed writes.
+ */
+public class InMemoryTaskRepositoryComparisonTest {
+
+    private static final int RUNS = 3;
+
+    private static final int STEPS = 300;
+
+    private static final LocalDate FIRST_DUE_DATE = LocalDate.parse("2023-01-01");
+
+    private static final int DUE_DAYS = 60;
+
+    private Random random;
+
+    private InMemoryTaskRepository memory;
+
+    private TaskRepositoryImpl derby;
+
+    private String context;
+
+    @Test
+    public void randomWrites_readTheSameAsDerby() {
+        for (long seed = 1; seed <= RUNS; seed++) {
+            random = new Random(seed);
+            memory = new InMemoryTaskRepository();
+            EmbeddedDataSource dataSource = new EmbeddedDataSource();
+            dataSource.setDatabaseName("memory:comparison" + seed + "_" + System.nanoTime());
+            dataSource.setCreateDatabase("create");
+            new SchemaMigrations(dataSource).migrate();
+            derby = new TaskRepositoryImpl(dataSource);
+
+            for (int step = 0; step < STEPS; step++) {
+                context = "seed " + seed + ", step " + step;
+                write();
+                read();
+            }
+            context = "seed " + seed + ", end";
+            assertSame(describe(memory.getTasks()), describe(derby.getTasks()));
+        }
+    }
+
+    private void write() {
+        int operation = random.nextInt(100);
+        if (operation < 35) {
+            Task task = newTask();
+            assertSame(describe(memory.createTask(task)), describe(derby.createTask(task)));
+        } else if (operation < 45) {
+            List<Task> tasks = new ArrayList<>();
+            for (int i = random.nextInt(5) + 1; i > 0; i--) {
+                tasks.add(newTask());
+            }
+            assertSame(describe(memory.createTasks(tasks)), describe(derby.createTasks(tasks)));
+        } else if (operation < 70) {
+            Task task = newTask();
+            task.setId(randomId());
+            assertSame(describe(memory.updateTask(task)), describe(derby.updateTask(task)));
+        } else if (operation < 85) {
+            int id = randomId();
+            assertSame(memory.deleteTask(id), derby.deleteTask(id));
+        } else if (operation < 95) {
+            LocalDate startDate = randomDate();
+            LocalDate endDate = randomDate();
+            List<Task.Status> statuses = randomStatuses();
+            TaskPatch patch = newPatch();
+            assertSame(memory.updateTasksBetweenDates(startDate, endDate, statuses, patch),
+                    derby.updateTasksBetweenDates(startDate, endDate, statuses, patch));
+        } else {
+            // Narrow, so that the tasks aren't all deleted
+            LocalDate startDate = randomDueDate();
+            LocalDate endDate = startDate.plusDays(random.nextInt(3));
+            List<Task.Status> statuses = randomStatuses();
+            assertSame(memory.deleteTasksBetweenDates(startDate, endDate, statuses),
+                    derby.deleteTasksBetweenDates(startDate, endDate, statuses));
+        }
+    }
+
+    private void read() {
+        int id = randomId();
+        assertSame(describe(memory.getTask(id)), describe(derby.getTask(id)));
+
+        LocalDate startDate = randomDate();
+        LocalDate endDate = randomDate();
+        List<Task.Status> statuses = randomStatuses();
+        assertSame(describe(memory.getTasksBetweenDates(startDate, endDate, statuses)),
+                describe(derby.getTasksBetweenDates(startDate, endDate, statuses)));
+
+        int limit = random.nextInt(10) + 1;
+        assertSame(readPages(false, (after, action) -> memory.forEachTask(after, limit, action)),
+                readPages(false, (after, action) -> derby.forEachTask(after, limit, action)));
+        assertSame(readPages(true, (after, action) -> memory.forEachTaskBetweenDates(startDate, endDate, statuses, after, limit, action)),
+                readPages(true, (after, action) -> derby.forEachTaskBetweenDates(startDate, endDate, statuses, after, limit, action)));
+
+        assertSame(describe(memory.getChangesSince(0, 100_000).getTasks()),
+                describe(derby.getChangesSince(0, 100_000).getTasks()));
+    }
+
+    /**
+     * Read every page, each starting after the last task of the one before, until a page comes back empty.
+     */
+    private static List<String> readPages(boolean byDueDate, BiConsumer<TaskCursor, Consumer<Task>> readPage) {
+        List<Task> tasks = new ArrayList<>();
+        TaskCursor after = null;
+        while (true) {
+            List<Task> page = new ArrayList<>();
+            readPage.accept(after, page::add);
+            if (page.isEmpty()) {
+                return describe(tasks);
+            }
+            Task last = page.get(page.size() - 1);
+            after = byDueDate ? TaskCursor.byDueDate(last) : TaskCursor.byId(last);
+            tasks.addAll(page);
+        }
+    }
+
+    private void assertSame(Object expected, Object actual) {
+        assertEquals(context, expected, actual);
+    }
+
+    private Task newTask() {
+        Task task = new Task();
+        task.setTitle("Task " + random.nextInt(1000));
+        task.setDescription(random.nextBoolean() ? null : "Description " + random.nextInt(1000));
+        task.setDueDate(randomDate());
+        task.setStatus(randomStatus());
+        return task;
+    }
+
+    private TaskPatch newPatch() {
+        TaskPatch.TaskPatchBuilder builder = new TaskPatch.TaskPatchBuilder();
+        if (random.nextBoolean()) {
+            builder.withTitle("Patched " + random.nextInt(1000));
+        }
+        if (random.nextBoolean()) {
+            builder.withDescription(random.nextBoolean() ? null : "Patched description");
+        }
+        if (random.nextBoolean()) {
+            builder.withDueDate(randomDate());
+        }
+        // The API rejects a patch without any fields
+        if (random.nextBoolean() || builder.build().isEmpty()) {
+            builder.withStatus(randomStatus());
+        }
+        return builder.build();
+    }
+
+    /**
+     * An id that is usually taken, but sometimes isn't, or was deleted.
+     */
+    private int randomId() {
+        return random.nextInt(memory.getTasks().size() * 2 + 10) + 1;
+    }
+
+    private LocalDate randomDate() {
+        return random.nextInt(5) == 0 ? null : randomDueDate();
+    }
+
+    private LocalDate randomDueDate() {
+        return FIRST_DUE_DATE.plusDays(random.nextInt(DUE_DAYS));
+    }
+
+    private Task.Status randomStatus() {
+        return Task.Status.values()[random.nextInt(Task.Status.values().length)];
+    }
+
+    private List<Task.Status> randomStatuses() {
+        if (random.nextInt(3) == 0) {
+            return null;
+        }
+        TreeSet<Task.Status> statuses = new TreeSet<>();
+        for (int i = random.nextInt(Task.Status.values().length) + 1; i > 0; i--) {
+            statuses.add(randomStatus());
+        }
+        return new ArrayList<>(statuses);
+    }
+
+    private static List<String> describe(Optional<Task> task) {
+        return describe(task.map(Collections::singletonList).orElse(Collections.emptyList()));
+    }
+
+    private static List<String> describe(Task task) {
+        return describe(Collections.singletonList(task));
+    }
+
+    private static List<String> describe(List<Task> tasks) {
+        List<String> descriptions = new ArrayList<>();
+        for (Task task : tasks) {
+            descriptions.add(String.join("|", Arrays.asList(String.valueOf(task.getId()), task.getTitle(),
+                    task.getDescription(), String.valueOf(task.getDueDate()), String.valueOf(task.getStatus()),
+                    String.valueOf(task.getCreationDate()))));
+        }
+        return descriptions;
+    }
+}
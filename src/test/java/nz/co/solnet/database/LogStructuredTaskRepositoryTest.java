@@ -0,0 +1,155 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The repository is closed and opened again on the same directory, as the server is when it restarts.
+ */
+public class LogStructuredTaskRepositoryTest {
+
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+
+    private static final String LARGE_DESCRIPTION = String.join("", Collections.nCopies(100_000, "x"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder().toPath();
+    }
+
+    @Test
+    public void reopen_replaysTasksAndDeletions() {
+        LogStructuredTaskRepository repository = open();
+        Task kept;
+        Task deleted;
+        try {
+            kept = repository.createTask(newTask("Kept", null));
+            deleted = repository.createTask(newTask("Deleted", null));
+            kept.setTitle("Updated");
+            kept = repository.updateTask(kept).get();
+            assertTrue(repository.deleteTask(deleted.getId()));
+        } finally {
+            repository.close();
+        }
+
+        LogStructuredTaskRepository reopened = open();
+        try {
+            assertEquals("Updated", reopened.getTask(kept.getId()).get().getTitle());
+            assertEquals(kept.getVersion(), reopened.getTask(kept.getId()).get().getVersion());
+            assertFalse(reopened.getTask(deleted.getId()).isPresent());
+            assertEquals(Collections.singletonList(deleted.getId()), reopened.getChangesSince(kept.getVersion(), 10).getDeletedIds());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void compact_thenReopen_keepsEveryTask() throws IOException {
+        LogStructuredTaskRepository repository = open();
+        List<Task> tasks = new ArrayList<>();
+        Path firstSegment;
+        try {
+            // The first segment ends up with only small current records, which compaction copies
+            tasks.add(repository.createTask(newTask("Small", null)));
+            for (int i = 0; i < 10; i++) {
+                tasks.add(repository.createTask(newTask("Large " + i, LARGE_DESCRIPTION)));
+            }
+            firstSegment = getSegments().get(0);
+            for (int i = 1; i < tasks.size(); i++) {
+                Task task = tasks.get(i);
+                task.setDescription(null);
+                tasks.set(i, repository.updateTask(task).get());
+            }
+            // Seal the first segment
+            tasks.add(repository.createTask(newTask("Last", LARGE_DESCRIPTION)));
+            repository.compact();
+            assertFalse(Files.exists(firstSegment));
+        } finally {
+            repository.close();
+        }
+
+        LogStructuredTaskRepository reopened = open();
+        try {
+            List<Task> replayed = reopened.getTasks();
+            assertEquals(tasks.size(), replayed.size());
+            for (int i = 0; i < tasks.size(); i++) {
+                assertEquals(tasks.get(i).getTitle(), replayed.get(i).getTitle());
+                assertEquals(tasks.get(i).getDescription(), replayed.get(i).getDescription());
+                assertEquals(tasks.get(i).getVersion(), replayed.get(i).getVersion());
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void cleanTaskData_thenReopen_carriesOnIdsAndVersions() {
+        LogStructuredTaskRepository repository = open();
+        Task last;
+        try {
+            repository.createTask(newTask("First", null));
+            last = repository.createTask(newTask("Second", null));
+            repository.cleanTaskData();
+        } finally {
+            repository.close();
+        }
+
+        LogStructuredTaskRepository reopened = open();
+        try {
+            assertTrue(reopened.getTasks().isEmpty());
+            Task created = reopened.createTask(newTask("Third", null));
+            assertTrue(created.getId() > last.getId());
+            assertTrue(created.getVersion() > last.getVersion());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private LogStructuredTaskRepository open() {
+        return new LogStructuredTaskRepository.LogStructuredTaskRepositoryBuilder()
+                .withDirectory(directory)
+                .withSegmentBytes(SEGMENT_BYTES)
+                .withSyncWrites(false)
+                .withCompactionIntervalMillis(0)
+                .build();
+    }
+
+    private List<Path> getSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            files.forEach(segments::add);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static Task newTask(String title, String description) {
+        Task task = new Task();
+        task.setTitle(title);
+        task.setDescription(description);
+        task.setStatus(Task.Status.TODO);
+        task.setDueDate(LocalDate.parse("2024-01-01"));
+        return task;
+    }
+}
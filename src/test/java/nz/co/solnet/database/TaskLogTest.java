@@ -0,0 +1,230 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Crashes are played out by changing the bytes of a closed segment file, as a write that was cut short would have
+ * left them, then opening the log again.
+ */
+public class TaskLogTest {
+
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+
+    private static final int HEADER_BYTES = 22;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder().toPath();
+    }
+
+    @Test
+    public void open_replaysCompleteWrites() throws IOException {
+        TaskLog log = open(new ArrayList<>());
+        log.appendTasks(Collections.singletonList(newTask(1, 1, "First")));
+        log.appendTasks(Arrays.asList(newTask(2, 2, "Second"), newTask(3, 3, "Third")));
+        log.close();
+
+        List<TaskLog.Record> replayed = new ArrayList<>();
+        log = open(replayed);
+        log.close();
+
+        assertEquals(Arrays.asList(1, 2, 3), getIds(replayed));
+        assertEquals("Third", log.readTask(replayed.get(2)).getTitle());
+    }
+
+    @Test
+    public void open_crcBadTail_isNotReplayedAndIsCleared() throws IOException {
+        TaskLog log = open(new ArrayList<>());
+        log.appendTasks(Collections.singletonList(newTask(1, 1, "First")));
+        log.appendTasks(Collections.singletonList(newTask(2, 2, "Second")));
+        log.close();
+        Path segment = getOnlySegment();
+        int second = readInt(segment, 0);
+        writeBytes(segment, second + HEADER_BYTES, new byte[] {42});
+
+        List<TaskLog.Record> replayed = new ArrayList<>();
+        open(replayed).close();
+
+        assertEquals(Collections.singletonList(1), getIds(replayed));
+        assertTrue(isZeroFrom(segment, second));
+    }
+
+    @Test
+    public void open_tornTailWithoutLength_isCleared() throws IOException {
+        TaskLog log = open(new ArrayList<>());
+        log.appendTasks(Collections.singletonList(newTask(1, 1, "First")));
+        log.close();
+        Path segment = getOnlySegment();
+        int end = readInt(segment, 0);
+        // The body of a write reached the disk, but not the page with its length
+        byte[] body = new byte[100];
+        Arrays.fill(body, (byte) 7);
+        writeBytes(segment, end + 4, body);
+
+        List<TaskLog.Record> replayed = new ArrayList<>();
+        log = open(replayed);
+        log.appendTasks(Collections.singletonList(newTask(2, 2, "Second")));
+        log.close();
+
+        assertEquals(Collections.singletonList(1), getIds(replayed));
+        assertTrue(isZeroFrom(segment, end + readInt(segment, end)));
+    }
+
+    @Test
+    public void open_continuedWriteWithBadLastRecord_replaysNoneOfIt() throws IOException {
+        TaskLog log = open(new ArrayList<>());
+        log.appendTasks(Collections.singletonList(newTask(1, 1, "First")));
+        log.appendTasks(Arrays.asList(newTask(2, 2, "Second"), newTask(3, 2, "Third"), newTask(4, 2, "Fourth")));
+        log.close();
+        Path segment = getOnlySegment();
+        int position = 0;
+        for (int i = 0; i < 3; i++) {
+            position += readInt(segment, position);
+        }
+        writeBytes(segment, position + HEADER_BYTES, new byte[] {42});
+
+        List<TaskLog.Record> replayed = new ArrayList<>();
+        open(replayed).close();
+
+        assertEquals(Collections.singletonList(1), getIds(replayed));
+    }
+
+    @Test
+    public void open_sequenceRecord_isReplayedWithPurgedVersion() throws IOException {
+        TaskLog log = open(new ArrayList<>());
+        log.appendSequence(12, 34, 5);
+        log.close();
+
+        List<TaskLog.Record> replayed = new ArrayList<>();
+        open(replayed).close();
+
+        assertEquals(1, replayed.size());
+        assertEquals(TaskLog.SEQUENCE, replayed.get(0).getType());
+        assertEquals(12, replayed.get(0).getId());
+        assertEquals(34, replayed.get(0).getVersion());
+        assertEquals(5, TaskLog.readPurgedVersion(replayed.get(0)));
+    }
+
+    @Test
+    public void clear_retiresEverySegment() throws IOException {
+        TaskLog log = open(new ArrayList<>());
+        log.appendTasks(Collections.singletonList(newTask(1, 1, "First")));
+        Path cleared = getOnlySegment();
+        log.clear();
+        log.appendTasks(Collections.singletonList(newTask(2, 2, "Second")));
+        log.close();
+
+        List<TaskLog.Record> replayed = new ArrayList<>();
+        open(replayed).close();
+
+        assertFalse(Files.exists(cleared));
+        assertEquals(Collections.singletonList(2), getIds(replayed));
+    }
+
+    /**
+     * Where a mapped file can't be deleted, a retired segment is left behind with no length for its first record.
+     */
+    @Test
+    public void open_retiredSegmentLeftBehind_isDeletedWithoutReplaying() throws IOException {
+        TaskLog log = open(new ArrayList<>());
+        log.appendTasks(Collections.singletonList(newTask(1, 1, "First")));
+        log.close();
+        Path retired = getOnlySegment();
+        byte[] retiredBytes = Files.readAllBytes(retired);
+        log = open(new ArrayList<>());
+        log.clear();
+        log.appendTasks(Collections.singletonList(newTask(2, 2, "Second")));
+        log.close();
+        Files.write(retired, retiredBytes);
+        writeBytes(retired, 0, new byte[4]);
+
+        List<TaskLog.Record> replayed = new ArrayList<>();
+        open(replayed).close();
+
+        assertFalse(Files.exists(retired));
+        assertEquals(Collections.singletonList(2), getIds(replayed));
+    }
+
+    private TaskLog open(List<TaskLog.Record> replayed) throws IOException {
+        return TaskLog.open(directory, SEGMENT_BYTES, false, replayed::add);
+    }
+
+    private Path getOnlySegment() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            files.forEach(segments::add);
+        }
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    private static List<Integer> getIds(List<TaskLog.Record> records) {
+        List<Integer> ids = new ArrayList<>();
+        for (TaskLog.Record record : records) {
+            ids.add(record.getId());
+        }
+        return ids;
+    }
+
+    private static int readInt(Path segment, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            channel.read(buffer, position);
+            return buffer.getInt(0);
+        }
+    }
+
+    private static void writeBytes(Path segment, int position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private static boolean isZeroFrom(Path segment, int position) throws IOException {
+        byte[] bytes = Files.readAllBytes(segment);
+        for (int i = position; i < bytes.length; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Task newTask(int id, long version, String title) {
+        return new Task.TaskBuilder()
+                .withId(id)
+                .withTitle(title)
+                .withDescription("Description of " + title)
+                .withDueDate(LocalDate.parse("2024-01-01"))
+                .withCreationDate(LocalDate.parse("2023-01-01"))
+                .withStatus(Task.Status.TODO.getDbName())
+                .withVersion(version)
+                .build();
+    }
+}
@@ -0,0 +1,141 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import nz.co.solnet.model.TaskPatch;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concurrent writes to the same few tasks, checked against the changes the repository publishes. Each task's
+ * changes must be published in version order, and the last one published must be what the database holds.
+ */
+public class TaskRepositoryImplTest {
+
+    private static final int TASKS = 4;
+
+    private static final int WRITERS = 8;
+
+    private static final int WRITES = 150;
+
+    @Test
+    public void racingWrites_publishEachTaskInCommitOrder() throws Exception {
+        assertRacingWritesPublishInCommitOrder(null);
+    }
+
+    @Test
+    public void racingGroupCommittedWrites_publishEachTaskInCommitOrder() throws Exception {
+        EmbeddedDataSource dataSource = createDataSource();
+        GroupCommitter groupCommitter = new GroupCommitter.GroupCommitterBuilder()
+                .withMaxWaitMicros(TimeUnit.MILLISECONDS.toMicros(1))
+                .build(dataSource);
+        try {
+            assertRacingWritesPublishInCommitOrder(new TaskRepositoryImpl(dataSource, groupCommitter));
+        } finally {
+            groupCommitter.close();
+        }
+    }
+
+    private static void assertRacingWritesPublishInCommitOrder(TaskRepositoryImpl groupCommitted) throws Exception {
+        TaskRepositoryImpl repository = groupCommitted != null ? groupCommitted : new TaskRepositoryImpl(createDataSource());
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < TASKS; i++) {
+            ids.add(repository.createTask(newTask("Task " + i, Task.Status.TODO)).getId());
+        }
+        Map<Integer, TaskChange> lastChanges = new ConcurrentHashMap<>();
+        List<String> outOfOrder = new CopyOnWriteArrayList<>();
+        repository.addTaskChangeListener(change -> {
+            TaskChange last = lastChanges.put(change.getId(), change);
+            if (last != null && last.getVersion() >= change.getVersion()) {
+                outOfOrder.add(change.getId() + ": " + last.getVersion() + " then " + change.getVersion());
+            }
+        });
+
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS + 1);
+        try {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int writer = 0; writer < WRITERS; writer++) {
+                Random random = new Random(writer);
+                writes.add(writers.submit(() -> {
+                    for (int i = 0; i < WRITES; i++) {
+                        Task task = newTask("Update " + random.nextInt(1000), Task.Status.TODO);
+                        task.setId(ids.get(random.nextInt(TASKS)));
+                        updateIgnoringDeadlocks(() -> repository.updateTask(task));
+                    }
+                }));
+            }
+            // One bulk writer, racing the single task updates for the same rows
+            writes.add(writers.submit(() -> {
+                for (int i = 0; i < WRITES / 10; i++) {
+                    TaskPatch patch = new TaskPatch.TaskPatchBuilder().withTitle("Bulk " + i).build();
+                    updateIgnoringDeadlocks(() -> repository.updateTasksBetweenDates(null, null, null, patch));
+                }
+            }));
+            for (Future<?> write : writes) {
+                write.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+
+        assertTrue(outOfOrder.toString(), outOfOrder.isEmpty());
+        for (int id : ids) {
+            Task stored = repository.getTask(id).get();
+            Task published = lastChanges.get(id).getTask();
+            assertEquals(published.getVersion(), stored.getVersion());
+            assertEquals(published.getTitle(), stored.getTitle());
+        }
+    }
+
+    /**
+     * A group commit batch locks several tasks, so it can deadlock with a bulk update. Derby rolls one of them back,
+     * which publishes nothing, and the test carries on.
+     */
+    private static void updateIgnoringDeadlocks(Runnable update) {
+        try {
+            update.run();
+        } catch (RuntimeException e) {
+            if (!(e.getCause() instanceof SQLTransactionRollbackException)) {
+                throw e;
+            }
+        }
+    }
+
+    private static EmbeddedDataSource createDataSource() throws SQLException {
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:racing" + System.nanoTime());
+        dataSource.setCreateDatabase("create");
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            // Find deadlocks after a second rather than twenty
+            statement.execute("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY('derby.locks.deadlockTimeout', '1')");
+        }
+        new SchemaMigrations(dataSource).migrate();
+        return dataSource;
+    }
+
+    private static Task newTask(String title, Task.Status status) {
+        Task task = new Task();
+        task.setTitle(title);
+        task.setStatus(status);
+        task.setDueDate(LocalDate.parse("2024-01-01"));
+        return task;
+    }
+}
@@ -0,0 +1,214 @@
+package nz.co.solnet.database;
+
+import nz.co.solnet.model.Task;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tombstones older than the retention period are purged by every engine, and a client whose copy is older than the
+ * last purged tombstone is told to resync rather than silently missing the deletion.
+ */
+public class TombstoneRetentionTest {
+
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+
+    private static final String LARGE_DESCRIPTION = String.join("", Collections.nCopies(100_000, "x"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void inMemory_purge_resyncsCopiesOlderThanPurgedDeletion() {
+        assertPurgeResyncsOlderCopies(new InMemoryTaskRepository());
+    }
+
+    @Test
+    public void log_purge_resyncsCopiesOlderThanPurgedDeletion() throws Exception {
+        LogStructuredTaskRepository repository = openLog(folder.newFolder().toPath());
+        try {
+            assertPurgeResyncsOlderCopies(repository);
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void derby_purge_resyncsCopiesOlderThanPurgedDeletion() {
+        EmbeddedDataSource dataSource = createDataSource("purge");
+        new SchemaMigrations(dataSource).migrate();
+        assertPurgeResyncsOlderCopies(new TaskRepositoryImpl(dataSource));
+    }
+
+    @Test
+    public void inMemory_clean_resyncsEveryCopy() {
+        InMemoryTaskRepository repository = new InMemoryTaskRepository();
+        Task first = repository.createTask(newTask("First", null));
+        repository.createTask(newTask("Second", null));
+        long cleanedVersion = repository.getChangesSince(0, 10).getVersion();
+
+        repository.cleanTaskData();
+
+        assertTrue(repository.getChangesSince(first.getVersion(), 10).isResync());
+        assertFalse(repository.getChangesSince(cleanedVersion, 10).isResync());
+    }
+
+    @Test
+    public void log_purge_isKeptWhenReopened() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        long since;
+        long deletedVersion;
+        LogStructuredTaskRepository repository = openLog(directory);
+        try {
+            Task first = repository.createTask(newTask("First", null));
+            since = first.getVersion();
+            Task second = repository.createTask(newTask("Second", null));
+            repository.deleteTask(second.getId());
+            deletedVersion = repository.getChangesSince(since, 10).getVersion();
+            assertEquals(1, repository.purgeTombstones(Instant.now().plusSeconds(60)));
+        } finally {
+            repository.close();
+        }
+
+        LogStructuredTaskRepository reopened = openLog(directory);
+        try {
+            assertTrue(reopened.getChangesSince(since, 10).isResync());
+            assertFalse(reopened.getChangesSince(deletedVersion, 10).isResync());
+            assertEquals(1, reopened.getTasks().size());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * The deleted task's record is in an older segment than its tombstone, and that segment is not worth compacting,
+     * so the purged tombstone must be copied when its own segment is compacted, or the task comes back on replay.
+     */
+    @Test
+    public void log_compactedPurgedTombstone_keepsTaskDeletedWhenReopened() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        Task deleted;
+        LogStructuredTaskRepository repository = openLog(directory);
+        try {
+            // Fill the first segment with tasks that stay
+            deleted = repository.createTask(newTask("Deleted", null));
+            for (int i = 0; i < 10; i++) {
+                repository.createTask(newTask("Kept " + i, LARGE_DESCRIPTION));
+            }
+            // Fill the second segment with tasks that are deleted, and the deleted task's tombstone
+            List<Task> fillers = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                fillers.add(repository.createTask(newTask("Filler " + i, LARGE_DESCRIPTION)));
+            }
+            repository.deleteTask(deleted.getId());
+            for (Task filler : fillers) {
+                repository.deleteTask(filler.getId());
+            }
+            // Seal the second segment
+            repository.createTask(newTask("Last", LARGE_DESCRIPTION));
+
+            assertEquals(11, repository.purgeTombstones(Instant.now().plusSeconds(60)));
+            repository.compact();
+        } finally {
+            repository.close();
+        }
+
+        LogStructuredTaskRepository reopened = openLog(directory);
+        try {
+            assertFalse(reopened.getTask(deleted.getId()).isPresent());
+            assertEquals(11, reopened.getTasks().size());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void derby_migration_givesUnversionedTasksDistinctVersions() throws SQLException {
+        EmbeddedDataSource dataSource = createDataSource("unversioned");
+        // The tasks table as it was before migrations
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement()) {
+            statement.execute("CREATE TABLE tasks (id int not null generated always as identity,"
+                    + " title varchar(256) not null, description varchar(1024), due_date date, status varchar(10),"
+                    + " creation_date date not null, primary key (id))");
+            for (int i = 0; i < 3; i++) {
+                statement.execute("INSERT INTO tasks (title, creation_date) VALUES ('Old task', CURRENT_DATE)");
+            }
+        }
+
+        new SchemaMigrations(dataSource).migrate();
+        TaskRepositoryImpl repository = new TaskRepositoryImpl(dataSource);
+
+        TaskChanges changes = repository.getChangesSince(0, 10);
+        assertEquals(3, changes.getTasks().size());
+        assertEquals(3, changes.getTasks().stream().mapToLong(Task::getVersion).filter(version -> version > 0).distinct().count());
+        Task created = repository.createTask(newTask("New task", null));
+        assertTrue(created.getVersion() > changes.getVersion());
+        try (Connection conn = dataSource.getConnection(); Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM tasks WHERE version = 0")) {
+            resultSet.next();
+            assertEquals(0, resultSet.getInt(1));
+        }
+    }
+
+    private static void assertPurgeResyncsOlderCopies(TaskStorageEngine repository) {
+        Task first = repository.createTask(newTask("First", null));
+        Task second = repository.createTask(newTask("Second", null));
+        assertTrue(repository.deleteTask(second.getId()));
+        long deletedVersion = repository.getChangesSince(first.getVersion(), 10).getVersion();
+        assertEquals(Collections.singletonList(second.getId()), repository.getChangesSince(first.getVersion(), 10).getDeletedIds());
+
+        assertEquals(0, repository.purgeTombstones(Instant.now().minusSeconds(60)));
+        assertEquals(1, repository.purgeTombstones(Instant.now().plusSeconds(60)));
+
+        TaskChanges resync = repository.getChangesSince(first.getVersion(), 10);
+        assertTrue(resync.isResync());
+        assertEquals(0, resync.getVersion());
+        assertTrue(resync.hasMore());
+        TaskChanges everyTask = repository.getChangesSince(0, 10);
+        assertFalse(everyTask.isResync());
+        assertEquals(1, everyTask.getTasks().size());
+        assertTrue(everyTask.getDeletedIds().isEmpty());
+        assertFalse(repository.getChangesSince(deletedVersion, 10).isResync());
+    }
+
+    private static LogStructuredTaskRepository openLog(Path directory) {
+        return new LogStructuredTaskRepository.LogStructuredTaskRepositoryBuilder()
+                .withDirectory(directory)
+                .withSegmentBytes(SEGMENT_BYTES)
+                .withSyncWrites(false)
+                .withCompactionIntervalMillis(0)
+                .build();
+    }
+
+    private static EmbeddedDataSource createDataSource(String name) {
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:" + name + System.nanoTime());
+        dataSource.setCreateDatabase("create");
+        return dataSource;
+    }
+
+    private static Task newTask(String title, String description) {
+        Task task = new Task();
+        task.setTitle(title);
+        task.setDescription(description);
+        task.setStatus(Task.Status.TODO);
+        task.setDueDate(LocalDate.parse("2024-01-01"));
+        return task;
+    }
+}